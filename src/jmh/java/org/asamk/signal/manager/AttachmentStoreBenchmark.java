@@ -0,0 +1,106 @@
+package org.asamk.signal.manager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of storing a received attachment of the given size in MiB: writing the downloaded ciphertext to the staging
+ * file and copying the stream read from it to the attachment file.
+ * The plain file stream stands in for the decrypting stream of the library, which costs the same on both paths.
+ * tempDirCopy is the previous path, staging in the system temp directory and copying with a 4 KiB buffer.
+ * The attachments directory is created in the working directory, pass -Djava.io.tmpdir to compare with a temp
+ * directory on another file system.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class AttachmentStoreBenchmark {
+
+    @Param({"1", "25", "150"})
+    public int size;
+
+    private byte[] ciphertext;
+    private File attachmentsPath;
+    private File outputFile;
+
+    @Setup(Level.Trial)
+    public void createCiphertext() throws IOException {
+        ciphertext = new byte[size * 1024 * 1024];
+        new Random(0).nextBytes(ciphertext);
+        attachmentsPath = Files.createTempDirectory(new File(".").toPath(), "signal-attachment-benchmark").toFile();
+        outputFile = new File(attachmentsPath, "1234");
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteOutputFile() throws IOException {
+        Files.deleteIfExists(outputFile.toPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteAttachmentsPath() {
+        attachmentsPath.delete();
+    }
+
+    private void download(File encryptedFile) throws IOException {
+        try (OutputStream output = new FileOutputStream(encryptedFile)) {
+            output.write(ciphertext);
+        }
+    }
+
+    @Benchmark
+    public File tempDirCopy() throws IOException {
+        File tmpFile = File.createTempFile("signal_tmp_", ".tmp");
+        try {
+            download(tmpFile);
+            try (InputStream input = new FileInputStream(tmpFile); OutputStream output = new FileOutputStream(outputFile)) {
+                byte[] buffer = new byte[4096];
+                int read;
+
+                while ((read = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+            }
+        } finally {
+            Files.delete(tmpFile.toPath());
+        }
+        return outputFile;
+    }
+
+    @Benchmark
+    public File stagedRename() throws IOException {
+        File encryptedFile = new File(outputFile + ".encrypted.part");
+        try {
+            download(encryptedFile);
+            try (InputStream input = new FileInputStream(encryptedFile)) {
+                Utils.storeAttachment(input, outputFile);
+            }
+        } finally {
+            Files.deleteIfExists(encryptedFile.toPath());
+        }
+        return outputFile;
+    }
+}
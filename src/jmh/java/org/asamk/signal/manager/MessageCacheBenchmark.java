@@ -0,0 +1,124 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.storage.StorageConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of storing a burst of received envelopes before they are acknowledged and dropping them after they were
+ * handled, as the receive loop does.
+ * fileCache is the previous message cache with one file per envelope, which was never synced. messageLog appends to
+ * the segmented message log with the given fsync policy, syncs it before every acknowledgment like the receive loop and
+ * commits every envelope.
+ * The cache directory is created in the working directory, so both paths are measured on the same file system.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class MessageCacheBenchmark {
+
+    @Param({"1000"})
+    public int envelopeCount;
+
+    @Param({"NEVER", "INTERVAL", "ALWAYS"})
+    public StorageConfig.FsyncPolicy fsyncPolicy;
+
+    private List<SignalServiceEnvelope> envelopes;
+    private File cachePath;
+
+    @Setup(Level.Trial)
+    public void createEnvelopes() {
+        Random random = new Random(0);
+        envelopes = new ArrayList<>(envelopeCount);
+        for (int i = 0; i < envelopeCount; i++) {
+            // About the size of a short text message
+            byte[] content = new byte[400];
+            random.nextBytes(content);
+            String source = "+49170000" + (i % 20);
+            envelopes.add(new SignalServiceEnvelope(SignalServiceProtos.Envelope.Type.CIPHERTEXT_VALUE, Optional.of(new SignalServiceAddress(null, source)), 1, 1500000000000L + i, null, content, 1500000000000L + i, null));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void createCachePath() throws IOException {
+        cachePath = Files.createTempDirectory(new File(".").toPath(), "signal-message-cache-benchmark").toFile();
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteCachePath() {
+        delete(cachePath);
+    }
+
+    @Benchmark
+    public int fileCache() throws IOException {
+        long now = System.currentTimeMillis();
+        List<File> files = new ArrayList<>(envelopes.size());
+        for (SignalServiceEnvelope envelope : envelopes) {
+            File senderPath = new File(cachePath, envelope.getSourceE164().get().replace("/", "_"));
+            senderPath.mkdirs();
+            File file = new File(senderPath, now + "_" + envelope.getTimestamp());
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+                Utils.writeEnvelope(envelope, out);
+            }
+            files.add(file);
+        }
+        for (File file : files) {
+            Files.delete(file.toPath());
+            cachePath.delete();
+        }
+        return files.size();
+    }
+
+    @Benchmark
+    public int messageLog() throws IOException {
+        MessageLog log = MessageLog.open(cachePath, BaseConfig.MESSAGE_LOG_SEGMENT_SIZE, fsyncPolicy, new StorageConfig().getFsyncInterval());
+        List<Long> sequences = new ArrayList<>(envelopes.size());
+        for (SignalServiceEnvelope envelope : envelopes) {
+            sequences.add(log.append(envelope));
+            log.sync();
+        }
+        for (long sequence : sequences) {
+            log.commit(sequence);
+        }
+        log.close();
+        return sequences.size();
+    }
+
+    private static void delete(File path) {
+        File[] files = path.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+        path.delete();
+    }
+}
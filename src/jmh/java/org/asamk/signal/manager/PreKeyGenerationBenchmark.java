@@ -0,0 +1,41 @@
+package org.asamk.signal.manager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall time of generating a batch of one-time prekeys on the calling thread and on all available cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PreKeyGenerationBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int batchSize;
+
+    @Benchmark
+    public List<PreKeyRecord> sequential() {
+        return PreKeyGenerator.generatePreKeysSequential(0, batchSize);
+    }
+
+    @Benchmark
+    public List<PreKeyRecord> parallel() {
+        return PreKeyGenerator.generatePreKeysParallel(0, batchSize, Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,190 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.storage.SignalAccount;
+import org.asamk.signal.storage.StorageConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.signalservice.api.crypto.SignalServiceCipher;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wall time of decrypting recorded envelopes through the decrypt stage of the receive pipeline.
+ * The envelopes are replayed from the retried and uncommitted envelopes in the msg-log directory and from the
+ * msg-cache directory of older versions of an account, e.g. a copy of the config directory taken while signal-cli was
+ * stopped with a large backlog of received messages. Decrypting changes the sessions, so every invocation decrypts
+ * with a fresh copy of the account.
+ * Run with -p settingsPath=CONFIG -p username=NUMBER.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class ReceiveDecryptBenchmark {
+
+    @Param({""})
+    public String settingsPath;
+
+    @Param({""})
+    public String username;
+
+    private List<SignalServiceEnvelope> envelopes;
+    private File accountCopyPath;
+    private SignalAccount account;
+
+    @Setup(Level.Trial)
+    public void loadEnvelopes() throws IOException {
+        File cachePath = new File(settingsPath + "/data/" + username + ".d/msg-cache");
+        List<File> files = new ArrayList<>();
+        File[] senderDirs = cachePath.listFiles();
+        if (senderDirs != null) {
+            for (File senderDir : senderDirs) {
+                File[] senderFiles = senderDir.listFiles();
+                if (senderFiles != null) {
+                    files.addAll(Arrays.asList(senderFiles));
+                }
+            }
+        }
+        // Replay in the order the envelopes were received, the file names start with the time of receipt
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        envelopes = new ArrayList<>(files.size());
+        for (File file : files) {
+            SignalServiceEnvelope envelope = Utils.loadEnvelope(file);
+            if (envelope != null && !envelope.isReceipt()) {
+                envelopes.add(envelope);
+            }
+        }
+        // Opening the log recycles segments, so it's read from a copy
+        File logPath = new File(settingsPath + "/data/" + username + ".d/msg-log");
+        if (logPath.isDirectory()) {
+            File logCopyPath = Files.createTempDirectory("signal-decrypt-benchmark-log").toFile();
+            try {
+                copy(logPath.toPath(), logCopyPath.toPath());
+                MessageLog log = MessageLog.open(logCopyPath, BaseConfig.MESSAGE_LOG_SEGMENT_SIZE, StorageConfig.FsyncPolicy.NEVER, 0);
+                for (SignalServiceEnvelope envelope : log.takeRetryEnvelopes()) {
+                    if (!envelope.isReceipt()) {
+                        envelopes.add(envelope);
+                    }
+                }
+                for (MessageLog.LoggedEnvelope logged : log.takeUncommittedEnvelopes()) {
+                    if (!logged.envelope.isReceipt()) {
+                        envelopes.add(logged.envelope);
+                    }
+                }
+                log.close();
+            } finally {
+                delete(logCopyPath);
+            }
+        }
+        if (envelopes.isEmpty()) {
+            throw new IllegalStateException("No recorded envelopes in " + cachePath + " or " + logPath);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void copyAccount() throws IOException {
+        accountCopyPath = Files.createTempDirectory("signal-decrypt-benchmark").toFile();
+        copy(new File(settingsPath + "/data").toPath(), accountCopyPath.toPath());
+        account = SignalAccount.load(accountCopyPath.getPath(), username, new StorageConfig());
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteAccountCopy() throws IOException {
+        account.close();
+        account = null;
+        delete(accountCopyPath);
+    }
+
+    @Benchmark
+    public int decrypt() throws InterruptedException {
+        final SignalServiceAddress self = new SignalServiceAddress(null, username);
+        final AtomicInteger failures = new AtomicInteger();
+        ReceivePipeline pipeline = new ReceivePipeline(BaseConfig.RECEIVE_QUEUE_SIZE) {
+            @Override
+            void decrypt(ReceivedMessage message) {
+                SignalServiceCipher cipher = new SignalServiceCipher(self, account.getSignalProtocolStore(), Utils.getCertificateValidator());
+                try {
+                    message.content = cipher.decrypt(message.envelope);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            }
+
+            @Override
+            void process(ReceivedMessage message) {
+            }
+
+            @Override
+            void output(ReceivedMessage message) {
+            }
+        };
+        for (SignalServiceEnvelope envelope : envelopes) {
+            pipeline.submit(envelope, -1);
+        }
+        pipeline.shutdown();
+        if (failures.get() > 0) {
+            // e.g. envelopes whose state changes were already saved before the copy was taken
+            System.out.println(String.format("%d of %d envelopes failed to decrypt", failures.get(), envelopes.size()));
+        }
+        return envelopes.size() - failures.get();
+    }
+
+    private static void copy(final Path source, final Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, target.resolve(source.relativize(file)));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void delete(File path) {
+        File[] files = path.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+        path.delete();
+    }
+}
@@ -0,0 +1,91 @@
+package org.asamk.signal.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap retained by a loaded account, in bytes per session and per contact.
+ * A contact comes with a session, an identity and a thread, like a contact that was written to.
+ * Every fork measures a single load, so earlier loads can't leave anything behind in the heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(3)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class AccountFootprintBenchmark {
+
+    @Param({"sessions", "contacts"})
+    public String content;
+
+    @Param({"50000"})
+    public int entries;
+
+    private File dataPath;
+    private long baselineHeapUsage;
+    private SignalAccount account;
+
+    @Setup(Level.Trial)
+    public void createAccountFile() throws IOException {
+        dataPath = Files.createTempDirectory("signal-account-benchmark").toFile();
+        BenchmarkAccounts.createAccountFile(dataPath, entries, "contacts".equals(content) ? entries : 0);
+    }
+
+    @Setup(Level.Iteration)
+    public void measureBaseline() {
+        baselineHeapUsage = getUsedHeapAfterGc();
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportRetainedHeap() throws IOException {
+        long retained = getUsedHeapAfterGc() - baselineHeapUsage;
+        System.out.println(String.format("retained heap: %d bytes per %s", retained / entries, "contacts".equals(content) ? "contact" : "session"));
+        account.close();
+        account = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteAccountFile() {
+        BenchmarkAccounts.delete(dataPath);
+    }
+
+    /**
+     * A single System.gc() doesn't always collect everything, so collect until the usage doesn't change anymore.
+     */
+    private static long getUsedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        long lastUsage = -1;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            long usage = runtime.totalMemory() - runtime.freeMemory();
+            if (usage == lastUsage) {
+                break;
+            }
+            lastUsage = usage;
+        }
+        return lastUsage;
+    }
+
+    @Benchmark
+    public SignalAccount load() throws IOException {
+        account = SignalAccount.load(dataPath.getPath(), BenchmarkAccounts.USERNAME, new StorageConfig());
+        return account;
+    }
+}
@@ -0,0 +1,140 @@
+package org.asamk.signal.storage;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Synthetic account files for the benchmarks.
+ */
+class BenchmarkAccounts {
+
+    static final String USERNAME = "+490000000000";
+
+    /**
+     * Typical size of a serialized session record with a few previous states.
+     */
+    private static final int SESSION_RECORD_SIZE = 1500;
+
+    private BenchmarkAccounts() {
+    }
+
+    /**
+     * Writes an account file with the given number of sessions with random records.
+     */
+    static void createAccountFile(File dataPath, int sessions) throws IOException {
+        createAccountFile(dataPath, sessions, 0);
+    }
+
+    /**
+     * Writes an account file with the given number of sessions with random records. The first contacts sessions
+     * belong to contacts with a profile key, an identity and a thread.
+     */
+    static void createAccountFile(File dataPath, int sessions, int contacts) throws IOException {
+        IdentityKeyPair identityKeyPair = KeyHelper.generateIdentityKeyPair();
+        IdentityKeyPair contactIdentityKeyPair = KeyHelper.generateIdentityKeyPair();
+        Random random = new Random(42);
+
+        File file = new File(SignalAccount.getFileName(dataPath.getPath(), USERNAME));
+        try (JsonGenerator json = new JsonFactory().createGenerator(file, JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            json.writeStringField("username", USERNAME);
+            json.writeNumberField("deviceId", 1);
+            json.writeBooleanField("isMultiDevice", false);
+            json.writeStringField("password", "password");
+            json.writeNullField("registrationLockPin");
+            json.writeStringField("signalingKey", "signalingKey");
+            json.writeNumberField("preKeyIdOffset", 0);
+            json.writeNumberField("nextSignedPreKeyId", 0);
+            json.writeFieldName("profileKey");
+            json.writeBinary(new byte[32]);
+            json.writeBooleanField("registered", true);
+            json.writeObjectFieldStart("axolotlStore");
+            json.writeArrayFieldStart("preKeys");
+            json.writeEndArray();
+            json.writeArrayFieldStart("sessionStore");
+            byte[] record = new byte[SESSION_RECORD_SIZE];
+            for (int i = 0; i < sessions; i++) {
+                random.nextBytes(record);
+                json.writeStartObject();
+                json.writeStringField("name", getNumber(i));
+                json.writeNumberField("deviceId", 1);
+                json.writeFieldName("record");
+                json.writeBinary(record);
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeArrayFieldStart("signedPreKeyStore");
+            json.writeEndArray();
+            json.writeObjectFieldStart("identityKeyStore");
+            json.writeNumberField("registrationId", 1);
+            json.writeFieldName("identityKey");
+            json.writeBinary(identityKeyPair.serialize());
+            json.writeArrayFieldStart("trustedKeys");
+            byte[] contactIdentityKey = contactIdentityKeyPair.getPublicKey().serialize();
+            for (int i = 0; i < contacts; i++) {
+                json.writeStartObject();
+                json.writeStringField("name", getNumber(i));
+                json.writeFieldName("identityKey");
+                json.writeBinary(contactIdentityKey);
+                json.writeNumberField("trustLevel", 0);
+                json.writeNumberField("addedTimestamp", 1500000000000L);
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeEndObject();
+            json.writeObjectFieldStart("contactStore");
+            json.writeArrayFieldStart("contacts");
+            byte[] profileKey = new byte[32];
+            for (int i = 0; i < contacts; i++) {
+                random.nextBytes(profileKey);
+                json.writeStartObject();
+                json.writeStringField("name", "Contact " + i);
+                json.writeStringField("number", getNumber(i));
+                json.writeFieldName("profileKey");
+                json.writeBinary(profileKey);
+                json.writeBooleanField("blocked", false);
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeObjectFieldStart("threadStore");
+            json.writeArrayFieldStart("threads");
+            for (int i = 0; i < contacts; i++) {
+                json.writeStartObject();
+                json.writeStringField("id", getNumber(i));
+                json.writeNumberField("messageExpirationTime", 0);
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+    }
+
+    private static String getNumber(int i) {
+        return "+49" + (100000000 + i);
+    }
+
+    static void delete(File dataPath) {
+        File[] files = dataPath.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    delete(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        dataPath.delete();
+    }
+}
@@ -0,0 +1,79 @@
+package org.asamk.signal.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load time and peak heap usage of loading an account file with many sessions.
+ * Uses the same minimal initial heap as the systemd service file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xms2m")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SignalAccountLoadBenchmark {
+
+    @Param({"10000", "100000"})
+    public int sessions;
+
+    private File dataPath;
+    private long peakHeapUsage;
+
+    @Setup(Level.Trial)
+    public void createAccountFile() throws IOException {
+        dataPath = Files.createTempDirectory("signal-account-benchmark").toFile();
+        BenchmarkAccounts.createAccountFile(dataPath, sessions);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetPeakHeapUsage() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        peakHeapUsage = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportPeakHeapUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeapUsage += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.println(String.format("peak heap usage: %d MB", peakHeapUsage / (1024 * 1024)));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteAccountFile() {
+        BenchmarkAccounts.delete(dataPath);
+    }
+
+    @Benchmark
+    public SignalAccount load() throws IOException {
+        SignalAccount account = SignalAccount.load(dataPath.getPath(), BenchmarkAccounts.USERNAME, new StorageConfig());
+        account.close();
+        return account;
+    }
+}
@@ -0,0 +1,61 @@
+package org.asamk.signal.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and allocation of a full save of a large account, run with "-prof gc" to see the allocation per save.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xms2m")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SignalAccountSaveBenchmark {
+
+    @Param({"10000", "100000"})
+    public int sessions;
+
+    @Param({"false", "true"})
+    public boolean prettyPrint;
+
+    private File dataPath;
+    private SignalAccount account;
+
+    @Setup(Level.Trial)
+    public void loadAccount() throws IOException {
+        dataPath = Files.createTempDirectory("signal-account-benchmark").toFile();
+        BenchmarkAccounts.createAccountFile(dataPath, sessions);
+        StorageConfig storageConfig = new StorageConfig();
+        storageConfig.setPrettyPrintEnabled(prettyPrint);
+        account = SignalAccount.load(dataPath.getPath(), BenchmarkAccounts.USERNAME, storageConfig);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteAccount() throws IOException {
+        account.close();
+        BenchmarkAccounts.delete(dataPath);
+    }
+
+    @Benchmark
+    public void save() {
+        account.save();
+    }
+}
@@ -0,0 +1,72 @@
+package org.asamk.signal.storage.groups;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.util.Base64;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup of a group by the raw id of a received message, with the previous base64 key and with {@link GroupId}.
+ * Both allocate a key and hash it for every lookup, groupId only saves the base64 encoding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class GroupLookupBenchmark {
+
+    @Param({"10", "1000"})
+    public int groups;
+
+    private Map<String, byte[]> base64Groups;
+    private Map<GroupId, byte[]> groupIdGroups;
+    private byte[][] ids;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void createGroups() {
+        Random random = new Random(0);
+        base64Groups = new HashMap<>();
+        groupIdGroups = new HashMap<>();
+        ids = new byte[groups][];
+        for (int i = 0; i < groups; i++) {
+            byte[] id = new byte[16];
+            random.nextBytes(id);
+            base64Groups.put(Base64.encodeBytes(id), id);
+            groupIdGroups.put(GroupId.of(id), id);
+            // Received messages carry their own copy of the id
+            ids[i] = id.clone();
+        }
+    }
+
+    private byte[] nextId() {
+        next = (next + 1) % ids.length;
+        return ids[next];
+    }
+
+    @Benchmark
+    public byte[] base64() {
+        return base64Groups.get(Base64.encodeBytes(nextId()));
+    }
+
+    @Benchmark
+    public byte[] groupId() {
+        return groupIdGroups.get(GroupId.of(nextId()));
+    }
+}
@@ -0,0 +1,85 @@
+package org.asamk.signal.storage.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the per recipient session lookups done on every send, which should not depend on the total number of
+ * sessions, and of the load and store round trip done for every message of a conversation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SessionStoreBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int sessions;
+
+    @Param({"0", "100"})
+    public int cacheSize;
+
+    private JsonSessionStore sessionStore;
+    private String[] names;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void createSessions() {
+        sessionStore = new JsonSessionStore();
+        sessionStore.setCacheSize(cacheSize);
+        names = new String[sessions];
+        SessionRecord record = new SessionRecord();
+        for (int i = 0; i < sessions; i++) {
+            names[i] = "+49" + (100000000 + i);
+            sessionStore.storeSession(new SignalProtocolAddress(names[i], 1), record);
+            if (i % 10 == 0) {
+                // Some users have linked devices
+                sessionStore.storeSession(new SignalProtocolAddress(names[i], 2), record);
+            }
+        }
+    }
+
+    private String nextName() {
+        next = (next + 7919) % names.length;
+        return names[next];
+    }
+
+    @Benchmark
+    public List<Integer> getSubDeviceSessions() {
+        return sessionStore.getSubDeviceSessions(nextName());
+    }
+
+    @Benchmark
+    public boolean containsSession() {
+        return sessionStore.containsSession(new SignalProtocolAddress(nextName(), 1));
+    }
+
+    /**
+     * A message in one of ten active conversations, like encrypt and decrypt do.
+     */
+    @Benchmark
+    public SessionRecord loadAndStoreSession() {
+        next = (next + 1) % 10;
+        SignalProtocolAddress address = new SignalProtocolAddress(names[next], 1);
+        SessionRecord record = sessionStore.loadSession(address);
+        sessionStore.storeSession(address, record);
+        return record;
+    }
+}
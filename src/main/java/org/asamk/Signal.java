@@ -77,6 +77,26 @@ public interface Signal extends DBusInterface {
         }
     }
 
+    class AttachmentDownloaded extends DBusSignal {
+
+        private long attachmentId;
+        private String file;
+
+        public AttachmentDownloaded(String objectpath, long attachmentId, String file) throws DBusException {
+            super(objectpath, attachmentId, file);
+            this.attachmentId = attachmentId;
+            this.file = file;
+        }
+
+        public long getAttachmentId() {
+            return attachmentId;
+        }
+
+        public String getFile() {
+            return file;
+        }
+    }
+
     class ReceiptReceived extends DBusSignal {
 
         private long timestamp;
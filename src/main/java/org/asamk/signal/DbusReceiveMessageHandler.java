@@ -2,9 +2,12 @@ package org.asamk.signal;
 
 import org.asamk.signal.manager.Manager;
 import org.freedesktop.dbus.DBusConnection;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
 import org.whispersystems.signalservice.api.messages.SignalServiceContent;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 
+import java.io.File;
+
 public class DbusReceiveMessageHandler extends ReceiveMessageHandler {
 
     private final DBusConnection conn;
@@ -22,4 +25,11 @@ public class DbusReceiveMessageHandler extends ReceiveMessageHandler {
 
         JsonDbusReceiveMessageHandler.sendReceivedMessageToDbus(envelope, content, conn, objectPath, m);
     }
+
+    @Override
+    public void handleAttachmentDownload(SignalServiceAttachmentPointer pointer, File file, Throwable exception) {
+        super.handleAttachmentDownload(pointer, file, exception);
+
+        JsonDbusReceiveMessageHandler.sendAttachmentDownloadToDbus(pointer, file, conn, objectPath);
+    }
 }
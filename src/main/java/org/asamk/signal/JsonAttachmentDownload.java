@@ -0,0 +1,18 @@
+package org.asamk.signal;
+
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
+
+import java.io.File;
+
+class JsonAttachmentDownload {
+
+    String id;
+    String file;
+
+    JsonAttachmentDownload(SignalServiceAttachmentPointer pointer, File file) {
+        this.id = String.valueOf(pointer.getId());
+        if (file != null) {
+            this.file = file.getAbsolutePath();
+        }
+    }
+}
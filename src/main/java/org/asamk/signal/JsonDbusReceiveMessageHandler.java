@@ -5,11 +5,13 @@ import org.asamk.signal.manager.Manager;
 import org.freedesktop.dbus.DBusConnection;
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
 import org.whispersystems.signalservice.api.messages.SignalServiceContent;
 import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 import org.whispersystems.signalservice.api.messages.SignalServiceGroup;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -66,10 +68,28 @@ public class JsonDbusReceiveMessageHandler extends JsonReceiveMessageHandler {
         }
     }
 
+    static void sendAttachmentDownloadToDbus(SignalServiceAttachmentPointer pointer, File file, DBusConnection conn, final String objectPath) {
+        if (file == null) {
+            return;
+        }
+        try {
+            conn.sendSignal(new Signal.AttachmentDownloaded(objectPath, pointer.getId(), file.getAbsolutePath()));
+        } catch (DBusException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public void handleMessage(SignalServiceEnvelope envelope, SignalServiceContent content, Throwable exception) {
         super.handleMessage(envelope, content, exception);
 
         sendReceivedMessageToDbus(envelope, content, conn, objectPath, m);
     }
+
+    @Override
+    public void handleAttachmentDownload(SignalServiceAttachmentPointer pointer, File file, Throwable exception) {
+        super.handleAttachmentDownload(pointer, file, exception);
+
+        sendAttachmentDownloadToDbus(pointer, file, conn, objectPath);
+    }
 }
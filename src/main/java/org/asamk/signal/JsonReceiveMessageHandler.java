@@ -9,9 +9,11 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import org.asamk.signal.manager.Manager;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
 import org.whispersystems.signalservice.api.messages.SignalServiceContent;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 
+import java.io.File;
 import java.io.IOException;
 
 public class JsonReceiveMessageHandler implements Manager.ReceiveMessageHandler {
@@ -37,6 +39,20 @@ public class JsonReceiveMessageHandler implements Manager.ReceiveMessageHandler
         if (envelope != null) {
             result.putPOJO("envelope", new JsonMessageEnvelope(envelope, content));
         }
+        write(result);
+    }
+
+    @Override
+    public void handleAttachmentDownload(SignalServiceAttachmentPointer pointer, File file, Throwable exception) {
+        ObjectNode result = jsonProcessor.createObjectNode();
+        if (exception != null) {
+            result.putPOJO("error", new JsonError(exception));
+        }
+        result.putPOJO("attachmentDownload", new JsonAttachmentDownload(pointer, file));
+        write(result);
+    }
+
+    private void write(ObjectNode result) {
         try {
             jsonProcessor.writeValue(System.out, result);
             System.out.println();
@@ -33,6 +33,7 @@ import org.asamk.signal.commands.ExtendedDbusCommand;
 import org.asamk.signal.commands.LocalCommand;
 import org.asamk.signal.manager.BaseConfig;
 import org.asamk.signal.manager.Manager;
+import org.asamk.signal.storage.StorageConfig;
 import org.asamk.signal.util.IOUtils;
 import org.asamk.signal.util.SecurityProvider;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -42,8 +43,10 @@ import org.whispersystems.signalservice.api.util.PhoneNumberFormatter;
 
 import java.io.File;
 import java.security.Security;
+import java.util.Locale;
 import java.util.Map;
 
+import static org.asamk.signal.util.LogUtils.debug;
 import static org.whispersystems.signalservice.internal.util.Util.isEmpty;
 
 public class Main {
@@ -101,7 +104,18 @@ public class Main {
                     dataPath = getDefaultDataPath();
                 }
 
-                m = new Manager(username, dataPath);
+                StorageConfig storageConfig = new StorageConfig();
+                storageConfig.setStorageType(StorageConfig.StorageType.valueOf(ns.getString("storage").toUpperCase(Locale.ROOT)));
+                storageConfig.setJournalEnabled(ns.getBoolean("journal"));
+                storageConfig.setPrettyPrintEnabled(ns.getBoolean("pretty_print"));
+                storageConfig.setFsyncPolicy(StorageConfig.FsyncPolicy.valueOf(ns.getString("fsync").toUpperCase(Locale.ROOT)));
+                storageConfig.setFsyncInterval(ns.getLong("fsync_interval"));
+                storageConfig.setSessionCacheSize(ns.getInt("session_cache_size"));
+                reportFsyncPolicy(storageConfig);
+
+                m = new Manager(username, dataPath, storageConfig);
+                m.setPreKeyBatchSize(ns.getInt("prekey_batch_size"));
+                m.setReceiveQueueSize(ns.getInt("receive_queue_size"));
                 ts = m;
                 try {
                     m.init();
@@ -170,6 +184,20 @@ public class Main {
         return dataPath;
     }
 
+    private static void reportFsyncPolicy(StorageConfig storageConfig) {
+        switch (storageConfig.getFsyncPolicy()) {
+            case ALWAYS:
+                debug("fsync policy: always");
+                break;
+            case INTERVAL:
+                System.err.println(String.format("Syncing account data to disk at most every %d ms, a system crash may lose the changes since the last sync.", storageConfig.getFsyncInterval()));
+                break;
+            case NEVER:
+                System.err.println("Not syncing account data to disk, a system crash may lose recent changes.");
+                break;
+        }
+    }
+
     private static Namespace parseArgs(String[] args) {
         ArgumentParser parser = ArgumentParsers.newFor("signal-cli")
                 .build()
@@ -183,6 +211,37 @@ public class Main {
         parser.addArgument("--config")
                 .help("Set the path, where to store the config (Default: $XDG_DATA_HOME/signal-cli , $HOME/.local/share/signal-cli).");
 
+        parser.addArgument("--storage")
+                .help("Choose how the account state is stored: in a single account file (json), with a separate file for each store (split) or in an embedded database (db).")
+                .choices("json", "split", "db")
+                .setDefault("json");
+        parser.addArgument("--journal")
+                .help("Append changes to a journal file next to the account file, instead of rewriting the whole account file on every change.")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--pretty-print")
+                .help("Write the account files with indentation, to make them easier to read.")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--fsync")
+                .help("Choose when saved account data is synced to disk: on every save (always), once per fsync interval (interval) or never.")
+                .choices("always", "interval", "never")
+                .setDefault("always");
+        parser.addArgument("--fsync-interval")
+                .type(long.class)
+                .help("Time in milliseconds between two syncs with --fsync interval (Default: 1000).")
+                .setDefault(1000L);
+        parser.addArgument("--prekey-batch-size")
+                .type(int.class)
+                .help("Number of one-time prekeys generated and uploaded at once, when registering, linking or when the prekeys on the server run low (Default: 100).")
+                .setDefault(100);
+        parser.addArgument("--receive-queue-size")
+                .type(int.class)
+                .help("Number of received messages that may wait in front of each receive stage, before reading from the server pauses (Default: 100).")
+                .setDefault(100);
+        parser.addArgument("--session-cache-size")
+                .type(int.class)
+                .help("Number of recently used sessions that are kept deserialized in memory, 0 disables the cache (Default: 100).")
+                .setDefault(100);
+
         MutuallyExclusiveGroup mut = parser.addMutuallyExclusiveGroup();
         mut.addArgument("-u", "--username")
                 .help("Specify your phone number, that will be used for verification.");
@@ -234,6 +293,10 @@ public class Main {
             System.err.println("You cannot specify recipients by phone number and groups at the same time");
             System.exit(2);
         }
+        if (ns.getBoolean("journal") && "db".equals(ns.getString("storage"))) {
+            System.err.println("You cannot use a journal with the db storage, it already saves every change individually");
+            System.exit(2);
+        }
         return ns;
     }
 }
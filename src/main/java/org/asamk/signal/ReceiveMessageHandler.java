@@ -337,6 +337,15 @@ public class ReceiveMessageHandler implements Manager.ReceiveMessageHandler {
         }
     }
 
+    @Override
+    public void handleAttachmentDownload(SignalServiceAttachmentPointer pointer, File file, Throwable exception) {
+        // Failed downloads are already reported on stderr
+        if (file != null) {
+            System.out.println("Attachment " + pointer.getId() + " stored plaintext in: " + file);
+            System.out.println();
+        }
+    }
+
     private void printAttachment(SignalServiceAttachment attachment) {
         System.out.println("- " + attachment.getContentType() + " (" + (attachment.isPointer() ? "Pointer" : "") + (attachment.isStream() ? "Stream" : "") + ")");
         if (attachment.isPointer()) {
@@ -30,6 +30,21 @@ public class DaemonCommand implements LocalCommand {
         subparser.addArgument("--json")
                 .help("Output received messages in json format, one json object per line.")
                 .action(Arguments.storeTrue());
+        subparser.addArgument("--max-save-delay")
+                .type(long.class)
+                .help("Combine saves of the account state and write changes at most this many milliseconds after they happened. By default every change is saved immediately. Requires --journal.");
+        subparser.addArgument("--max-pending-saves")
+                .type(int.class)
+                .setDefault(100)
+                .help("Write combined saves immediately, once this many changes are pending.");
+        subparser.addArgument("--prekey-check-interval")
+                .type(long.class)
+                .setDefault(60L)
+                .help("Check every this many minutes if enough prekeys are left on the server and upload new ones if needed.");
+        subparser.addArgument("--signed-prekey-rotation-interval")
+                .type(long.class)
+                .setDefault(48L)
+                .help("Upload a new signed prekey once the current one is this many hours old.");
     }
 
     @Override
@@ -58,6 +73,10 @@ public class DaemonCommand implements LocalCommand {
                 return 2;
             }
             boolean ignoreAttachments = ns.getBoolean("ignore_attachments");
+            if (ns.getLong("max_save_delay") != null) {
+                m.enableCoalescedSaves(ns.getLong("max_save_delay"), ns.getInt("max_pending_saves"));
+            }
+            m.enablePreKeyRefresh(TimeUnit.MINUTES.toMillis(ns.getLong("prekey_check_interval")), TimeUnit.HOURS.toMillis(ns.getLong("signed_prekey_rotation_interval")));
             try {
                 m.receiveMessages(1, TimeUnit.HOURS, false, ignoreAttachments, ns.getBoolean("json") ? new JsonDbusReceiveMessageHandler(m, conn, SIGNAL_OBJECTPATH) : new DbusReceiveMessageHandler(m, conn, SIGNAL_OBJECTPATH));
                 return 0;
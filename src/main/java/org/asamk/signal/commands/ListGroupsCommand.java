@@ -15,7 +15,7 @@ public class ListGroupsCommand implements LocalCommand {
     private static void printGroup(GroupInfo group, boolean detailed) {
         if (detailed) {
             System.out.println(String.format("Id: %s Name: %s  Active: %s Blocked: %b Members: %s",
-                    Base64.encodeBytes(group.groupId), group.name, group.active, group.blocked, group.members));
+                    Base64.encodeBytes(group.groupId), group.name, group.active, group.blocked, group.getMemberNumbers()));
         } else {
             System.out.println(String.format("Id: %s Name: %s  Active: %s Blocked: %b",
                     Base64.encodeBytes(group.groupId), group.name, group.active, group.blocked));
@@ -0,0 +1,45 @@
+package org.asamk.signal.commands;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+
+import org.asamk.signal.manager.Manager;
+import org.asamk.signal.storage.protocol.PreKeyStatistics;
+
+import java.util.concurrent.TimeUnit;
+
+public class PreKeyStatusCommand implements LocalCommand {
+
+    @Override
+    public void attachToSubparser(final Subparser subparser) {
+        subparser.help("Show the number of stored one-time prekeys in each state and their age.");
+    }
+
+    @Override
+    public int handleCommand(final Namespace ns, final Manager m) {
+        if (!m.isRegistered()) {
+            System.err.println("User is not registered.");
+            return 1;
+        }
+        PreKeyStatistics statistics = m.getPreKeyStatistics();
+        System.out.println("One-time prekeys:");
+        System.out.println(" Generated, not uploaded: " + statistics.getGenerated());
+        System.out.println(" Uploaded: " + statistics.getUploaded());
+        System.out.println(" Replaced by a newer upload: " + statistics.getSuperseded());
+        System.out.println(" Used by received messages: " + statistics.getConsumed());
+        System.out.println("Age of unused prekeys:");
+        int[] ageBuckets = statistics.getAgeBuckets();
+        long lowerLimit = 0;
+        for (int i = 0; i < ageBuckets.length; i++) {
+            if (i < PreKeyStatistics.AGE_BUCKET_LIMITS.length) {
+                long upperLimit = PreKeyStatistics.AGE_BUCKET_LIMITS[i];
+                System.out.println(String.format(" %d to %d days: %d", TimeUnit.MILLISECONDS.toDays(lowerLimit), TimeUnit.MILLISECONDS.toDays(upperLimit), ageBuckets[i]));
+                lowerLimit = upperLimit;
+            } else {
+                System.out.println(String.format(" %d days or more: %d", TimeUnit.MILLISECONDS.toDays(lowerLimit), ageBuckets[i]));
+            }
+        }
+        System.out.println(" Unknown: " + statistics.getUnknownAge());
+        return 0;
+    }
+}
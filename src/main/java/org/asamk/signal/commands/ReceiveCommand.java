@@ -32,6 +32,13 @@ public class ReceiveCommand implements ExtendedDbusCommand, LocalCommand {
         subparser.addArgument("--json")
                 .help("Output received messages in json format, one json object per line.")
                 .action(Arguments.storeTrue());
+        subparser.addArgument("--max-save-delay")
+                .type(long.class)
+                .help("Combine saves of the account state and write changes at most this many milliseconds after they happened. By default every change is saved immediately. Requires --journal.");
+        subparser.addArgument("--max-pending-saves")
+                .type(int.class)
+                .setDefault(100)
+                .help("Write combined saves immediately, once this many changes are pending.");
     }
 
     public int handleCommand(final Namespace ns, final Signal signal, DBusConnection dbusconnection) {
@@ -96,6 +103,9 @@ public class ReceiveCommand implements ExtendedDbusCommand, LocalCommand {
             timeout = 3600;
         }
         boolean ignoreAttachments = ns.getBoolean("ignore_attachments");
+        if (ns.getLong("max_save_delay") != null) {
+            m.enableCoalescedSaves(ns.getLong("max_save_delay"), ns.getInt("max_pending_saves"));
+        }
         try {
             final Manager.ReceiveMessageHandler handler = ns.getBoolean("json") ? new JsonReceiveMessageHandler(m) : new ReceiveMessageHandler(m);
             m.receiveMessages((long) (timeout * 1000), TimeUnit.MILLISECONDS, returnOnTimeout, ignoreAttachments, handler);
@@ -0,0 +1,225 @@
+package org.asamk.signal.manager;
+
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads attachments on a fixed number of threads, so receiving messages doesn't wait for the CDN.
+ * Smaller attachments are downloaded first. All attachments are fetched from the same CDN, so the number of threads
+ * also limits the concurrent requests to it.
+ * Downloads failing with an IOException are retried with an increasing delay, other failures are reported right away.
+ */
+class AttachmentDownloader {
+
+    interface Listener {
+
+        /**
+         * Called on a download thread, when the attachment is stored or all attempts failed.
+         *
+         * @param file      The stored attachment, null if the download failed
+         * @param exception The cause of the last failed attempt, null if the download succeeded
+         */
+        void onDownloadFinished(SignalServiceAttachmentPointer pointer, File file, Exception exception);
+    }
+
+    /**
+     * A single attachment download, the attachment is fetched and stored by {@link #download()}.
+     */
+    abstract static class Download {
+
+        final SignalServiceAttachmentPointer pointer;
+        private final int size;
+        private long sequence;
+        private int attempts;
+
+        Download(SignalServiceAttachmentPointer pointer) {
+            this.pointer = pointer;
+            // Attachments of unknown size may be large, they are downloaded last
+            this.size = pointer.getSize().isPresent() ? pointer.getSize().get() : Integer.MAX_VALUE;
+        }
+
+        /**
+         * @return the stored attachment, null if it couldn't be written
+         */
+        abstract File download() throws IOException, InvalidMessageException;
+    }
+
+    private static final Comparator<Download> SMALLEST_FIRST = new Comparator<Download>() {
+        @Override
+        public int compare(Download a, Download b) {
+            if (a.size != b.size) {
+                return a.size < b.size ? -1 : 1;
+            }
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private final int maxAttempts;
+    private final long retryDelay;
+    private final Listener listener;
+
+    private final TreeSet<Download> pending = new TreeSet<>(SMALLEST_FIRST);
+    private final List<Thread> threads;
+    private final ScheduledExecutorService retryTimer;
+
+    private long nextSequence;
+    private int activeDownloads;
+    private int waitingRetries;
+    private boolean shutdown;
+
+    /**
+     * @param maxAttempts Number of attempts, before a download is given up
+     * @param retryDelay  Time in milliseconds before the first retry, doubled for every further retry
+     */
+    AttachmentDownloader(int threadCount, int maxAttempts, long retryDelay, Listener listener) {
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+        this.listener = listener;
+        this.retryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "signal-attachment-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.threads = new ArrayList<>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Worker(), "signal-attachment-download-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    synchronized void submit(Download download) {
+        if (shutdown) {
+            throw new IllegalStateException("Attachment downloader is shut down");
+        }
+        enqueue(download);
+    }
+
+    private void enqueue(Download download) {
+        download.sequence = nextSequence++;
+        pending.add(download);
+        notifyAll();
+    }
+
+    /**
+     * @return the number of downloads waiting for a thread or for their next attempt
+     */
+    synchronized int getPendingCount() {
+        return pending.size() + waitingRetries;
+    }
+
+    /**
+     * Finishes all submitted downloads, including their retries, and waits until all threads have finished.
+     */
+    void shutdown() throws InterruptedException {
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        retryTimer.shutdown();
+    }
+
+    /**
+     * @return the smallest pending download, null if there is none
+     */
+    private Download takeNext() {
+        Download download = pending.pollFirst();
+        if (download != null) {
+            activeDownloads++;
+        }
+        return download;
+    }
+
+    private synchronized void finished() {
+        activeDownloads--;
+        notifyAll();
+    }
+
+    private synchronized void scheduleRetry(final Download download) {
+        waitingRetries++;
+        long delay = retryDelay << (download.attempts - 1);
+        retryTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (AttachmentDownloader.this) {
+                    waitingRetries--;
+                    enqueue(download);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void run(Download download) {
+        download.attempts++;
+        File file = null;
+        Exception exception = null;
+        try {
+            file = download.download();
+            if (file == null) {
+                exception = new IOException("Failed to store attachment");
+            }
+        } catch (IOException e) {
+            if (download.attempts < maxAttempts) {
+                // Scheduled before the download is finished, so a shutdown waits for the retry
+                scheduleRetry(download);
+                return;
+            }
+            exception = e;
+        } catch (InvalidMessageException | RuntimeException e) {
+            // Not retried, e.g. a malformed pointer fails again
+            exception = e;
+        } finally {
+            finished();
+        }
+        listener.onDownloadFinished(download.pointer, file, exception);
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                Download download;
+                synchronized (AttachmentDownloader.this) {
+                    while ((download = takeNext()) == null) {
+                        if (shutdown && pending.isEmpty() && activeDownloads == 0 && waitingRetries == 0) {
+                            return;
+                        }
+                        try {
+                            AttachmentDownloader.this.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                try {
+                    AttachmentDownloader.this.run(download);
+                } catch (Throwable e) {
+                    // e.g. an error thrown by the listener. Keeps the thread running, otherwise the remaining
+                    // downloads and the shutdown would wait for it
+                    System.err.println("Failed to download attachment (" + download.pointer.getId() + "): " + e);
+                }
+            }
+        }
+    }
+}
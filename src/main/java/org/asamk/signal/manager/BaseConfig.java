@@ -15,7 +15,15 @@ public class BaseConfig {
     public final static String UNIDENTIFIED_SENDER_TRUST_ROOT = "BXu6QIKVz5MA8gstzfOgRQGqyLqOwNKHL6INkv3IHWMF";
     final static int PREKEY_MINIMUM_COUNT = 20;
     final static int PREKEY_BATCH_SIZE = 100;
+    final static int PREKEY_CONSUMED_CHECK_COUNT = 10;
+    final static long SIGNED_PREKEY_ARCHIVE_AGE = 30L * 24 * 60 * 60 * 1000;
+    final static int RECEIVE_QUEUE_SIZE = 100;
+    final static long MESSAGE_LOG_SEGMENT_SIZE = 4 * 1024 * 1024;
     final static int MAX_ATTACHMENT_SIZE = 150 * 1024 * 1024;
+    final static int ATTACHMENT_BUFFER_SIZE = 64 * 1024;
+    final static int ATTACHMENT_DOWNLOAD_THREADS = 4;
+    final static int ATTACHMENT_DOWNLOAD_ATTEMPTS = 3;
+    final static long ATTACHMENT_DOWNLOAD_RETRY_DELAY = 1000;
 
     private final static String URL = "https://textsecure-service.whispersystems.org";
     private final static String CDN_URL = "https://cdn.signal.org";
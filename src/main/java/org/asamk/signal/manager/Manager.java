@@ -23,10 +23,14 @@ import org.asamk.signal.NotAGroupMemberException;
 import org.asamk.signal.TrustLevel;
 import org.asamk.signal.UserAlreadyExists;
 import org.asamk.signal.storage.SignalAccount;
+import org.asamk.signal.storage.StorageConfig;
 import org.asamk.signal.storage.contacts.ContactInfo;
+import org.asamk.signal.storage.groups.GroupId;
 import org.asamk.signal.storage.groups.GroupInfo;
 import org.asamk.signal.storage.groups.JsonGroupStore;
 import org.asamk.signal.storage.protocol.JsonIdentityKeyStore;
+import org.asamk.signal.storage.protocol.JsonSignalProtocolStore;
+import org.asamk.signal.storage.protocol.PreKeyStatistics;
 import org.asamk.signal.storage.threads.ThreadInfo;
 import org.asamk.signal.util.IOUtils;
 import org.asamk.signal.util.Util;
@@ -52,7 +56,6 @@ import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.util.KeyHelper;
-import org.whispersystems.libsignal.util.Medium;
 import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.SignalServiceAccountManager;
@@ -113,6 +116,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -124,13 +128,17 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import static org.asamk.signal.util.LogUtils.debug;
+
 public class Manager implements Signal {
 
     private final String settingsPath;
     private final String dataPath;
     private final String attachmentsPath;
     private final String avatarsPath;
+    private final StorageConfig storageConfig;
     private final SleepTimer timer = new UptimeSleepTimer();
+    private int preKeyBatchSize = BaseConfig.PREKEY_BATCH_SIZE;
 
     public SignalAccount getAccount() {
         return account;
@@ -142,8 +150,37 @@ public class Manager implements Signal {
     private SignalServiceMessagePipe messagePipe = null;
     private SignalServiceMessagePipe unidentifiedMessagePipe = null;
 
+    /**
+     * Held while changing contacts, groups and threads, so there is a single writer of the account state at a time.
+     * The stored entries may only be changed with this lock held, other readers use the store snapshots.
+     * Also held while prekey ids are assigned, so the prekey refresher and the main thread never use the same ids.
+     */
+    private final Object stateLock = new Object();
+
+    /**
+     * Minimum time in milliseconds between two debug reports of the receive queue depths
+     */
+    private static final long RECEIVE_QUEUE_DEPTH_REPORT_INTERVAL = 1000;
+
+    private int receiveQueueSize = BaseConfig.RECEIVE_QUEUE_SIZE;
+
+    /**
+     * Stages of the running receive loop, null if no messages are received
+     */
+    private volatile ReceivePipeline receivePipeline;
+
+    /**
+     * Downloads the attachments of received messages, null if no messages are received
+     */
+    private volatile AttachmentDownloader attachmentDownloader;
+
     public Manager(String username, String settingsPath) {
+        this(username, settingsPath, new StorageConfig());
+    }
+
+    public Manager(String username, String settingsPath, StorageConfig storageConfig) {
         this.username = username;
+        this.storageConfig = storageConfig;
         this.settingsPath = settingsPath;
         this.dataPath = this.settingsPath + "/data";
         this.attachmentsPath = this.settingsPath + "/attachments";
@@ -151,6 +188,21 @@ public class Manager implements Signal {
 
     }
 
+    /**
+     * Sets the number of one-time prekeys generated and uploaded at once.
+     */
+    public void setPreKeyBatchSize(int preKeyBatchSize) {
+        this.preKeyBatchSize = preKeyBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of received messages waiting in front of each receive stage thread. A full queue stops
+     * reading from the server until the stage catches up.
+     */
+    public void setReceiveQueueSize(int receiveQueueSize) {
+        this.receiveQueueSize = receiveQueueSize;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -175,14 +227,8 @@ public class Manager implements Signal {
         return this.dataPath + "/" + username + ".d/msg-cache";
     }
 
-    private String getMessageCachePath(String sender) {
-        return getMessageCachePath() + "/" + sender.replace("/", "_");
-    }
-
-    private File getMessageCacheFile(String sender, long now, long timestamp) throws IOException {
-        String cachePath = getMessageCachePath(sender);
-        IOUtils.createPrivateDirectories(cachePath);
-        return new File(cachePath + "/" + now + "_" + timestamp);
+    private File getMessageLogPath() {
+        return new File(this.dataPath + "/" + username + ".d/msg-log");
     }
 
     public boolean userHasKeys() {
@@ -193,15 +239,14 @@ public class Manager implements Signal {
         if (!SignalAccount.userExists(dataPath, username)) {
             return;
         }
-        account = SignalAccount.load(dataPath, username);
+        account = SignalAccount.load(dataPath, username, storageConfig);
 
         migrateLegacyConfigs();
 
         accountManager = getSignalServiceAccountManager();
         try {
-            if (account.isRegistered() && accountManager.getPreKeysCount() < BaseConfig.PREKEY_MINIMUM_COUNT) {
-                refreshPreKeys();
-                account.save();
+            if (account.isRegistered()) {
+                refreshPreKeysIfNeeded();
             }
         } catch (AuthorizationFailedException e) {
             System.err.println("Authorization failed, was the number registered elsewhere?");
@@ -209,6 +254,39 @@ public class Manager implements Signal {
         }
     }
 
+    /**
+     * Combine account saves into background writes, for long running receive loops.
+     *
+     * @param maxDelay   Maximum time in milliseconds a change may stay unsaved
+     * @param maxPending Maximum number of save requests combined into one write
+     */
+    public void enableCoalescedSaves(long maxDelay, int maxPending) {
+        account.enableCoalescedSaves(maxDelay, maxPending);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                account.flushPendingSaves();
+            }
+        });
+    }
+
+    /**
+     * Check the prekeys in the background, for long running receive loops.
+     *
+     * @param checkInterval                Time in milliseconds between two checks of the prekey count on the server
+     * @param signedPreKeyRotationInterval Age in milliseconds after which a new signed prekey is uploaded
+     */
+    public void enablePreKeyRefresh(long checkInterval, long signedPreKeyRotationInterval) {
+        final PreKeyRefresher preKeyRefresher = new PreKeyRefresher(this, checkInterval, signedPreKeyRotationInterval);
+        account.getSignalProtocolStore().setPreKeyListener(new JsonSignalProtocolStore.PreKeyListener() {
+            @Override
+            public void onPreKeyRemoved(int preKeyId) {
+                preKeyRefresher.onPreKeyConsumed();
+            }
+        });
+        preKeyRefresher.start();
+    }
+
     private void migrateLegacyConfigs() {
         // Copy group avatars that were previously stored in the attachments folder
         // to the new avatar folder
@@ -242,7 +320,7 @@ public class Manager implements Signal {
             account = SignalAccount.createTemporaryAccount(identityKey, registrationId);
         } else {
             byte[] profileKey = KeyUtils.createProfileKey();
-            account = SignalAccount.create(dataPath, username, identityKey, registrationId, profileKey);
+            account = SignalAccount.create(dataPath, username, identityKey, registrationId, profileKey, storageConfig);
             account.save();
         }
     }
@@ -322,7 +400,7 @@ public class Manager implements Signal {
         if (profileKey == null) {
             profileKey = KeyUtils.createProfileKey();
         }
-        account = SignalAccount.createLinkedAccount(dataPath, username, account.getPassword(), ret.getDeviceId(), ret.getIdentity(), account.getSignalProtocolStore().getLocalRegistrationId(), account.getSignalingKey(), profileKey);
+        account = SignalAccount.createLinkedAccount(dataPath, username, account.getPassword(), ret.getDeviceId(), ret.getIdentity(), account.getSignalProtocolStore().getLocalRegistrationId(), account.getSignalingKey(), profileKey, storageConfig);
 
         refreshPreKeys();
 
@@ -364,18 +442,11 @@ public class Manager implements Signal {
     }
 
     private List<PreKeyRecord> generatePreKeys() {
-        List<PreKeyRecord> records = new ArrayList<>(BaseConfig.PREKEY_BATCH_SIZE);
-
-        final int offset = account.getPreKeyIdOffset();
-        for (int i = 0; i < BaseConfig.PREKEY_BATCH_SIZE; i++) {
-            int preKeyId = (offset + i) % Medium.MAX_VALUE;
-            ECKeyPair keyPair = Curve.generateKeyPair();
-            PreKeyRecord record = new PreKeyRecord(preKeyId, keyPair);
-
-            records.add(record);
+        List<PreKeyRecord> records;
+        synchronized (stateLock) {
+            records = PreKeyGenerator.generatePreKeys(account.getPreKeyIdOffset(), preKeyBatchSize);
+            account.addPreKeys(records);
         }
-
-        account.addPreKeys(records);
         account.save();
 
         return records;
@@ -385,9 +456,11 @@ public class Manager implements Signal {
         try {
             ECKeyPair keyPair = Curve.generateKeyPair();
             byte[] signature = Curve.calculateSignature(identityKeyPair.getPrivateKey(), keyPair.getPublicKey().serialize());
-            SignedPreKeyRecord record = new SignedPreKeyRecord(account.getNextSignedPreKeyId(), System.currentTimeMillis(), keyPair, signature);
-
-            account.addSignedPreKey(record);
+            SignedPreKeyRecord record;
+            synchronized (stateLock) {
+                record = new SignedPreKeyRecord(account.getNextSignedPreKeyId(), System.currentTimeMillis(), keyPair, signature);
+                account.addSignedPreKey(record);
+            }
             account.save();
 
             return record;
@@ -420,12 +493,80 @@ public class Manager implements Signal {
         account.save();
     }
 
+    /**
+     * Uploads a new batch of prekeys if the server is running low.
+     */
+    void refreshPreKeysIfNeeded() throws IOException {
+        boolean changed = account.getSignalProtocolStore().compactPreKeys() > 0;
+        int preKeysCount = accountManager.getPreKeysCount();
+        debug("%s prekeys left on the server", String.valueOf(preKeysCount));
+        if (preKeysCount < BaseConfig.PREKEY_MINIMUM_COUNT) {
+            refreshPreKeys();
+            changed = true;
+        }
+        if (changed) {
+            account.save();
+        }
+    }
+
+    /**
+     * Uploads a new signed prekey if the newest one is older than the rotation interval.
+     * Replaced signed prekeys are kept for a while, for messages that are still on their way.
+     */
+    void rotateSignedPreKeyIfNeeded(long rotationInterval) throws IOException {
+        long newestTimestamp = 0;
+        for (SignedPreKeyRecord record : account.getSignalProtocolStore().loadSignedPreKeys()) {
+            newestTimestamp = Math.max(newestTimestamp, record.getTimestamp());
+        }
+        boolean changed = false;
+        if (System.currentTimeMillis() - newestTimestamp >= rotationInterval) {
+            SignedPreKeyRecord record = generateSignedPreKey(account.getSignalProtocolStore().getIdentityKeyPair());
+            accountManager.setSignedPreKey(record);
+            debug("rotated signed prekey %s", String.valueOf(record.getId()));
+            changed = true;
+        }
+        if (removeOldSignedPreKeys(System.currentTimeMillis()) > 0) {
+            changed = true;
+        }
+        if (changed) {
+            account.save();
+        }
+    }
+
+    /**
+     * Removes the signed prekeys that were replaced longer than the archive age ago.
+     * The newest and the previous signed prekey are always kept.
+     *
+     * @return the number of removed signed prekeys
+     */
+    private int removeOldSignedPreKeys(long now) {
+        List<SignedPreKeyRecord> records = new ArrayList<>(account.getSignalProtocolStore().loadSignedPreKeys());
+        Collections.sort(records, new Comparator<SignedPreKeyRecord>() {
+            @Override
+            public int compare(SignedPreKeyRecord a, SignedPreKeyRecord b) {
+                return Long.compare(b.getTimestamp(), a.getTimestamp());
+            }
+        });
+        int removed = 0;
+        for (int i = 2; i < records.size(); i++) {
+            // A signed prekey is replaced when the next newer one is created
+            long replacedTimestamp = records.get(i - 1).getTimestamp();
+            if (now - replacedTimestamp > BaseConfig.SIGNED_PREKEY_ARCHIVE_AGE) {
+                account.getSignalProtocolStore().removeSignedPreKey(records.get(i).getId());
+                debug("removed old signed prekey %s", String.valueOf(records.get(i).getId()));
+                removed++;
+            }
+        }
+        return removed;
+    }
+
     private void refreshPreKeys() throws IOException {
         List<PreKeyRecord> oneTimePreKeys = generatePreKeys();
         final IdentityKeyPair identityKeyPair = account.getSignalProtocolStore().getIdentityKeyPair();
         SignedPreKeyRecord signedPreKeyRecord = generateSignedPreKey(identityKeyPair);
 
         accountManager.setPreKeys(getIdentity(), signedPreKeyRecord, oneTimePreKeys);
+        account.getSignalProtocolStore().markPreKeysUploaded(oneTimePreKeys);
     }
 
     private SignalServiceMessageReceiver getMessageReceiver() {
@@ -456,20 +597,31 @@ public class Manager implements Signal {
     }
 
     private GroupInfo getGroupForSending(byte[] groupId) throws GroupNotFoundException, NotAGroupMemberException {
-        GroupInfo g = account.getGroupStore().getGroup(groupId);
+        return requireGroupMember(groupId, getGroup(groupId));
+    }
+
+    /**
+     * Like {@link #getGroupForSending(byte[])}, but returns the stored group, which may be changed with the state lock held.
+     */
+    private GroupInfo getGroupForUpdate(byte[] groupId) throws GroupNotFoundException, NotAGroupMemberException {
+        return requireGroupMember(groupId, account.getGroupStore().getGroup(groupId));
+    }
+
+    private GroupInfo requireGroupMember(byte[] groupId, GroupInfo g) throws GroupNotFoundException, NotAGroupMemberException {
         if (g == null) {
             throw new GroupNotFoundException(groupId);
         }
-        for (String member : g.members) {
-            if (member.equals(this.username)) {
-                return g;
-            }
+        if (g.isMember(this.username)) {
+            return g;
         }
         throw new NotAGroupMemberException(groupId, g.name);
     }
 
+    /**
+     * @return the groups of the current snapshot, which must not be changed
+     */
     public List<GroupInfo> getGroups() {
-        return account.getGroupStore().getGroups();
+        return new ArrayList<>(account.getGroupStore().getSnapshot().values());
     }
 
     @Override
@@ -486,7 +638,7 @@ public class Manager implements Signal {
                     .build();
             messageBuilder.asGroupMessage(group);
         }
-        ThreadInfo thread = account.getThreadStore().getThread(Base64.encodeBytes(groupId));
+        ThreadInfo thread = account.getThreadStore().getGroupThread(groupId);
         if (thread != null) {
             messageBuilder.withExpiration(thread.messageExpirationTime);
         }
@@ -494,7 +646,7 @@ public class Manager implements Signal {
         final GroupInfo g = getGroupForSending(groupId);
 
         // Don't send group message to ourself
-        final List<String> membersSend = new ArrayList<>(g.members);
+        final List<String> membersSend = new ArrayList<>(g.getMemberNumbers());
         membersSend.remove(this.username);
         sendMessageLegacy(messageBuilder, membersSend);
     }
@@ -507,21 +659,43 @@ public class Manager implements Signal {
         SignalServiceDataMessage.Builder messageBuilder = SignalServiceDataMessage.newBuilder()
                 .asGroupMessage(group);
 
-        final GroupInfo g = getGroupForSending(groupId);
-        g.members.remove(this.username);
-        account.getGroupStore().updateGroup(g);
+        final List<String> membersSend;
+        synchronized (stateLock) {
+            final GroupInfo g = getGroupForUpdate(groupId);
+            g.removeMember(this.username);
+            account.getGroupStore().updateGroup(g);
+            membersSend = new ArrayList<>(g.getMemberNumbers());
+        }
 
-        sendMessageLegacy(messageBuilder, g.members);
+        sendMessageLegacy(messageBuilder, membersSend);
     }
 
     private byte[] sendUpdateGroupMessage(byte[] groupId, String name, Collection<String> members, String avatarFile) throws IOException, EncapsulatedExceptions, GroupNotFoundException, AttachmentInvalidException {
+        final GroupInfo g;
+        synchronized (stateLock) {
+            g = updateGroupInfo(groupId, name, members, avatarFile);
+        }
+
+        SignalServiceDataMessage.Builder messageBuilder = getGroupUpdateMessageBuilder(g);
+
+        // Don't send group message to ourself
+        final List<String> membersSend = new ArrayList<>(g.getMemberNumbers());
+        membersSend.remove(this.username);
+        sendMessageLegacy(messageBuilder, membersSend);
+        return g.groupId;
+    }
+
+    /**
+     * @return a copy of the updated group
+     */
+    private GroupInfo updateGroupInfo(byte[] groupId, String name, Collection<String> members, String avatarFile) throws IOException, GroupNotFoundException, AttachmentInvalidException {
         GroupInfo g;
         if (groupId == null) {
             // Create new group
             g = new GroupInfo(KeyUtils.createGroupId());
-            g.members.add(username);
+            g.addMember(username);
         } else {
-            g = getGroupForSending(groupId);
+            g = getGroupForUpdate(groupId);
         }
 
         if (name != null) {
@@ -538,11 +712,10 @@ public class Manager implements Signal {
                     System.err.println("Aborting…");
                     System.exit(1);
                 }
-                if (g.members.contains(member)) {
+                if (!g.addMember(member)) {
                     continue;
                 }
                 newMembers.add(member);
-                g.members.add(member);
             }
             final List<ContactTokenDetails> contacts = accountManager.getContacts(newMembers);
             if (contacts.size() != newMembers.size()) {
@@ -563,14 +736,7 @@ public class Manager implements Signal {
         }
 
         account.getGroupStore().updateGroup(g);
-
-        SignalServiceDataMessage.Builder messageBuilder = getGroupUpdateMessageBuilder(g);
-
-        // Don't send group message to ourself
-        final List<String> membersSend = new ArrayList<>(g.members);
-        membersSend.remove(this.username);
-        sendMessageLegacy(messageBuilder, membersSend);
-        return g.groupId;
+        return g.copy();
     }
 
     private void sendUpdateGroupMessage(byte[] groupId, String recipient) throws IOException, EncapsulatedExceptions {
@@ -579,7 +745,7 @@ public class Manager implements Signal {
         }
         GroupInfo g = getGroupForSending(groupId);
 
-        if (!g.members.contains(recipient)) {
+        if (!g.isMember(recipient)) {
             return;
         }
 
@@ -609,7 +775,7 @@ public class Manager implements Signal {
         SignalServiceDataMessage.Builder messageBuilder = SignalServiceDataMessage.newBuilder()
                 .asGroupMessage(group.build());
 
-        ThreadInfo thread = account.getThreadStore().getThread(Base64.encodeBytes(g.groupId));
+        ThreadInfo thread = account.getThreadStore().getGroupThread(g.groupId);
         if (thread != null) {
             messageBuilder.withExpiration(thread.messageExpirationTime);
         }
@@ -628,7 +794,7 @@ public class Manager implements Signal {
         SignalServiceDataMessage.Builder messageBuilder = SignalServiceDataMessage.newBuilder()
                 .asGroupMessage(group.build());
 
-        ThreadInfo thread = account.getThreadStore().getThread(Base64.encodeBytes(groupId));
+        ThreadInfo thread = account.getThreadStore().getGroupThread(groupId);
         if (thread != null) {
             messageBuilder.withExpiration(thread.messageExpirationTime);
         }
@@ -683,7 +849,7 @@ public class Manager implements Signal {
     @Override
     public String getContactName(String number) throws InvalidNumberException {
         String canonicalizedNumber = Utils.canonicalizeNumber(number, username);
-        ContactInfo contact = account.getContactStore().getContact(canonicalizedNumber);
+        ContactInfo contact = getContact(canonicalizedNumber);
         if (contact == null) {
             return "";
         } else {
@@ -694,45 +860,67 @@ public class Manager implements Signal {
     @Override
     public void setContactName(String number, String name) throws InvalidNumberException {
         String canonicalizedNumber = Utils.canonicalizeNumber(number, username);
-        ContactInfo contact = account.getContactStore().getContact(canonicalizedNumber);
-        if (contact == null) {
-            contact = new ContactInfo();
-            contact.number = canonicalizedNumber;
-            System.err.println("Add contact " + canonicalizedNumber + " named " + name);
-        } else {
-            System.err.println("Updating contact " + canonicalizedNumber + " name " + contact.name + " -> " + name);
+        synchronized (stateLock) {
+            ContactInfo contact = account.getContactStore().getContact(canonicalizedNumber);
+            if (contact == null) {
+                contact = new ContactInfo();
+                contact.number = canonicalizedNumber;
+                System.err.println("Add contact " + canonicalizedNumber + " named " + name);
+            } else {
+                System.err.println("Updating contact " + canonicalizedNumber + " name " + contact.name + " -> " + name);
+            }
+            contact.name = name;
+            account.getContactStore().updateContact(contact);
         }
-        contact.name = name;
-        account.getContactStore().updateContact(contact);
         account.save();
     }
 
     @Override
     public void setContactBlocked(String number, boolean blocked) throws InvalidNumberException {
+        synchronized (stateLock) {
+            updateContactBlocked(number, blocked);
+        }
+        account.save();
+    }
+
+    /**
+     * Blocks or unblocks a contact without saving the account.
+     */
+    private void updateContactBlocked(String number, boolean blocked) throws InvalidNumberException {
         number = Utils.canonicalizeNumber(number, username);
         ContactInfo contact = account.getContactStore().getContact(number);
         if (contact == null) {
             contact = new ContactInfo();
             contact.number = number;
             System.err.println("Adding and " + (blocked ? "blocking" : "unblocking") + " contact " + number);
+        } else if (contact.blocked == blocked) {
+            return;
         } else {
             System.err.println((blocked ? "Blocking" : "Unblocking") + " contact " + number);
         }
         contact.blocked = blocked;
         account.getContactStore().updateContact(contact);
-        account.save();
     }
 
     @Override
     public void setGroupBlocked(final byte[] groupId, final boolean blocked) throws GroupNotFoundException {
-        GroupInfo group = getGroup(groupId);
+        synchronized (stateLock) {
+            updateGroupBlocked(groupId, blocked);
+        }
+        account.save();
+    }
+
+    /**
+     * Blocks or unblocks a group without saving the account.
+     */
+    private void updateGroupBlocked(final byte[] groupId, final boolean blocked) throws GroupNotFoundException {
+        GroupInfo group = account.getGroupStore().getGroup(groupId);
         if (group == null) {
             throw new GroupNotFoundException(groupId);
-        } else {
+        } else if (group.blocked != blocked) {
             System.err.println((blocked ? "Blocking" : "Unblocking") + " group " + Base64.encodeBytes(groupId));
             group.blocked = blocked;
             account.getGroupStore().updateGroup(group);
-            account.save();
         }
     }
 
@@ -762,7 +950,7 @@ public class Manager implements Signal {
         if (group == null) {
             return new ArrayList<>();
         } else {
-            return new ArrayList<>(group.members);
+            return new ArrayList<>(group.getMemberNumbers());
         }
     }
 
@@ -790,9 +978,12 @@ public class Manager implements Signal {
      * @param messageExpirationTimer
      */
     public void setExpirationTimer(String numberOrGroupId, int messageExpirationTimer) {
-        ThreadInfo thread = account.getThreadStore().getThread(numberOrGroupId);
+        ThreadInfo thread = new ThreadInfo();
+        thread.id = numberOrGroupId;
         thread.messageExpirationTime = messageExpirationTimer;
-        account.getThreadStore().updateThread(thread);
+        synchronized (stateLock) {
+            account.getThreadStore().updateThread(thread);
+        }
     }
 
     private void requestSyncGroups() throws IOException {
@@ -978,7 +1169,14 @@ public class Manager implements Signal {
     private SignalServiceContent decryptMessage(SignalServiceEnvelope envelope) throws InvalidMetadataMessageException, ProtocolInvalidMessageException, ProtocolDuplicateMessageException, ProtocolLegacyMessageException, ProtocolInvalidKeyIdException, InvalidMetadataVersionException, ProtocolInvalidVersionException, ProtocolNoSessionException, ProtocolInvalidKeyException, ProtocolUntrustedIdentityException, SelfSendException, UnsupportedDataMessageException {
         SignalServiceCipher cipher = new SignalServiceCipher(getSelfAddress(), account.getSignalProtocolStore(), Utils.getCertificateValidator());
         try {
-            return cipher.decrypt(envelope);
+            SignalServiceContent content = cipher.decrypt(envelope);
+            if (content.getDataMessage().isPresent() && content.getDataMessage().get().isEndSession()) {
+                // Reset the sessions before the next message of the sender is decrypted, which may already happen
+                // before this message is processed
+                SignalServiceAddress sender = !envelope.isUnidentifiedSender() && envelope.hasSource() ? envelope.getSourceAddress() : content.getSender();
+                handleEndSession(sender.getNumber().get());
+            }
+            return content;
         } catch (ProtocolUntrustedIdentityException e) {
             // TODO We don't get the new untrusted identity from ProtocolUntrustedIdentityException anymore ... we need to get it from somewhere else
 //            account.getSignalProtocolStore().saveIdentity(e.getSender(), e.getUntrustedIdentity(), TrustLevel.UNTRUSTED);
@@ -991,10 +1189,11 @@ public class Manager implements Signal {
     }
 
     private void handleSignalServiceDataMessage(SignalServiceDataMessage message, boolean isSync, String source, SignalServiceAddress destination, boolean ignoreAttachments) {
-        String threadId;
+        String threadId = null;
+        byte[] threadGroupId = null;
         if (message.getGroupInfo().isPresent()) {
             SignalServiceGroup groupInfo = message.getGroupInfo().get();
-            threadId = Base64.encodeBytes(groupInfo.getGroupId());
+            threadGroupId = groupInfo.getGroupId();
             GroupInfo group = account.getGroupStore().getGroup(groupInfo.getGroupId());
             switch (groupInfo.getType()) {
                 case UPDATE:
@@ -1007,7 +1206,7 @@ public class Manager implements Signal {
                         if (avatar.isPointer()) {
                             try {
                                 retrieveGroupAvatarAttachment(avatar.asPointer(), group.groupId);
-                            } catch (IOException | InvalidMessageException e) {
+                            } catch (IOException e) {
                                 System.err.println("Failed to retrieve group avatar (" + avatar.asPointer().getId() + "): " + e.getMessage());
                             }
                         }
@@ -1040,7 +1239,7 @@ public class Manager implements Signal {
                             e.printStackTrace();
                         }
                     } else {
-                        group.members.remove(source);
+                        group.removeMember(source);
                         account.getGroupStore().updateGroup(group);
                     }
                     break;
@@ -1063,28 +1262,23 @@ public class Manager implements Signal {
                 threadId = source;
             }
         }
-        if (message.isEndSession()) {
-            handleEndSession(isSync ? destination.getNumber().get() : source);
+        // The sessions of a received end session message are already reset when it's decrypted
+        if (message.isEndSession() && isSync) {
+            handleEndSession(destination.getNumber().get());
         }
         if (message.isExpirationUpdate() || message.getBody().isPresent()) {
-            ThreadInfo thread = account.getThreadStore().getThread(threadId);
-            if (thread == null) {
-                thread = new ThreadInfo();
-                thread.id = threadId;
-            }
-            if (thread.messageExpirationTime != message.getExpiresInSeconds()) {
-                thread.messageExpirationTime = message.getExpiresInSeconds();
-                account.getThreadStore().updateThread(thread);
+            ThreadInfo thread = threadGroupId != null ? account.getThreadStore().getGroupThread(threadGroupId) : account.getThreadStore().getThread(threadId);
+            if (thread == null || thread.messageExpirationTime != message.getExpiresInSeconds()) {
+                ThreadInfo updatedThread = new ThreadInfo();
+                updatedThread.id = threadGroupId != null ? Base64.encodeBytes(threadGroupId) : threadId;
+                updatedThread.messageExpirationTime = message.getExpiresInSeconds();
+                account.getThreadStore().updateThread(updatedThread);
             }
         }
         if (message.getAttachments().isPresent() && !ignoreAttachments) {
             for (SignalServiceAttachment attachment : message.getAttachments().get()) {
                 if (attachment.isPointer()) {
-                    try {
-                        retrieveAttachment(attachment.asPointer());
-                    } catch (IOException | InvalidMessageException e) {
-                        System.err.println("Failed to retrieve attachment (" + attachment.asPointer().getId() + "): " + e.getMessage());
-                    }
+                    downloadAttachment(attachment.asPointer());
                 }
             }
         }
@@ -1097,24 +1291,74 @@ public class Manager implements Signal {
                 contact = new ContactInfo();
                 contact.number = source;
             }
-            contact.profileKey = Base64.encodeBytes(message.getProfileKey().get());
+            contact.profileKey = message.getProfileKey().get();
+            account.getContactStore().updateContact(contact);
         }
         if (message.getPreviews().isPresent()) {
             final List<SignalServiceDataMessage.Preview> previews = message.getPreviews().get();
             for (SignalServiceDataMessage.Preview preview : previews) {
                 if (preview.getImage().isPresent() && preview.getImage().get().isPointer()) {
-                    SignalServiceAttachmentPointer attachment = preview.getImage().get().asPointer();
-                    try {
-                        retrieveAttachment(attachment);
-                    } catch (IOException | InvalidMessageException e) {
-                        System.err.println("Failed to retrieve attachment (" + attachment.getId() + "): " + e.getMessage());
-                    }
+                    downloadAttachment(preview.getImage().get().asPointer());
                 }
             }
         }
     }
 
-    private void retryFailedReceivedMessages(ReceiveMessageHandler handler, boolean ignoreAttachments) {
+    /**
+     * Handles the envelopes left from a previous run, first those of the message cache used by older versions, then
+     * the envelopes kept for a retry and the uncommitted envelopes of the message log.
+     */
+    private void retryFailedReceivedMessages(ReceiveMessageHandler handler, boolean ignoreAttachments, final MessageLog messageLog) {
+        retryCachedMessages(handler, ignoreAttachments);
+        for (SignalServiceEnvelope envelope : messageLog.takeRetryEnvelopes()) {
+            retryReceivedMessage(handler, ignoreAttachments, messageLog, envelope, -1);
+        }
+        account.runAfterSave(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    messageLog.finishRetries();
+                } catch (IOException e) {
+                    System.err.println("Failed to remove retried messages from message log: " + e.getMessage());
+                }
+            }
+        });
+        for (MessageLog.LoggedEnvelope logged : messageLog.takeUncommittedEnvelopes()) {
+            retryReceivedMessage(handler, ignoreAttachments, messageLog, logged.envelope, logged.sequence);
+        }
+    }
+
+    /**
+     * Only envelopes from an untrusted identity are kept for the next retry. Other decryption errors, e.g. for a
+     * duplicate of an already decrypted message, would fail again on every retry.
+     *
+     * @param sequence Sequence of the envelope in the message log, -1 for an envelope kept for a retry
+     */
+    private void retryReceivedMessage(ReceiveMessageHandler handler, boolean ignoreAttachments, MessageLog messageLog, SignalServiceEnvelope envelope, long sequence) {
+        SignalServiceContent content = null;
+        if (!envelope.isReceipt()) {
+            try {
+                content = decryptMessage(envelope);
+            } catch (ProtocolUntrustedIdentityException e) {
+                keepForRetry(messageLog, sequence, envelope);
+                return;
+            } catch (Exception e) {
+                System.err.println("Dropping received message that failed to decrypt again: " + e.getMessage());
+                commitAfterSave(messageLog, sequence);
+                return;
+            }
+            synchronized (stateLock) {
+                handleMessage(envelope, content, ignoreAttachments);
+            }
+        }
+        account.save();
+        synchronized (handler) {
+            handler.handleMessage(envelope, content, null);
+        }
+        commitAfterSave(messageLog, sequence);
+    }
+
+    private void retryCachedMessages(ReceiveMessageHandler handler, boolean ignoreAttachments) {
         final File cachePath = new File(getMessageCachePath());
         if (!cachePath.exists()) {
             return;
@@ -1145,43 +1389,168 @@ public class Manager implements Signal {
                     } catch (Exception e) {
                         continue;
                     }
-                    handleMessage(envelope, content, ignoreAttachments);
+                    synchronized (stateLock) {
+                        handleMessage(envelope, content, ignoreAttachments);
+                    }
                 }
                 account.save();
-                handler.handleMessage(envelope, content, null);
-                try {
-                    Files.delete(fileEntry.toPath());
-                } catch (IOException e) {
-                    System.err.println("Failed to delete cached message file “" + fileEntry + "”: " + e.getMessage());
+                synchronized (handler) {
+                    handler.handleMessage(envelope, content, null);
                 }
+                account.runAfterSave(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Files.delete(fileEntry.toPath());
+                        } catch (IOException e) {
+                            System.err.println("Failed to delete cached message file “" + fileEntry + "”: " + e.getMessage());
+                        }
+                    }
+                });
             }
             // Try to delete directory if empty
             dir.delete();
         }
+        cachePath.delete();
     }
 
-    public void receiveMessages(long timeout, TimeUnit unit, boolean returnOnTimeout, boolean ignoreAttachments, ReceiveMessageHandler handler) throws IOException {
-        retryFailedReceivedMessages(handler, ignoreAttachments);
-        final SignalServiceMessageReceiver messageReceiver = getMessageReceiver();
+    /**
+     * Only commits the envelope, once the state changes caused by it are saved. Envelopes without a sequence, which
+     * were not logged or were kept for a retry, are skipped.
+     */
+    private void commitAfterSave(final MessageLog messageLog, final long sequence) {
+        if (sequence < 0) {
+            return;
+        }
+        account.runAfterSave(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    messageLog.commit(sequence);
+                } catch (IOException e) {
+                    System.err.println("Failed to commit received message " + sequence + " in message log: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Keeps the envelope for a retry on the next start, outside of the logged envelopes, and commits its logged record.
+     */
+    private void keepForRetry(MessageLog messageLog, long sequence, SignalServiceEnvelope envelope) {
+        try {
+            messageLog.keepForRetry(envelope);
+        } catch (IOException e) {
+            System.err.println("Failed to keep received message " + sequence + " in message log: " + e.getMessage());
+            return;
+        }
+        commitAfterSave(messageLog, sequence);
+    }
+
+    /**
+     * Receives messages until the timeout expires with returnOnTimeout set. Received envelopes are appended to the
+     * message log before they are acknowledged and then handed to the {@link ReceivePipeline}, which decrypts,
+     * processes and outputs them on its own threads while the next envelopes are read.
+     */
+    public void receiveMessages(long timeout, TimeUnit unit, boolean returnOnTimeout, final boolean ignoreAttachments, final ReceiveMessageHandler handler) throws IOException {
+        final AttachmentDownloader downloader = new AttachmentDownloader(BaseConfig.ATTACHMENT_DOWNLOAD_THREADS, BaseConfig.ATTACHMENT_DOWNLOAD_ATTEMPTS, BaseConfig.ATTACHMENT_DOWNLOAD_RETRY_DELAY, new AttachmentDownloader.Listener() {
+            @Override
+            public void onDownloadFinished(SignalServiceAttachmentPointer pointer, File file, Exception exception) {
+                if (exception != null) {
+                    System.err.println("Failed to retrieve attachment (" + pointer.getId() + "): " + exception.getMessage());
+                }
+                synchronized (handler) {
+                    handler.handleAttachmentDownload(pointer, file, exception);
+                }
+            }
+        });
+        attachmentDownloader = downloader;
+        MessageLog messageLog = null;
+        try {
+            messageLog = MessageLog.open(getMessageLogPath(), BaseConfig.MESSAGE_LOG_SEGMENT_SIZE, storageConfig.getFsyncPolicy(), storageConfig.getFsyncInterval());
+            retryFailedReceivedMessages(handler, ignoreAttachments, messageLog);
+            receiveMessages(timeout, unit, returnOnTimeout, ignoreAttachments, handler, getMessageReceiver(), messageLog);
+        } finally {
+            try {
+                // Wait for the attachments of the received messages
+                downloader.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            attachmentDownloader = null;
+            if (messageLog != null) {
+                // Commits are made after the pending saves
+                account.flushPendingSaves();
+                messageLog.close();
+            }
+        }
+    }
+
+    private void receiveMessages(long timeout, TimeUnit unit, boolean returnOnTimeout, final boolean ignoreAttachments, final ReceiveMessageHandler handler, SignalServiceMessageReceiver messageReceiver, final MessageLog messageLog) throws IOException {
+
+        final ReceivePipeline pipeline = new ReceivePipeline(receiveQueueSize) {
+            @Override
+            void decrypt(ReceivedMessage message) {
+                if (message.envelope.isReceipt()) {
+                    return;
+                }
+                try {
+                    message.content = decryptMessage(message.envelope);
+                } catch (Exception e) {
+                    message.exception = e;
+                }
+            }
+
+            @Override
+            void process(ReceivedMessage message) {
+                if (!message.envelope.isReceipt()) {
+                    synchronized (stateLock) {
+                        handleMessage(message.envelope, message.content, ignoreAttachments);
+                    }
+                }
+                account.save();
+            }
+
+            @Override
+            void output(ReceivedMessage message) {
+                if (!isMessageBlocked(message.envelope, message.content)) {
+                    synchronized (handler) {
+                        handler.handleMessage(message.envelope, message.content, message.exception);
+                    }
+                }
+                if (message.logSequence < 0) {
+                    return;
+                }
+                if (message.exception instanceof ProtocolUntrustedIdentityException) {
+                    keepForRetry(messageLog, message.logSequence, message.envelope);
+                } else {
+                    commitAfterSave(messageLog, message.logSequence);
+                }
+            }
+        };
+        receivePipeline = pipeline;
 
         try {
             if (messagePipe == null) {
                 messagePipe = messageReceiver.createMessagePipe();
             }
 
-            while (true) {
+            long lastQueueDepthReport = 0;
+            while (pipeline.getFailure() == null) {
                 SignalServiceEnvelope envelope;
-                SignalServiceContent content = null;
-                Exception exception = null;
                 final long now = new Date().getTime();
+                // Sequence of the envelope in the message log, -1 if it couldn't be stored
+                final long[] logSequence = {-1};
                 try {
                     envelope = messagePipe.read(timeout, unit, new SignalServiceMessagePipe.MessagePipeCallback() {
                         @Override
                         public void onMessage(SignalServiceEnvelope envelope) {
                             // store message on disk, before acknowledging receipt to the server
                             try {
-                                File cacheFile = getMessageCacheFile(envelope.getSourceE164().get(), now, envelope.getTimestamp());
-                                Utils.storeEnvelope(envelope, cacheFile);
+                                logSequence[0] = messageLog.append(envelope);
+                                // The pipe acknowledges every envelope on its own, so a sync covers this envelope and
+                                // the commit records written since the last one
+                                messageLog.sync();
                             } catch (IOException e) {
                                 System.err.println("Failed to store encrypted message in disk cache, ignoring: " + e.getMessage());
                             }
@@ -1189,42 +1558,62 @@ public class Manager implements Signal {
                     });
                 } catch (TimeoutException e) {
                     if (returnOnTimeout)
-                        return;
+                        break;
                     continue;
                 } catch (InvalidVersionException e) {
                     System.err.println("Ignoring error: " + e.getMessage());
                     continue;
                 }
-                if (!envelope.isReceipt()) {
-                    try {
-                        content = decryptMessage(envelope);
-                    } catch (Exception e) {
-                        exception = e;
+                try {
+                    if (!pipeline.submit(envelope, logSequence[0])) {
+                        // A stage has stopped, the envelope stays in the message log for the next start
+                        break;
                     }
-                    handleMessage(envelope, content, ignoreAttachments);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
-                account.save();
-                if (!isMessageBlocked(envelope, content)) {
-                    handler.handleMessage(envelope, content, exception);
-                }
-                if (!(exception instanceof ProtocolUntrustedIdentityException)) {
-                    File cacheFile = null;
-                    try {
-                        cacheFile = getMessageCacheFile(envelope.getSourceE164().get(), now, envelope.getTimestamp());
-                        Files.delete(cacheFile.toPath());
-                        // Try to delete directory if empty
-                        new File(getMessageCachePath()).delete();
-                    } catch (IOException e) {
-                        System.err.println("Failed to delete cached message file “" + cacheFile + "”: " + e.getMessage());
-                    }
+                if (now - lastQueueDepthReport >= RECEIVE_QUEUE_DEPTH_REPORT_INTERVAL) {
+                    lastQueueDepthReport = now;
+                    debug("Receive queue depths: %s", getReceiveQueueDepths().toString());
                 }
             }
         } finally {
+            try {
+                pipeline.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            receivePipeline = null;
+            account.flushPendingSaves();
             if (messagePipe != null) {
                 messagePipe.shutdown();
                 messagePipe = null;
             }
         }
+        Throwable failure = pipeline.getFailure();
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IllegalStateException("Receiving messages failed", failure);
+        }
+    }
+
+    /**
+     * @return the number of received messages waiting in every stage of the running receive loop and the number of
+     * waiting attachment downloads, empty if no messages are received
+     */
+    public Map<String, Integer> getReceiveQueueDepths() {
+        ReceivePipeline pipeline = receivePipeline;
+        AttachmentDownloader downloader = attachmentDownloader;
+        if (pipeline == null || downloader == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, Integer> depths = pipeline.getQueueDepths();
+        depths.put("download", downloader.getPendingCount());
+        return depths;
     }
 
     private boolean isMessageBlocked(SignalServiceEnvelope envelope, SignalServiceContent content) {
@@ -1236,8 +1625,7 @@ public class Manager implements Signal {
         } else {
             return false;
         }
-        ContactInfo sourceContact = getContact(source.getNumber().get());
-        if (sourceContact != null && sourceContact.blocked) {
+        if (account.getContactStore().isBlocked(source.getNumber().get())) {
             return true;
         }
 
@@ -1245,8 +1633,7 @@ public class Manager implements Signal {
             SignalServiceDataMessage message = content.getDataMessage().get();
             if (message.getGroupInfo().isPresent()) {
                 SignalServiceGroup groupInfo = message.getGroupInfo().get();
-                GroupInfo group = getGroup(groupInfo.getGroupId());
-                if (groupInfo.getType() == SignalServiceGroup.Type.DELIVER && group != null && group.blocked) {
+                if (groupInfo.getType() == SignalServiceGroup.Type.DELIVER && account.getGroupStore().isBlocked(groupInfo.getGroupId())) {
                     return true;
                 }
             }
@@ -1343,7 +1730,7 @@ public class Manager implements Signal {
                     for (SignalServiceAddress address : blockedListMessage.getAddresses()) {
                         if (address.getNumber().isPresent()) {
                             try {
-                                setContactBlocked(address.getNumber().get(), true);
+                                updateContactBlocked(address.getNumber().get(), true);
                             } catch (InvalidNumberException e) {
                                 e.printStackTrace();
                             }
@@ -1351,11 +1738,12 @@ public class Manager implements Signal {
                     }
                     for (byte[] groupId : blockedListMessage.getGroupIds()) {
                         try {
-                            setGroupBlocked(groupId, true);
+                            updateGroupBlocked(groupId, true);
                         } catch (GroupNotFoundException e) {
                             System.err.println("BlockedListMessage contained groupID that was not found in GroupStore: " + Base64.encodeBytes(groupId));
                         }
                     }
+                    account.save();
                 }
                 if (syncMessage.getContacts().isPresent()) {
                     File tmpFile = null;
@@ -1384,18 +1772,15 @@ public class Manager implements Signal {
                                     contact.color = c.getColor().get();
                                 }
                                 if (c.getProfileKey().isPresent()) {
-                                    contact.profileKey = Base64.encodeBytes(c.getProfileKey().get());
+                                    contact.profileKey = c.getProfileKey().get();
                                 }
                                 if (c.getVerified().isPresent()) {
                                     final VerifiedMessage verifiedMessage = c.getVerified().get();
                                     account.getSignalProtocolStore().saveIdentity(verifiedMessage.getDestination().getNumber().get(), verifiedMessage.getIdentityKey(), TrustLevel.fromVerifiedState(verifiedMessage.getVerified()));
                                 }
                                 if (c.getExpirationTimer().isPresent()) {
-                                    ThreadInfo thread = account.getThreadStore().getThread(c.getAddress().getNumber().get());
-                                    if (thread == null) {
-                                        thread = new ThreadInfo();
-                                        thread.id = c.getAddress().getNumber().get();
-                                    }
+                                    ThreadInfo thread = new ThreadInfo();
+                                    thread.id = c.getAddress().getNumber().get();
                                     thread.messageExpirationTime = c.getExpirationTimer().get();
                                     account.getThreadStore().updateThread(thread);
                                 }
@@ -1434,14 +1819,22 @@ public class Manager implements Signal {
         return new File(avatarsPath, "contact-" + number);
     }
 
-    private File retrieveContactAvatarAttachment(SignalServiceAttachment attachment, String number) throws IOException, InvalidMessageException {
+    /**
+     * Avatars of a contacts sync message are part of its stream and stored right away, others are downloaded.
+     */
+    private void retrieveContactAvatarAttachment(SignalServiceAttachment attachment, final String number) throws IOException {
         IOUtils.createPrivateDirectories(avatarsPath);
         if (attachment.isPointer()) {
-            SignalServiceAttachmentPointer pointer = attachment.asPointer();
-            return retrieveAttachment(pointer, getContactAvatarFile(number), false);
+            final SignalServiceAttachmentPointer pointer = attachment.asPointer();
+            downloadAttachment(new AttachmentDownloader.Download(pointer) {
+                @Override
+                File download() throws IOException, InvalidMessageException {
+                    return retrieveAttachment(pointer, getContactAvatarFile(number), false);
+                }
+            });
         } else {
             SignalServiceAttachmentStream stream = attachment.asStream();
-            return Utils.retrieveAttachment(stream, getContactAvatarFile(number));
+            Utils.retrieveAttachment(stream, getContactAvatarFile(number));
         }
     }
 
@@ -1449,14 +1842,22 @@ public class Manager implements Signal {
         return new File(avatarsPath, "group-" + Base64.encodeBytes(groupId).replace("/", "_"));
     }
 
-    private File retrieveGroupAvatarAttachment(SignalServiceAttachment attachment, byte[] groupId) throws IOException, InvalidMessageException {
+    /**
+     * Avatars of a groups sync message are part of its stream and stored right away, others are downloaded.
+     */
+    private void retrieveGroupAvatarAttachment(SignalServiceAttachment attachment, final byte[] groupId) throws IOException {
         IOUtils.createPrivateDirectories(avatarsPath);
         if (attachment.isPointer()) {
-            SignalServiceAttachmentPointer pointer = attachment.asPointer();
-            return retrieveAttachment(pointer, getGroupAvatarFile(groupId), false);
+            final SignalServiceAttachmentPointer pointer = attachment.asPointer();
+            downloadAttachment(new AttachmentDownloader.Download(pointer) {
+                @Override
+                File download() throws IOException, InvalidMessageException {
+                    return retrieveAttachment(pointer, getGroupAvatarFile(groupId), false);
+                }
+            });
         } else {
             SignalServiceAttachmentStream stream = attachment.asStream();
-            return Utils.retrieveAttachment(stream, getGroupAvatarFile(groupId));
+            Utils.retrieveAttachment(stream, getGroupAvatarFile(groupId));
         }
     }
 
@@ -1469,6 +1870,31 @@ public class Manager implements Signal {
         return retrieveAttachment(pointer, getAttachmentFile(pointer.getId()), true);
     }
 
+    private void downloadAttachment(final SignalServiceAttachmentPointer pointer) {
+        downloadAttachment(new AttachmentDownloader.Download(pointer) {
+            @Override
+            File download() throws IOException, InvalidMessageException {
+                return retrieveAttachment(pointer);
+            }
+        });
+    }
+
+    /**
+     * Downloads the attachment in the background while messages are received, otherwise right away.
+     */
+    private void downloadAttachment(AttachmentDownloader.Download download) {
+        AttachmentDownloader downloader = attachmentDownloader;
+        if (downloader != null) {
+            downloader.submit(download);
+            return;
+        }
+        try {
+            download.download();
+        } catch (IOException | InvalidMessageException e) {
+            System.err.println("Failed to retrieve attachment (" + download.pointer.getId() + "): " + e.getMessage());
+        }
+    }
+
     private File retrieveAttachment(SignalServiceAttachmentPointer pointer, File outputFile, boolean storePreview) throws IOException, InvalidMessageException {
         if (storePreview && pointer.getPreview().isPresent()) {
             File previewFile = new File(outputFile + ".preview");
@@ -1483,24 +1909,19 @@ public class Manager implements Signal {
 
         final SignalServiceMessageReceiver messageReceiver = getMessageReceiver();
 
-        File tmpFile = IOUtils.createTempFile();
-        try (InputStream input = messageReceiver.retrieveAttachment(pointer, tmpFile, BaseConfig.MAX_ATTACHMENT_SIZE)) {
-            try (OutputStream output = new FileOutputStream(outputFile)) {
-                byte[] buffer = new byte[4096];
-                int read;
-
-                while ((read = input.read(buffer)) != -1) {
-                    output.write(buffer, 0, read);
-                }
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                return null;
-            }
+        // The encrypted attachment is staged next to the output file instead of the system temp directory, which may
+        // be a small tmpfs or on another file system
+        File encryptedFile = new File(outputFile + ".encrypted.part");
+        try (InputStream input = messageReceiver.retrieveAttachment(pointer, encryptedFile, BaseConfig.MAX_ATTACHMENT_SIZE)) {
+            Utils.storeAttachment(input, outputFile);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+            return null;
         } finally {
             try {
-                Files.delete(tmpFile.toPath());
+                Files.deleteIfExists(encryptedFile.toPath());
             } catch (IOException e) {
-                System.err.println("Failed to delete received attachment temp file “" + tmpFile + "”: " + e.getMessage());
+                System.err.println("Failed to delete received attachment temp file “" + encryptedFile + "”: " + e.getMessage());
             }
         }
         return outputFile;
@@ -1522,8 +1943,8 @@ public class Manager implements Signal {
         try {
             try (OutputStream fos = new FileOutputStream(groupsFile)) {
                 DeviceGroupsOutputStream out = new DeviceGroupsOutputStream(fos);
-                for (GroupInfo record : account.getGroupStore().getGroups()) {
-                    ThreadInfo info = account.getThreadStore().getThread(Base64.encodeBytes(record.groupId));
+                for (GroupInfo record : getGroups()) {
+                    ThreadInfo info = account.getThreadStore().getGroupThread(record.groupId);
                     out.write(new DeviceGroup(record.groupId, Optional.fromNullable(record.name),
                             new ArrayList<>(record.getMembers()), createGroupAvatarAttachment(record.groupId),
                             record.active, Optional.fromNullable(info != null ? info.messageExpirationTime : null),
@@ -1557,25 +1978,17 @@ public class Manager implements Signal {
         try {
             try (OutputStream fos = new FileOutputStream(contactsFile)) {
                 DeviceContactsOutputStream out = new DeviceContactsOutputStream(fos);
-                for (ContactInfo record : account.getContactStore().getContacts()) {
+                for (ContactInfo record : getContacts()) {
                     VerifiedMessage verifiedMessage = null;
                     ThreadInfo info = account.getThreadStore().getThread(record.number);
-                    if (getIdentities().containsKey(record.number)) {
-                        JsonIdentityKeyStore.Identity currentIdentity = null;
-                        for (JsonIdentityKeyStore.Identity id : getIdentities().get(record.number)) {
-                            if (currentIdentity == null || id.getDateAdded().after(currentIdentity.getDateAdded())) {
-                                currentIdentity = id;
-                            }
-                        }
-                        if (currentIdentity != null) {
-                            verifiedMessage = new VerifiedMessage(record.getAddress(), currentIdentity.getIdentityKey(), currentIdentity.getTrustLevel().toVerifiedState(), currentIdentity.getDateAdded().getTime());
-                        }
+                    JsonIdentityKeyStore.Identity currentIdentity = account.getSignalProtocolStore().getCurrentIdentity(record.number);
+                    if (currentIdentity != null) {
+                        verifiedMessage = new VerifiedMessage(record.getAddress(), currentIdentity.getIdentityKey(), currentIdentity.getTrustLevel().toVerifiedState(), currentIdentity.getDateAdded().getTime());
                     }
 
-                    byte[] profileKey = record.profileKey == null ? null : Base64.decode(record.profileKey);
                     out.write(new DeviceContact(record.getAddress(), Optional.fromNullable(record.name),
                             createContactAvatarAttachment(record.number), Optional.fromNullable(record.color),
-                            Optional.fromNullable(verifiedMessage), Optional.fromNullable(profileKey), record.blocked,
+                            Optional.fromNullable(verifiedMessage), Optional.fromNullable(record.profileKey), record.blocked,
                             Optional.fromNullable(info != null ? info.messageExpirationTime : null)));
                 }
 
@@ -1610,18 +2023,12 @@ public class Manager implements Signal {
     }
 
     private void sendBlockedList() throws IOException, UntrustedIdentityException {
-        List<SignalServiceAddress> addresses = new ArrayList<>();
-        for (ContactInfo record : account.getContactStore().getContacts()) {
-            if (record.blocked) {
-                addresses.add(record.getAddress());
-            }
-        }
-        List<byte[]> groupIds = new ArrayList<>();
-        for (GroupInfo record : account.getGroupStore().getGroups()) {
-            if (record.blocked) {
-                groupIds.add(record.groupId);
-            }
+        Set<String> blockedNumbers = account.getContactStore().getBlockedNumbers();
+        List<SignalServiceAddress> addresses = new ArrayList<>(blockedNumbers.size());
+        for (String number : blockedNumbers) {
+            addresses.add(new SignalServiceAddress(null, number));
         }
+        List<byte[]> groupIds = account.getGroupStore().getBlockedGroupIds();
         sendSyncMessage(SignalServiceSyncMessage.forBlocked(new BlockedListMessage(addresses, groupIds)));
     }
 
@@ -1630,16 +2037,29 @@ public class Manager implements Signal {
         sendSyncMessage(SignalServiceSyncMessage.forVerified(verifiedMessage));
     }
 
+    /**
+     * @return the contacts of the current snapshot, which must not be changed
+     */
     public List<ContactInfo> getContacts() {
-        return account.getContactStore().getContacts();
+        return new ArrayList<>(account.getContactStore().getSnapshot().values());
     }
 
+    /**
+     * @return the contact of the current snapshot, which must not be changed
+     */
     public ContactInfo getContact(String number) {
-        return account.getContactStore().getContact(number);
+        return account.getContactStore().getSnapshot().get(number);
     }
 
+    /**
+     * @return the group of the current snapshot, which must not be changed
+     */
     public GroupInfo getGroup(byte[] groupId) {
-        return account.getGroupStore().getGroup(groupId);
+        return account.getGroupStore().getSnapshot().get(GroupId.of(groupId));
+    }
+
+    public PreKeyStatistics getPreKeyStatistics() {
+        return account.getSignalProtocolStore().getPreKeyStatistics();
     }
 
     public Map<String, List<JsonIdentityKeyStore.Identity>> getIdentities() {
@@ -1738,5 +2158,13 @@ public class Manager implements Signal {
     public interface ReceiveMessageHandler {
 
         void handleMessage(SignalServiceEnvelope envelope, SignalServiceContent decryptedContent, Throwable e);
+
+        /**
+         * Called once an attachment, preview or avatar of a received message is downloaded, after the message itself
+         * was handled. Never called concurrently with handleMessage.
+         *
+         * @param file The stored attachment, null if the download failed with the exception e
+         */
+        void handleAttachmentDownload(SignalServiceAttachmentPointer pointer, File file, Throwable e);
     }
 }
@@ -0,0 +1,559 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.storage.StorageConfig;
+import org.asamk.signal.util.IOUtils;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.asamk.signal.util.LogUtils.debug;
+
+/**
+ * Append-only log of received envelopes, written before the envelope is acknowledged to the server.
+ * An envelope is committed once the state changes caused by it are saved. Committed envelopes below the first
+ * uncommitted one are dropped by writing a commit record, segments containing only dropped envelopes are reused for
+ * new envelopes.
+ * <p>
+ * Every record is protected by a CRC, which also covers the id of its segment, so the leftovers of a reused segment
+ * and a partially written record at the end are recognized and ignored.
+ * <p>
+ * Envelopes that should be retried on the next start, e.g. because of an untrusted identity, are kept in a separate
+ * retry file, so they don't hold back the commits and the reuse of the segments.
+ * <p>
+ * Records are not synced when they are written. With the fsync policy always, {@link #sync()} syncs all records
+ * written since the last sync with a single force, with the policy interval a timer syncs them.
+ */
+class MessageLog {
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SPARE_SEGMENT_NAME = "spare";
+    private static final String RETRY_FILE_NAME = "retry";
+    private static final String RETRY_TEMP_FILE_NAME = "retry.tmp";
+    /**
+     * Segment id used for the CRC of the records in the retry file, segments start at 1
+     */
+    private static final long RETRY_FILE_ID = 0;
+
+    private static final byte RECORD_ENVELOPE = 1;
+    private static final byte RECORD_COMMIT = 2;
+
+    /**
+     * Length, CRC, type and value
+     */
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 1 + 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final File directory;
+    private final long segmentSize;
+    private final StorageConfig.FsyncPolicy fsyncPolicy;
+    private final long fsyncInterval;
+
+    /**
+     * Segments before the active one, oldest first
+     */
+    private final Deque<Segment> closedSegments = new ArrayDeque<>();
+    private Segment activeSegment;
+    private FileChannel activeChannel;
+    private long writePosition;
+
+    private long nextSequence;
+    /**
+     * All envelopes up to this sequence are committed
+     */
+    private long committedSequence;
+    /**
+     * Committed envelopes after the first uncommitted one
+     */
+    private final TreeSet<Long> committedAhead = new TreeSet<>();
+    /**
+     * Records were written to the active segment since it was last synced
+     */
+    private boolean unsynced;
+    private ScheduledExecutorService syncTimer;
+
+    private List<LoggedEnvelope> uncommittedEnvelopes;
+
+    /**
+     * Contents of the retry file, the envelopes handed out by {@link #takeRetryEnvelopes()} first
+     */
+    private final List<SignalServiceEnvelope> retryEnvelopes = new ArrayList<>();
+    private int takenRetryCount = -1;
+
+    private MessageLog(File directory, long segmentSize, StorageConfig.FsyncPolicy fsyncPolicy, long fsyncInterval) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncInterval = fsyncInterval;
+    }
+
+    /**
+     * Opens the log and reads the envelopes that were not committed before, they are available once from
+     * {@link #takeUncommittedEnvelopes()}.
+     */
+    static MessageLog open(File directory, long segmentSize, StorageConfig.FsyncPolicy fsyncPolicy, long fsyncInterval) throws IOException {
+        IOUtils.createPrivateDirectories(directory.getPath());
+        MessageLog log = new MessageLog(directory, segmentSize, fsyncPolicy, fsyncInterval);
+        log.replay();
+        if (fsyncPolicy == StorageConfig.FsyncPolicy.INTERVAL) {
+            log.startSyncTimer();
+        }
+        return log;
+    }
+
+    private void startSyncTimer() {
+        syncTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "signal-message-log-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        syncTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    syncWritten();
+                } catch (IOException e) {
+                    System.err.println("Failed to sync message log: " + e.getMessage());
+                }
+            }
+        }, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A logged envelope with its position in the log.
+     */
+    static final class LoggedEnvelope {
+
+        final long sequence;
+        final SignalServiceEnvelope envelope;
+
+        private LoggedEnvelope(long sequence, SignalServiceEnvelope envelope) {
+            this.sequence = sequence;
+            this.envelope = envelope;
+        }
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final File file;
+        /**
+         * Sequence of the last envelope in this segment, or id - 1 if there is none
+         */
+        private long lastSequence;
+
+        private Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+            this.lastSequence = id - 1;
+        }
+    }
+
+    private File getSegmentFile(long id) {
+        return new File(directory, String.format("%019d%s", id, SEGMENT_SUFFIX));
+    }
+
+    private void replay() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Failed to list message log directory " + directory);
+        }
+        // The zero padded names sort by segment id
+        Arrays.sort(files);
+
+        List<LoggedEnvelope> envelopes = new ArrayList<>();
+        long lastSequence = 0;
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            Segment segment = new Segment(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), files[i]);
+            if (lastSequence != 0 && segment.id != lastSequence + 1) {
+                System.err.println("Message log is missing envelopes before segment “" + segment.file + "”, ignoring");
+            }
+            // The envelopes of a segment are numbered consecutively from its id
+            byte[] content = Files.readAllBytes(segment.file.toPath());
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (true) {
+                int start = buffer.position();
+                Record record = readRecord(buffer, segment.id);
+                if (record == null || (record.type == RECORD_ENVELOPE && record.value != segment.lastSequence + 1)) {
+                    // The rest is a partially written record or left over from a previous use of the segment file
+                    buffer.position(start);
+                    break;
+                }
+                if (record.type == RECORD_COMMIT) {
+                    committedSequence = Math.max(committedSequence, record.value);
+                    continue;
+                }
+                segment.lastSequence = record.value;
+                SignalServiceEnvelope envelope = Utils.readEnvelope(new DataInputStream(new ByteArrayInputStream(record.payload)));
+                if (envelope != null) {
+                    envelopes.add(new LoggedEnvelope(record.value, envelope));
+                }
+            }
+            lastSequence = segment.lastSequence;
+            if (i < files.length - 1) {
+                closedSegments.add(segment);
+            } else {
+                activeSegment = segment;
+                writePosition = buffer.position();
+            }
+        }
+
+        nextSequence = lastSequence + 1;
+        if (activeSegment == null) {
+            // Without any segment, a spare one could contain envelopes of a new segment with the same id
+            Files.deleteIfExists(new File(directory, SPARE_SEGMENT_NAME).toPath());
+            nextSequence = 1;
+            startSegment();
+        } else {
+            activeChannel = FileChannel.open(activeSegment.file.toPath(), StandardOpenOption.WRITE);
+        }
+
+        uncommittedEnvelopes = new ArrayList<>();
+        for (LoggedEnvelope envelope : envelopes) {
+            if (envelope.sequence > committedSequence) {
+                uncommittedEnvelopes.add(envelope);
+            }
+        }
+        // Envelopes that are missing or couldn't be read, e.g. written by a newer version, are never committed
+        int next = 0;
+        for (long sequence = committedSequence + 1; sequence < nextSequence; sequence++) {
+            if (next < uncommittedEnvelopes.size() && uncommittedEnvelopes.get(next).sequence == sequence) {
+                next++;
+            } else {
+                committedAhead.add(sequence);
+            }
+        }
+        if (advanceCommittedSequence()) {
+            writeRecord(RECORD_COMMIT, committedSequence, new byte[0]);
+        }
+        debug("message log: %s uncommitted envelopes in %s segments", String.valueOf(uncommittedEnvelopes.size()), String.valueOf(closedSegments.size() + 1));
+        recycleCommittedSegments();
+        readRetryFile();
+    }
+
+    private void readRetryFile() throws IOException {
+        Files.deleteIfExists(new File(directory, RETRY_TEMP_FILE_NAME).toPath());
+        File retryFile = new File(directory, RETRY_FILE_NAME);
+        if (!retryFile.exists()) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(retryFile.toPath()));
+        Record record;
+        while ((record = readRecord(buffer, RETRY_FILE_ID)) != null) {
+            SignalServiceEnvelope envelope = Utils.readEnvelope(new DataInputStream(new ByteArrayInputStream(record.payload)));
+            if (envelope != null) {
+                retryEnvelopes.add(envelope);
+            }
+        }
+    }
+
+    private static final class Record {
+
+        private final byte type;
+        private final long value;
+        private final byte[] payload;
+
+        private Record(byte type, long value, byte[] payload) {
+            this.type = type;
+            this.value = value;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * @return the next record or null, if there is no complete and intact record at the buffer position
+     */
+    private static Record readRecord(ByteBuffer buffer, long segmentId) {
+        if (buffer.remaining() < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        int length = buffer.getInt();
+        int crc = buffer.getInt();
+        if (length < RECORD_HEADER_SIZE || length > MAX_RECORD_SIZE || length - 8 > buffer.remaining()) {
+            return null;
+        }
+        byte[] body = new byte[length - 8];
+        buffer.get(body);
+        if (computeCrc(segmentId, body, body.length) != crc) {
+            return null;
+        }
+        ByteBuffer bodyBuffer = ByteBuffer.wrap(body);
+        byte type = bodyBuffer.get();
+        long value = bodyBuffer.getLong();
+        byte[] payload = new byte[bodyBuffer.remaining()];
+        bodyBuffer.get(payload);
+        return new Record(type, value, payload);
+    }
+
+    private static int computeCrc(long segmentId, byte[] body, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(0, segmentId).array());
+        crc.update(body, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return the envelopes that were not committed, when the log was opened, only on the first call
+     */
+    synchronized List<LoggedEnvelope> takeUncommittedEnvelopes() {
+        List<LoggedEnvelope> envelopes = uncommittedEnvelopes;
+        uncommittedEnvelopes = Collections.emptyList();
+        return envelopes;
+    }
+
+    /**
+     * @return the envelopes kept for a retry, when the log was opened, only on the first call. They are kept until
+     * {@link #finishRetries()} is called.
+     */
+    synchronized List<SignalServiceEnvelope> takeRetryEnvelopes() {
+        if (takenRetryCount >= 0) {
+            return Collections.emptyList();
+        }
+        takenRetryCount = retryEnvelopes.size();
+        return new ArrayList<>(retryEnvelopes);
+    }
+
+    /**
+     * Drops the envelopes returned by {@link #takeRetryEnvelopes()}, once the state changes of their retry are saved.
+     */
+    synchronized void finishRetries() throws IOException {
+        if (activeChannel == null || takenRetryCount <= 0) {
+            return;
+        }
+        retryEnvelopes.subList(0, takenRetryCount).clear();
+        takenRetryCount = 0;
+        writeRetryFile();
+    }
+
+    /**
+     * Keeps the envelope for a retry on the next start. The retry file is replaced and synced right away, retries are
+     * rare and the caller commits the logged envelope afterwards.
+     */
+    synchronized void keepForRetry(SignalServiceEnvelope envelope) throws IOException {
+        if (activeChannel == null) {
+            throw new IOException("Message log is closed");
+        }
+        retryEnvelopes.add(envelope);
+        writeRetryFile();
+    }
+
+    private void writeRetryFile() throws IOException {
+        File retryFile = new File(directory, RETRY_FILE_NAME);
+        if (retryEnvelopes.isEmpty()) {
+            Files.deleteIfExists(retryFile.toPath());
+            return;
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (int i = 0; i < retryEnvelopes.size(); i++) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            Utils.writeEnvelope(retryEnvelopes.get(i), new DataOutputStream(payload));
+            ByteBuffer record = encodeRecord(RETRY_FILE_ID, RECORD_ENVELOPE, i, payload.toByteArray());
+            content.write(record.array(), 0, record.limit());
+        }
+        File tempFile = new File(directory, RETRY_TEMP_FILE_NAME);
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (fsyncPolicy != StorageConfig.FsyncPolicy.NEVER) {
+                channel.force(false);
+            }
+        }
+        Files.move(tempFile.toPath(), retryFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (fsyncPolicy != StorageConfig.FsyncPolicy.NEVER) {
+            syncDirectory(directory);
+        }
+    }
+
+    /**
+     * Appends the envelope, without syncing it, see {@link #sync()}.
+     *
+     * @return the sequence number to commit the envelope with
+     */
+    synchronized long append(SignalServiceEnvelope envelope) throws IOException {
+        if (activeChannel == null) {
+            throw new IOException("Message log is closed");
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        Utils.writeEnvelope(envelope, new DataOutputStream(payload));
+        if (writePosition >= segmentSize) {
+            startSegment();
+        }
+        long sequence = nextSequence;
+        writeRecord(RECORD_ENVELOPE, sequence, payload.toByteArray());
+        nextSequence++;
+        activeSegment.lastSequence = sequence;
+        return sequence;
+    }
+
+    /**
+     * Called before the appended envelopes are acknowledged. With the fsync policy always, syncs the records written
+     * since the last sync, including the commit records and envelopes written by other threads, with a single force.
+     */
+    synchronized void sync() throws IOException {
+        if (fsyncPolicy == StorageConfig.FsyncPolicy.ALWAYS) {
+            syncWritten();
+        }
+    }
+
+    private synchronized void syncWritten() throws IOException {
+        if (activeChannel != null && unsynced) {
+            activeChannel.force(false);
+            unsynced = false;
+        }
+    }
+
+    /**
+     * Marks the envelope as processed. Only the first uncommitted envelope is recorded, envelopes committed after it
+     * are processed again after a restart. The commit record isn't synced, after a crash an envelope may be processed
+     * again, like a cached message whose deletion was lost.
+     */
+    synchronized void commit(long sequence) throws IOException {
+        if (activeChannel == null || sequence <= committedSequence) {
+            // After closing, the envelope is processed again on the next start
+            return;
+        }
+        committedAhead.add(sequence);
+        if (!advanceCommittedSequence()) {
+            return;
+        }
+        writeRecord(RECORD_COMMIT, committedSequence, new byte[0]);
+        recycleCommittedSegments();
+    }
+
+    /**
+     * @return true, if the first uncommitted envelope changed
+     */
+    private boolean advanceCommittedSequence() {
+        long committed = committedSequence;
+        while (committedAhead.remove(committed + 1)) {
+            committed++;
+        }
+        if (committed == committedSequence) {
+            return false;
+        }
+        committedSequence = committed;
+        return true;
+    }
+
+    private static ByteBuffer encodeRecord(long segmentId, byte type, long value, byte[] payload) {
+        int length = RECORD_HEADER_SIZE + payload.length;
+        ByteBuffer body = ByteBuffer.allocate(length - 8);
+        body.put(type).putLong(value).put(payload);
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length).putInt(computeCrc(segmentId, body.array(), body.capacity())).put(body.array());
+        record.flip();
+        return record;
+    }
+
+    private void writeRecord(byte type, long value, byte[] payload) throws IOException {
+        ByteBuffer record = encodeRecord(activeSegment.id, type, value, payload);
+        long position = writePosition;
+        while (record.hasRemaining()) {
+            position += activeChannel.write(record, position);
+        }
+        writePosition = position;
+        unsynced = true;
+    }
+
+    /**
+     * Continues with a new segment, which starts with the current commit record, so the commit state doesn't depend
+     * on older segments.
+     */
+    private void startSegment() throws IOException {
+        if (activeChannel != null) {
+            if (unsynced && fsyncPolicy != StorageConfig.FsyncPolicy.NEVER) {
+                // The next sync only covers the new segment
+                activeChannel.force(false);
+            }
+            activeChannel.close();
+            closedSegments.add(activeSegment);
+        }
+        Segment segment = new Segment(nextSequence, getSegmentFile(nextSequence));
+        File spareFile = new File(directory, SPARE_SEGMENT_NAME);
+        if (spareFile.exists()) {
+            // Overwriting an existing file doesn't need to allocate blocks or grow the file for every append
+            Files.move(spareFile.toPath(), segment.file.toPath());
+        } else {
+            IOUtils.createPrivateFile(segment.file.getPath());
+        }
+        if (fsyncPolicy != StorageConfig.FsyncPolicy.NEVER) {
+            syncDirectory(directory);
+        }
+        activeSegment = segment;
+        activeChannel = FileChannel.open(segment.file.toPath(), StandardOpenOption.WRITE);
+        writePosition = 0;
+        writeRecord(RECORD_COMMIT, committedSequence, new byte[0]);
+    }
+
+    /**
+     * Makes the new segment file durable, before envelopes in it are acknowledged.
+     */
+    private static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories can't be opened on all platforms, e.g. on Windows
+            debug("failed to sync directory %s: %s", directory.getPath(), e.getMessage());
+        }
+    }
+
+    /**
+     * Keeps the first fully committed segment as spare for reuse and deletes the others.
+     */
+    private void recycleCommittedSegments() throws IOException {
+        while (!closedSegments.isEmpty() && closedSegments.peekFirst().lastSequence <= committedSequence) {
+            Segment segment = closedSegments.removeFirst();
+            File spareFile = new File(directory, SPARE_SEGMENT_NAME);
+            if (spareFile.exists()) {
+                Files.delete(segment.file.toPath());
+            } else {
+                Files.move(segment.file.toPath(), spareFile.toPath());
+            }
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (syncTimer != null) {
+            syncTimer.shutdown();
+            syncTimer = null;
+        }
+        if (activeChannel != null) {
+            activeChannel.force(false);
+            activeChannel.close();
+            activeChannel = null;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.asamk.signal.manager;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks one after another on its own thread, in the order they were submitted, from a bounded queue.
+ * A full queue blocks the submitter, which passes the backpressure on to the previous stage.
+ * If the thread stops because of an error, its queue isn't taken from anymore, so submitters stop waiting for it.
+ */
+class PipelineStage {
+
+    /**
+     * Time in milliseconds a blocked submitter waits before it checks again whether the thread is still running
+     */
+    private static final long LIVENESS_CHECK_INTERVAL = 100;
+
+    private static final Runnable SHUTDOWN = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final BlockingQueue<Runnable> queue;
+    private final Thread thread;
+
+    private volatile Throwable failure;
+
+    /**
+     * @param queueCapacity Maximum number of waiting tasks
+     */
+    PipelineStage(String name, int queueCapacity) {
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.thread = new Thread(new Worker(), name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Blocks while the queue is full.
+     *
+     * @return false if the thread has stopped and the task was not queued, see {@link #getFailure()}
+     */
+    boolean submit(Runnable task) throws InterruptedException {
+        while (!queue.offer(task, LIVENESS_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+            if (!thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of waiting tasks, without the running one
+     */
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the first exception or error thrown by a task, the remaining tasks still run. If the thread stopped
+     * unexpectedly, this is set as well.
+     */
+    Throwable getFailure() {
+        return failure;
+    }
+
+    private synchronized void setFailure(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Runs the already submitted tasks and waits until the thread has finished.
+     * If the thread has stopped before, the waiting tasks are dropped.
+     */
+    void shutdown() throws InterruptedException {
+        submit(SHUTDOWN);
+        thread.join();
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            boolean stopped = false;
+            try {
+                while (true) {
+                    Runnable task = queue.take();
+                    if (task == SHUTDOWN) {
+                        stopped = true;
+                        return;
+                    }
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        setFailure(e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                setFailure(e);
+            } finally {
+                if (!stopped) {
+                    setFailure(new IllegalStateException("Thread " + Thread.currentThread().getName() + " stopped unexpectedly"));
+                }
+            }
+        }
+    }
+}
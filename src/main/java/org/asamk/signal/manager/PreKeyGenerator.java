@@ -0,0 +1,91 @@
+package org.asamk.signal.manager;
+
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.util.Medium;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Generates batches of one-time prekeys. Larger batches are split across all available cores, the prekey ids are
+ * assigned from the offset in the same order as for sequential generation.
+ */
+final class PreKeyGenerator {
+
+    /**
+     * Smaller batches are generated on the calling thread, starting threads would cost more than it saves.
+     */
+    private static final int MIN_PARALLEL_BATCH_SIZE = 32;
+
+    private PreKeyGenerator() {
+    }
+
+    static List<PreKeyRecord> generatePreKeys(int offset, int batchSize) {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), batchSize / (MIN_PARALLEL_BATCH_SIZE / 2));
+        if (batchSize < MIN_PARALLEL_BATCH_SIZE || threads < 2) {
+            return generatePreKeysSequential(offset, batchSize);
+        }
+        return generatePreKeysParallel(offset, batchSize, threads);
+    }
+
+    static List<PreKeyRecord> generatePreKeysSequential(int offset, int batchSize) {
+        List<PreKeyRecord> records = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            records.add(generatePreKey(offset, i));
+        }
+        return records;
+    }
+
+    static List<PreKeyRecord> generatePreKeysParallel(final int offset, int batchSize, int threads) {
+        final PreKeyRecord[] records = new PreKeyRecord[batchSize];
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "signal-prekey-generator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>(threads);
+            int chunkSize = (batchSize + threads - 1) / threads;
+            for (int start = 0; start < batchSize; start += chunkSize) {
+                final int chunkStart = start;
+                final int chunkEnd = Math.min(start + chunkSize, batchSize);
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = chunkStart; i < chunkEnd; i++) {
+                            records[i] = generatePreKey(offset, i);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError(e);
+        } catch (ExecutionException e) {
+            throw new AssertionError(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return Arrays.asList(records);
+    }
+
+    private static PreKeyRecord generatePreKey(int offset, int index) {
+        int preKeyId = (offset + index) % Medium.MAX_VALUE;
+        ECKeyPair keyPair = Curve.generateKeyPair();
+        return new PreKeyRecord(preKeyId, keyPair);
+    }
+}
@@ -0,0 +1,76 @@
+package org.asamk.signal.manager;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps enough one-time prekeys on the server for a long running receive loop and rotates the signed prekey, on a
+ * background thread.
+ * The server count is checked periodically and additionally once a number of prekeys were consumed locally.
+ */
+class PreKeyRefresher {
+
+    private final Manager manager;
+    private final long checkInterval;
+    private final long signedPreKeyRotationInterval;
+    private final ScheduledExecutorService executor;
+
+    private final AtomicInteger consumedPreKeys = new AtomicInteger();
+
+    /**
+     * @param checkInterval                Time in milliseconds between two checks of the server prekey count
+     * @param signedPreKeyRotationInterval Age in milliseconds after which the signed prekey is replaced
+     */
+    PreKeyRefresher(Manager manager, long checkInterval, long signedPreKeyRotationInterval) {
+        this.manager = manager;
+        this.checkInterval = checkInterval;
+        this.signedPreKeyRotationInterval = signedPreKeyRotationInterval;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "signal-prekey-refresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    void start() {
+        executor.scheduleWithFixedDelay(new CheckTask(), checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called when a one-time prekey was used by a received message, doesn't block the caller.
+     */
+    void onPreKeyConsumed() {
+        if (consumedPreKeys.incrementAndGet() == BaseConfig.PREKEY_CONSUMED_CHECK_COUNT) {
+            executor.execute(new CheckTask());
+        }
+    }
+
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    private void check() {
+        consumedPreKeys.set(0);
+        try {
+            manager.refreshPreKeysIfNeeded();
+            manager.rotateSignedPreKeyIfNeeded(signedPreKeyRotationInterval);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to refresh pre keys: " + e.getMessage());
+        }
+    }
+
+    private class CheckTask implements Runnable {
+
+        @Override
+        public void run() {
+            check();
+        }
+    }
+}
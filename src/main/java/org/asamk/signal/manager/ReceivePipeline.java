@@ -0,0 +1,140 @@
+package org.asamk.signal.manager;
+
+import org.whispersystems.signalservice.api.messages.SignalServiceContent;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The stages of the receive loop after the network read: decrypt, process and output. Every stage has its own thread
+ * and bounded queue, so the message pipe is read again while earlier messages are still handled.
+ * Messages pass every stage in the order they were read.
+ * Decrypting holds the global session lock of libsignal and sealed sender envelopes only reveal their sender when
+ * they are decrypted, so more decrypt threads would only parallelize the parsing around it and could reorder the
+ * messages of a sender that sends both sealed and unsealed envelopes.
+ */
+abstract class ReceivePipeline {
+
+    private final PipelineStage decryptStage;
+    private final PipelineStage processStage;
+    private final PipelineStage outputStage;
+
+    /**
+     * @param queueCapacity Maximum number of waiting messages per stage
+     */
+    ReceivePipeline(int queueCapacity) {
+        this.decryptStage = new PipelineStage("signal-receive-decrypt", queueCapacity);
+        // The account state is changed by a single thread, in the order the messages were decrypted
+        this.processStage = new PipelineStage("signal-receive-process", queueCapacity);
+        this.outputStage = new PipelineStage("signal-receive-output", queueCapacity);
+    }
+
+    /**
+     * Decrypts the envelope, sets the content or the exception of the message.
+     */
+    abstract void decrypt(ReceivedMessage message);
+
+    /**
+     * Applies the message to the account state and saves it.
+     */
+    abstract void process(ReceivedMessage message);
+
+    /**
+     * Passes the message on to the handler, after its state changes were saved.
+     */
+    abstract void output(ReceivedMessage message);
+
+    /**
+     * Called by the reader, after the envelope was appended to the message log. Blocks while the decrypt queue is full.
+     *
+     * @param logSequence Sequence of the envelope in the message log, to commit it with after the output
+     * @return false if a stage has stopped, the reader should stop and report {@link #getFailure()}
+     */
+    boolean submit(final SignalServiceEnvelope envelope, final long logSequence) throws InterruptedException {
+        final ReceivedMessage message = new ReceivedMessage(envelope, logSequence);
+        return decryptStage.submit(new Runnable() {
+            @Override
+            public void run() {
+                decrypt(message);
+                passOn(processStage, new Runnable() {
+                    @Override
+                    public void run() {
+                        process(message);
+                        passOn(outputStage, new Runnable() {
+                            @Override
+                            public void run() {
+                                output(message);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private static void passOn(PipelineStage stage, Runnable task) {
+        boolean submitted;
+        try {
+            submitted = stage.submit(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while passing on a received message", e);
+        }
+        if (!submitted) {
+            throw new IllegalStateException("The next stage has stopped, dropping a received message", stage.getFailure());
+        }
+    }
+
+    /**
+     * @return the number of waiting messages of every stage, in stage order
+     */
+    Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        depths.put("decrypt", decryptStage.getQueueDepth());
+        depths.put("process", processStage.getQueueDepth());
+        depths.put("output", outputStage.getQueueDepth());
+        return depths;
+    }
+
+    /**
+     * @return the first exception or error thrown by a stage, the receive loop should stop reading new messages.
+     * Later stages are checked first, a failing stage also makes the tasks of the stages before it fail.
+     */
+    Throwable getFailure() {
+        Throwable failure = outputStage.getFailure();
+        if (failure == null) {
+            failure = processStage.getFailure();
+        }
+        if (failure == null) {
+            failure = decryptStage.getFailure();
+        }
+        return failure;
+    }
+
+    /**
+     * Handles all submitted messages and waits until every stage has finished.
+     */
+    void shutdown() throws InterruptedException {
+        decryptStage.shutdown();
+        processStage.shutdown();
+        outputStage.shutdown();
+    }
+
+    /**
+     * A message on its way through the stages. The fields set by one stage are visible to the next one, because the
+     * message is handed over through a blocking queue.
+     */
+    static final class ReceivedMessage {
+
+        final SignalServiceEnvelope envelope;
+        final long logSequence;
+        SignalServiceContent content;
+        Exception exception;
+
+        private ReceivedMessage(SignalServiceEnvelope envelope, long logSequence) {
+            this.envelope = envelope;
+            this.logSequence = logSequence;
+        }
+    }
+}
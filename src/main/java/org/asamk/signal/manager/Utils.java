@@ -34,6 +34,7 @@ import java.net.URLConnection;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -174,81 +175,76 @@ class Utils {
 
     static SignalServiceEnvelope loadEnvelope(File file) throws IOException {
         try (FileInputStream f = new FileInputStream(file)) {
-            DataInputStream in = new DataInputStream(f);
-            int version = in.readInt();
-            if (version > 2) {
-                return null;
-            }
-            int type = in.readInt();
-            String source = in.readUTF();
-            int sourceDevice = in.readInt();
-            if (version == 1) {
-                // read legacy relay field
-                in.readUTF();
-            }
-            long timestamp = in.readLong();
-            byte[] content = null;
-            int contentLen = in.readInt();
-            if (contentLen > 0) {
-                content = new byte[contentLen];
-                in.readFully(content);
-            }
-            byte[] legacyMessage = null;
-            int legacyMessageLen = in.readInt();
-            if (legacyMessageLen > 0) {
-                legacyMessage = new byte[legacyMessageLen];
-                in.readFully(legacyMessage);
-            }
-            long serverTimestamp = 0;
-            String uuid = null;
-            if (version == 2) {
-                serverTimestamp = in.readLong();
-                uuid = in.readUTF();
-                if ("".equals(uuid)) {
-                    uuid = null;
-                }
-            }
-            return new SignalServiceEnvelope(type, Optional.of(new SignalServiceAddress(null, source)), sourceDevice, timestamp, legacyMessage, content, serverTimestamp, uuid);
+            return readEnvelope(new DataInputStream(f));
         }
     }
 
-    static void storeEnvelope(SignalServiceEnvelope envelope, File file) throws IOException {
-        try (FileOutputStream f = new FileOutputStream(file)) {
-            try (DataOutputStream out = new DataOutputStream(f)) {
-                out.writeInt(2); // version
-                out.writeInt(envelope.getType());
-                out.writeUTF(envelope.getSourceE164().get());
-                out.writeInt(envelope.getSourceDevice());
-                out.writeLong(envelope.getTimestamp());
-                if (envelope.hasContent()) {
-                    out.writeInt(envelope.getContent().length);
-                    out.write(envelope.getContent());
-                } else {
-                    out.writeInt(0);
-                }
-                if (envelope.hasLegacyMessage()) {
-                    out.writeInt(envelope.getLegacyMessage().length);
-                    out.write(envelope.getLegacyMessage());
-                } else {
-                    out.writeInt(0);
-                }
-                out.writeLong(envelope.getServerTimestamp());
-                String uuid = envelope.getUuid();
-                out.writeUTF(uuid == null ? "" : uuid);
+    /**
+     * @return the envelope or null, if it was written by a newer version
+     */
+    static SignalServiceEnvelope readEnvelope(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version > 2) {
+            return null;
+        }
+        int type = in.readInt();
+        String source = in.readUTF();
+        int sourceDevice = in.readInt();
+        if (version == 1) {
+            // read legacy relay field
+            in.readUTF();
+        }
+        long timestamp = in.readLong();
+        byte[] content = null;
+        int contentLen = in.readInt();
+        if (contentLen > 0) {
+            content = new byte[contentLen];
+            in.readFully(content);
+        }
+        byte[] legacyMessage = null;
+        int legacyMessageLen = in.readInt();
+        if (legacyMessageLen > 0) {
+            legacyMessage = new byte[legacyMessageLen];
+            in.readFully(legacyMessage);
+        }
+        long serverTimestamp = 0;
+        String uuid = null;
+        if (version == 2) {
+            serverTimestamp = in.readLong();
+            uuid = in.readUTF();
+            if ("".equals(uuid)) {
+                uuid = null;
             }
         }
+        return new SignalServiceEnvelope(type, Optional.of(new SignalServiceAddress(null, source)), sourceDevice, timestamp, legacyMessage, content, serverTimestamp, uuid);
     }
 
-    static File retrieveAttachment(SignalServiceAttachmentStream stream, File outputFile) throws IOException {
-        InputStream input = stream.getInputStream();
-
-        try (OutputStream output = new FileOutputStream(outputFile)) {
-            byte[] buffer = new byte[4096];
-            int read;
+    static void writeEnvelope(SignalServiceEnvelope envelope, DataOutputStream out) throws IOException {
+        out.writeInt(2); // version
+        out.writeInt(envelope.getType());
+        out.writeUTF(envelope.getSourceE164().get());
+        out.writeInt(envelope.getSourceDevice());
+        out.writeLong(envelope.getTimestamp());
+        if (envelope.hasContent()) {
+            out.writeInt(envelope.getContent().length);
+            out.write(envelope.getContent());
+        } else {
+            out.writeInt(0);
+        }
+        if (envelope.hasLegacyMessage()) {
+            out.writeInt(envelope.getLegacyMessage().length);
+            out.write(envelope.getLegacyMessage());
+        } else {
+            out.writeInt(0);
+        }
+        out.writeLong(envelope.getServerTimestamp());
+        String uuid = envelope.getUuid();
+        out.writeUTF(uuid == null ? "" : uuid);
+    }
 
-            while ((read = input.read(buffer)) != -1) {
-                output.write(buffer, 0, read);
-            }
+    static File retrieveAttachment(SignalServiceAttachmentStream stream, File outputFile) throws IOException {
+        try {
+            storeAttachment(stream.getInputStream(), outputFile);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             return null;
@@ -256,6 +252,27 @@ class Utils {
         return outputFile;
     }
 
+    /**
+     * Writes the attachment to a part file next to the output file and renames it into place, so the output file is
+     * never seen partially written and the rename doesn't need to copy.
+     */
+    static void storeAttachment(InputStream input, File outputFile) throws IOException {
+        File partFile = new File(outputFile + ".part");
+        try {
+            try (OutputStream output = new FileOutputStream(partFile)) {
+                byte[] buffer = new byte[BaseConfig.ATTACHMENT_BUFFER_SIZE];
+                int read;
+
+                while ((read = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+            }
+            Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partFile.toPath());
+        }
+    }
+
     static String computeSafetyNumber(String ownUsername, IdentityKey ownIdentityKey, String theirUsername, IdentityKey theirIdentityKey) {
         // Version 1: E164 user
         // Version 2: UUID user
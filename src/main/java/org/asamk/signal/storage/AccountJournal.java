@@ -0,0 +1,200 @@
+package org.asamk.signal.storage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.asamk.signal.util.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.asamk.signal.util.LogUtils.debug;
+
+/**
+ * Append-only log of store changes, one json record per line.
+ * Records are collected in memory and written to disk on {@link #flush()}.
+ */
+class AccountJournal implements StoreChangeListener {
+
+    private final File file;
+    private final ObjectMapper jsonProcessor;
+    private final ObjectWriter recordWriter;
+    private final FileChannel fileChannel;
+    private final List<JsonNode> pendingRecords = new ArrayList<>();
+
+    private AccountJournal(File file, ObjectMapper jsonProcessor) throws IOException {
+        this.file = file;
+        this.jsonProcessor = jsonProcessor;
+        this.recordWriter = jsonProcessor.writer().without(SerializationFeature.INDENT_OUTPUT);
+        if (!file.exists()) {
+            IOUtils.createPrivateFile(file.getPath());
+        }
+        this.fileChannel = new FileOutputStream(file, true).getChannel();
+    }
+
+    static AccountJournal open(String fileName, ObjectMapper jsonProcessor) throws IOException {
+        return new AccountJournal(new File(fileName), jsonProcessor);
+    }
+
+    static boolean exists(String fileName) {
+        return new File(fileName).isFile();
+    }
+
+    @Override
+    public void onPut(String store, String key, Object entry) {
+        ObjectNode record = jsonProcessor.createObjectNode();
+        record.put("store", store)
+                .put("op", "put")
+                .put("key", key)
+                .set("entry", jsonProcessor.valueToTree(entry));
+        addRecord(record);
+    }
+
+    @Override
+    public void onRemove(String store, String key) {
+        ObjectNode record = jsonProcessor.createObjectNode();
+        record.put("store", store)
+                .put("op", "remove")
+                .put("key", key);
+        addRecord(record);
+    }
+
+    private synchronized void addRecord(JsonNode record) {
+        pendingRecords.add(record);
+    }
+
+    /**
+     * Reads all records from the journal file.
+     * A partially written record at the end, e.g. after a crash, is cut off.
+     * Complete lines that can't be parsed are skipped and reported in the returned contents.
+     */
+    Contents readRecords() throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        List<JsonNode> records = new ArrayList<>();
+        List<Integer> corruptLines = new ArrayList<>();
+        int start = 0;
+        int line = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] != '\n') {
+                continue;
+            }
+            line++;
+            try {
+                JsonNode record = jsonProcessor.readTree(new String(content, start, i - start, "UTF-8"));
+                if (record == null || !record.isObject()) {
+                    throw new IOException("Not a journal record");
+                }
+                records.add(record);
+            } catch (IOException e) {
+                corruptLines.add(line);
+            }
+            start = i + 1;
+        }
+        final boolean tornTail = start < content.length;
+        if (tornTail) {
+            synchronized (fileChannel) {
+                fileChannel.truncate(start);
+            }
+        }
+        debug("read %s journal records", String.valueOf(records.size()));
+        return new Contents(records, corruptLines, tornTail);
+    }
+
+    /**
+     * Appends all pending records to the journal file.
+     *
+     * @param sync if the appended records should be synced to disk
+     */
+    void flush(boolean sync) throws IOException {
+        List<JsonNode> records;
+        synchronized (this) {
+            if (pendingRecords.isEmpty()) {
+                return;
+            }
+            records = new ArrayList<>(pendingRecords);
+            pendingRecords.clear();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (JsonNode record : records) {
+            recordWriter.writeValue(out, record);
+            out.write('\n');
+        }
+        synchronized (fileChannel) {
+            ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+            if (sync) {
+                fileChannel.force(false);
+            }
+        }
+    }
+
+    long size() throws IOException {
+        return fileChannel.size();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Discards all records written so far, after they have been folded into the account file. The account file must
+     * be synced before, otherwise a system crash may lose both.
+     */
+    void truncate() throws IOException {
+        synchronized (fileChannel) {
+            fileChannel.truncate(0);
+            fileChannel.force(false);
+        }
+    }
+
+    void delete() throws IOException {
+        fileChannel.close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * The records read from the journal file, and the parts of the file that had to be skipped.
+     */
+    static class Contents {
+
+        private final List<JsonNode> records;
+        private final List<Integer> corruptLines;
+        private final boolean tornTail;
+
+        Contents(List<JsonNode> records, List<Integer> corruptLines, boolean tornTail) {
+            this.records = records;
+            this.corruptLines = corruptLines;
+            this.tornTail = tornTail;
+        }
+
+        List<JsonNode> getRecords() {
+            return records;
+        }
+
+        /**
+         * @return the line numbers, starting at 1, of complete records that could not be parsed
+         */
+        List<Integer> getCorruptLines() {
+            return corruptLines;
+        }
+
+        /**
+         * @return true if an incomplete record at the end of the file was cut off
+         */
+        boolean hasTornTail() {
+            return tornTail;
+        }
+    }
+}
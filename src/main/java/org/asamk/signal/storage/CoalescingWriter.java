@@ -0,0 +1,135 @@
+package org.asamk.signal.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.asamk.signal.util.LogUtils.debug;
+
+/**
+ * Combines write requests into a single write on a background thread.
+ * A write happens at most maxDelay milliseconds after the first pending request, or immediately once maxPending
+ * requests have accumulated.
+ */
+class CoalescingWriter {
+
+    private final BooleanSupplier writer;
+    private final long maxDelay;
+    private final int maxPending;
+    private final ScheduledExecutorService executor;
+
+    private int pending = 0;
+    private ScheduledFuture<?> scheduledWrite;
+    private List<Runnable> afterWriteActions = new ArrayList<>();
+
+    /**
+     * @param writer Performs the actual write, returns false if it failed. It runs on the background thread, so it
+     *               must only write state that was captured by the threads requesting the write.
+     */
+    CoalescingWriter(BooleanSupplier writer, long maxDelay, int maxPending) {
+        this.writer = writer;
+        this.maxDelay = maxDelay;
+        this.maxPending = Math.max(1, maxPending);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "signal-account-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    synchronized void requestWrite() {
+        pending++;
+        scheduleWrite();
+    }
+
+    /**
+     * Runs the action once all changes requested before this call have been written.
+     */
+    synchronized void runAfterWrite(Runnable action) {
+        afterWriteActions.add(action);
+        pending++;
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (pending >= maxPending) {
+            if (scheduledWrite != null && scheduledWrite.getDelay(TimeUnit.MILLISECONDS) <= 0) {
+                return;
+            }
+            if (scheduledWrite != null) {
+                scheduledWrite.cancel(false);
+            }
+            scheduledWrite = executor.schedule(new WriteTask(), 0, TimeUnit.MILLISECONDS);
+        } else if (scheduledWrite == null) {
+            scheduledWrite = executor.schedule(new WriteTask(), maxDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void write() {
+        List<Runnable> actions;
+        int count;
+        synchronized (this) {
+            scheduledWrite = null;
+            if (pending == 0) {
+                return;
+            }
+            count = pending;
+            pending = 0;
+            actions = afterWriteActions;
+            afterWriteActions = new ArrayList<>();
+        }
+        debug("writing %s coalesced changes", String.valueOf(count));
+        if (!writer.getAsBoolean()) {
+            // Keep the actions for the next attempt, their state is not yet on disk
+            synchronized (this) {
+                actions.addAll(afterWriteActions);
+                afterWriteActions = actions;
+                pending += count;
+                if (scheduledWrite == null) {
+                    scheduledWrite = executor.schedule(new WriteTask(), maxDelay, TimeUnit.MILLISECONDS);
+                }
+            }
+            return;
+        }
+        for (Runnable action : actions) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error after saving: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes all pending changes and waits until the write is finished.
+     */
+    void flush() {
+        if (executor.isShutdown()) {
+            return;
+        }
+        try {
+            executor.submit(new WriteTask()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Error saving pending changes: " + e.getCause().getMessage());
+        }
+    }
+
+    private class WriteTask implements Runnable {
+
+        @Override
+        public void run() {
+            write();
+        }
+    }
+}
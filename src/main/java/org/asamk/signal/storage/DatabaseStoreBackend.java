@@ -0,0 +1,324 @@
+package org.asamk.signal.storage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.asamk.signal.storage.contacts.JsonContactsStore;
+import org.asamk.signal.storage.groups.JsonGroupStore;
+import org.asamk.signal.storage.threads.JsonThreadStore;
+import org.asamk.signal.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.asamk.signal.util.LogUtils.debug;
+
+/**
+ * Saves every store entry as its own row in an embedded sqlite database.
+ * Changes reported by the stores are collected and written in a single transaction, so a save only touches the rows
+ * that actually changed.
+ */
+class DatabaseStoreBackend implements StoreBackend, StoreChangeListener {
+
+    private static final String LOCAL_IDENTITY_STORE = "localIdentity";
+    private static final String LOCAL_IDENTITY_KEY = "local";
+
+    private final String fileName;
+    private final ObjectMapper jsonProcessor;
+    private final ObjectWriter entryWriter;
+    private final StorageConfig.FsyncPolicy fsyncPolicy;
+    private Connection connection;
+
+    /**
+     * Changes since the last write, by store and key, a null entry marks a removed key.
+     */
+    private Map<String, Map<String, Object>> pendingChanges = new HashMap<>();
+    private boolean populated = false;
+
+    DatabaseStoreBackend(String fileName, ObjectMapper jsonProcessor, StorageConfig.FsyncPolicy fsyncPolicy) {
+        this.fileName = fileName;
+        this.jsonProcessor = jsonProcessor;
+        this.fsyncPolicy = fsyncPolicy;
+        this.entryWriter = jsonProcessor.writer().without(SerializationFeature.INDENT_OUTPUT);
+    }
+
+    private Connection getConnection() throws IOException {
+        if (connection != null) {
+            return connection;
+        }
+        File file = new File(fileName);
+        IOUtils.createPrivateDirectories(file.getParent());
+        if (!file.exists()) {
+            IOUtils.createPrivateFile(fileName);
+        }
+        try {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + fileName);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=" + getSynchronousMode());
+                statement.execute("CREATE TABLE IF NOT EXISTS entries (store TEXT NOT NULL, key TEXT NOT NULL, entry TEXT NOT NULL, PRIMARY KEY (store, key))");
+            }
+        } catch (SQLException e) {
+            connection = null;
+            throw new IOException("Failed to open account database: " + e.getMessage(), e);
+        }
+        return connection;
+    }
+
+    /**
+     * In WAL mode, NORMAL only syncs on checkpoints, so committed transactions may be lost on a system crash.
+     */
+    private String getSynchronousMode() {
+        switch (fsyncPolicy) {
+            case ALWAYS:
+                return "FULL";
+            case INTERVAL:
+                return "NORMAL";
+            default:
+                return "OFF";
+        }
+    }
+
+    private static void setSynchronousMode(Connection connection, String mode) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA synchronous=" + mode);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "db";
+    }
+
+    @Override
+    public synchronized void onPut(String store, String key, Object entry) {
+        getPendingChanges(store).put(key, entry);
+    }
+
+    @Override
+    public synchronized void onRemove(String store, String key) {
+        getPendingChanges(store).put(key, null);
+    }
+
+    private Map<String, Object> getPendingChanges(String store) {
+        Map<String, Object> changes = pendingChanges.get(store);
+        if (changes == null) {
+            changes = new LinkedHashMap<>();
+            pendingChanges.put(store, changes);
+        }
+        return changes;
+    }
+
+    @Override
+    public void readStores(ObjectNode rootNode) throws IOException {
+        ObjectNode axolotlStoreNode = rootNode.putObject("axolotlStore");
+        ObjectNode identityKeyStoreNode = axolotlStoreNode.putObject("identityKeyStore");
+        Map<String, ArrayNode> entries = new HashMap<>();
+        entries.put("preKeys", axolotlStoreNode.putArray("preKeys"));
+        entries.put("sessionStore", axolotlStoreNode.putArray("sessionStore"));
+        entries.put("signedPreKeyStore", axolotlStoreNode.putArray("signedPreKeyStore"));
+        entries.put("identityKeyStore", identityKeyStoreNode.putArray("trustedKeys"));
+        entries.put(JsonGroupStore.STORE_NAME, rootNode.putObject(JsonGroupStore.STORE_NAME).putArray("groups"));
+        entries.put(JsonContactsStore.STORE_NAME, rootNode.putObject(JsonContactsStore.STORE_NAME).putArray("contacts"));
+        entries.put(JsonThreadStore.STORE_NAME, rootNode.putObject(JsonThreadStore.STORE_NAME).putArray("threads"));
+
+        boolean hasLocalIdentity = false;
+        try (Statement statement = getConnection().createStatement();
+             ResultSet result = statement.executeQuery("SELECT store, entry FROM entries")) {
+            while (result.next()) {
+                String store = result.getString(1);
+                JsonNode entry = jsonProcessor.readTree(result.getString(2));
+                if (LOCAL_IDENTITY_STORE.equals(store)) {
+                    identityKeyStoreNode.setAll((ObjectNode) entry);
+                    hasLocalIdentity = true;
+                    continue;
+                }
+                ArrayNode storeEntries = entries.get(store);
+                if (storeEntries == null) {
+                    System.err.println("Ignoring database entry for unknown store: " + store);
+                    continue;
+                }
+                storeEntries.add(entry);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to read account database: " + e.getMessage(), e);
+        }
+        if (!hasLocalIdentity) {
+            throw new IOException("Missing local identity in account database: " + fileName);
+        }
+        synchronized (this) {
+            populated = true;
+        }
+    }
+
+    @Override
+    public void writeStores(Map<String, PersistentStore> stores, boolean sync) throws IOException {
+        Map<String, Map<String, Object>> changes;
+        boolean writeAll;
+        synchronized (this) {
+            changes = pendingChanges;
+            pendingChanges = new HashMap<>();
+            writeAll = !populated;
+        }
+        Connection connection = getConnection();
+        // The synchronous mode can't be changed inside a transaction
+        final boolean raiseSynchronousMode = sync && fsyncPolicy != StorageConfig.FsyncPolicy.ALWAYS;
+        try {
+            if (raiseSynchronousMode) {
+                setSynchronousMode(connection, "FULL");
+            }
+            connection.setAutoCommit(false);
+            try (PreparedStatement put = connection.prepareStatement("INSERT OR REPLACE INTO entries (store, key, entry) VALUES (?, ?, ?)");
+                 PreparedStatement remove = connection.prepareStatement("DELETE FROM entries WHERE store = ? AND key = ?")) {
+                if (writeAll) {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute("DELETE FROM entries");
+                    }
+                    for (Map.Entry<String, PersistentStore> store : stores.entrySet()) {
+                        addStoreEntries(put, store.getKey(), jsonProcessor.valueToTree(store.getValue()));
+                    }
+                } else {
+                    for (Map.Entry<String, Map<String, Object>> storeChanges : changes.entrySet()) {
+                        for (Map.Entry<String, Object> change : storeChanges.getValue().entrySet()) {
+                            if (change.getValue() == null) {
+                                remove.setString(1, storeChanges.getKey());
+                                remove.setString(2, change.getKey());
+                                remove.addBatch();
+                            } else {
+                                addEntry(put, storeChanges.getKey(), change.getKey(), jsonProcessor.valueToTree(change.getValue()));
+                            }
+                        }
+                    }
+                }
+                put.executeBatch();
+                remove.executeBatch();
+            }
+            connection.commit();
+            debug("saved %s changed stores to database", String.valueOf(writeAll ? stores.size() : changes.size()));
+        } catch (SQLException | RuntimeException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException ignored) {
+            }
+            restorePendingChanges(changes, writeAll);
+            throw new IOException("Failed to write account database: " + e.getMessage(), e);
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+                if (raiseSynchronousMode) {
+                    setSynchronousMode(connection, getSynchronousMode());
+                }
+            } catch (SQLException ignored) {
+            }
+        }
+        synchronized (this) {
+            populated = true;
+        }
+        for (PersistentStore store : stores.values()) {
+            store.setDirty(false);
+        }
+    }
+
+    /**
+     * Puts back changes that failed to be written, changes reported in the meantime take precedence.
+     */
+    private synchronized void restorePendingChanges(Map<String, Map<String, Object>> changes, boolean writeAll) {
+        for (Map.Entry<String, Map<String, Object>> storeChanges : changes.entrySet()) {
+            Map<String, Object> newerChanges = getPendingChanges(storeChanges.getKey());
+            Map<String, Object> merged = new LinkedHashMap<>(storeChanges.getValue());
+            merged.putAll(newerChanges);
+            newerChanges.clear();
+            newerChanges.putAll(merged);
+        }
+        if (writeAll) {
+            populated = false;
+        }
+    }
+
+    /**
+     * Adds a row for every entry of the serialized store.
+     */
+    private void addStoreEntries(PreparedStatement put, String store, JsonNode storeNode) throws IOException, SQLException {
+        switch (store) {
+            case "preKeys":
+            case "signedPreKeyStore":
+                for (JsonNode entry : storeNode) {
+                    addEntry(put, store, entry.get("id").asText(), entry);
+                }
+                break;
+            case "sessionStore":
+                for (JsonNode entry : storeNode) {
+                    addEntry(put, store, entry.get("name").asText() + "." + entry.get("deviceId").asText(), entry);
+                }
+                break;
+            case "identityKeyStore":
+                ObjectNode localIdentity = jsonProcessor.createObjectNode();
+                localIdentity.set("registrationId", storeNode.get("registrationId"));
+                localIdentity.set("identityKey", storeNode.get("identityKey"));
+                addEntry(put, LOCAL_IDENTITY_STORE, LOCAL_IDENTITY_KEY, localIdentity);
+                for (JsonNode entry : storeNode.get("trustedKeys")) {
+                    addEntry(put, store, entry.get("name").asText() + "." + entry.get("identityKey").asText(), entry);
+                }
+                break;
+            case JsonGroupStore.STORE_NAME:
+                for (JsonNode entry : storeNode.get("groups")) {
+                    addEntry(put, store, entry.get("groupId").asText(), entry);
+                }
+                break;
+            case JsonContactsStore.STORE_NAME:
+                for (JsonNode entry : storeNode.get("contacts")) {
+                    addEntry(put, store, entry.get("number").asText(), entry);
+                }
+                break;
+            case JsonThreadStore.STORE_NAME:
+                for (JsonNode entry : storeNode.get("threads")) {
+                    addEntry(put, store, entry.get("id").asText(), entry);
+                }
+                break;
+            default:
+                throw new IOException("Unknown store: " + store);
+        }
+    }
+
+    private void addEntry(PreparedStatement put, String store, String key, JsonNode entry) throws IOException, SQLException {
+        put.setString(1, store);
+        put.setString(2, key);
+        put.setString(3, entryWriter.writeValueAsString(entry));
+        put.addBatch();
+    }
+
+    @Override
+    public synchronized void reset() {
+        pendingChanges = new HashMap<>();
+        populated = false;
+    }
+
+    @Override
+    public void delete() throws IOException {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                throw new IOException("Failed to close account database: " + e.getMessage(), e);
+            }
+            connection = null;
+        }
+        Files.deleteIfExists(new File(fileName).toPath());
+        Files.deleteIfExists(new File(fileName + "-wal").toPath());
+        Files.deleteIfExists(new File(fileName + "-shm").toPath());
+    }
+}
@@ -0,0 +1,37 @@
+package org.asamk.signal.storage;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Shares a single String instance per phone number between the stores, instead of a separate copy for every contact,
+ * thread, session and identity of that number.
+ * Numbers are only weakly referenced, so they are dropped once no store entry uses them anymore, e.g. after a contact
+ * was removed or the account was closed.
+ */
+public final class NumberInterner {
+
+    private static final Map<String, WeakReference<String>> numbers = new WeakHashMap<>();
+
+    private NumberInterner() {
+    }
+
+    /**
+     * @return the shared instance of the number, to be referenced by a stored entry
+     */
+    public static String intern(String number) {
+        if (number == null) {
+            return null;
+        }
+        synchronized (numbers) {
+            WeakReference<String> reference = numbers.get(number);
+            String existing = reference == null ? null : reference.get();
+            if (existing != null) {
+                return existing;
+            }
+            numbers.put(number, new WeakReference<>(number));
+            return number;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.asamk.signal.storage;
+
+/**
+ * A store that can be saved independently and knows whether it changed since it was last saved.
+ */
+public interface PersistentStore {
+
+    /**
+     * @return true, if the store was modified since the dirty flag was last cleared
+     */
+    boolean isDirty();
+
+    void setDirty(boolean dirty);
+}
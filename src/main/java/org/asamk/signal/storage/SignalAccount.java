@@ -4,6 +4,7 @@ import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -25,19 +26,38 @@ import org.whispersystems.util.Base64;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
 
 import static org.asamk.signal.util.LogUtils.debug;
 
 public class SignalAccount {
 
     private final ObjectMapper jsonProcessor = new ObjectMapper();
-    private FileChannel fileChannel;
+    private final StorageConfig storageConfig;
+    private String storesPath;
+    private final SnapshotWriter snapshotWriter;
+    private String fileName;
+    private FileChannel lockFileChannel;
     private FileLock lock;
+    private AccountJournal journal;
+    private JsonNode journaledAccountNode;
+    private volatile boolean requiresFullSave = false;
+    private CoalescingWriter coalescingWriter;
+    private StoreBackend storeBackend;
+    private StoreBackend obsoleteStoreBackend;
+    private String storedStorageName;
+    private JsonNode savedAccountNode;
     private String username;
     private int deviceId = SignalServiceAddress.DEFAULT_DEVICE_ID;
     private boolean isMultiDevice = false;
@@ -45,8 +65,9 @@ public class SignalAccount {
     private String registrationLockPin;
     private String signalingKey;
     private byte[] profileKey;
-    private int preKeyIdOffset;
-    private int nextSignedPreKeyId;
+    // Changed by the prekey refresher while the account is saved on other threads
+    private volatile int preKeyIdOffset;
+    private volatile int nextSignedPreKeyId;
 
     private boolean registered = false;
 
@@ -55,21 +76,29 @@ public class SignalAccount {
     private JsonContactsStore contactStore;
     private JsonThreadStore threadStore;
 
-    private SignalAccount() {
+    private SignalAccount(StorageConfig storageConfig) {
+        this.storageConfig = storageConfig;
+        this.snapshotWriter = new SnapshotWriter(storageConfig.getFsyncPolicy(), storageConfig.getFsyncInterval());
         jsonProcessor.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE); // disable autodetect
-        jsonProcessor.enable(SerializationFeature.INDENT_OUTPUT); // for pretty print, you can disable it.
+        jsonProcessor.configure(SerializationFeature.INDENT_OUTPUT, storageConfig.isPrettyPrintEnabled());
         jsonProcessor.enable(SerializationFeature.WRITE_NULL_MAP_VALUES);
         jsonProcessor.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
         jsonProcessor.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
         jsonProcessor.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
     }
 
-    public static SignalAccount load(String dataPath, String username) throws IOException {
+    public static SignalAccount load(String dataPath, String username, StorageConfig storageConfig) throws IOException {
         debug("load account config");
-        SignalAccount account = new SignalAccount();
+        SignalAccount account = new SignalAccount(storageConfig);
         IOUtils.createPrivateDirectories(dataPath);
-        account.openFileChannel(getFileName(dataPath, username));
+        account.openAccountFile(getFileName(dataPath, username));
+        account.storesPath = getStoresPath(dataPath, username);
         account.load();
+        account.loadJournal(getJournalFileName(dataPath, username));
+        if (account.obsoleteStoreBackend != null || account.storeBackend != null && !account.isStoredIn(account.storeBackend)) {
+            // Migrate the account to the configured storage type
+            account.save();
+        }
         return account;
     }
 
@@ -77,19 +106,24 @@ public class SignalAccount {
                                        String username,
                                        IdentityKeyPair identityKey,
                                        int registrationId,
-                                       byte[] profileKey) throws IOException {
+                                       byte[] profileKey,
+                                       StorageConfig storageConfig) throws IOException {
         IOUtils.createPrivateDirectories(dataPath);
 
-        SignalAccount account = new SignalAccount();
-        account.openFileChannel(getFileName(dataPath, username));
+        SignalAccount account = new SignalAccount(storageConfig);
+        account.openAccountFile(getFileName(dataPath, username));
+        account.storesPath = getStoresPath(dataPath, username);
 
         account.username = username;
         account.profileKey = profileKey;
         account.signalProtocolStore = new JsonSignalProtocolStore(identityKey, registrationId);
+        account.signalProtocolStore.setSessionCacheSize(storageConfig.getSessionCacheSize());
         account.groupStore = new JsonGroupStore();
         account.threadStore = new JsonThreadStore();
         account.contactStore = new JsonContactsStore();
         account.registered = false;
+        account.storeBackend = account.createStoreBackend(storageConfig.getStorageType());
+        account.openJournal(getJournalFileName(dataPath, username));
 
         return account;
     }
@@ -101,11 +135,13 @@ public class SignalAccount {
                                                     IdentityKeyPair identityKey,
                                                     int registrationId,
                                                     String signalingKey,
-                                                    byte[] profileKey) throws IOException {
+                                                    byte[] profileKey,
+                                                    StorageConfig storageConfig) throws IOException {
         IOUtils.createPrivateDirectories(dataPath);
 
-        SignalAccount account = new SignalAccount();
-        account.openFileChannel(getFileName(dataPath, username));
+        SignalAccount account = new SignalAccount(storageConfig);
+        account.openAccountFile(getFileName(dataPath, username));
+        account.storesPath = getStoresPath(dataPath, username);
 
         account.username = username;
         account.password = password;
@@ -113,17 +149,20 @@ public class SignalAccount {
         account.deviceId = deviceId;
         account.signalingKey = signalingKey;
         account.signalProtocolStore = new JsonSignalProtocolStore(identityKey, registrationId);
+        account.signalProtocolStore.setSessionCacheSize(storageConfig.getSessionCacheSize());
         account.groupStore = new JsonGroupStore();
         account.threadStore = new JsonThreadStore();
         account.contactStore = new JsonContactsStore();
         account.registered = true;
         account.isMultiDevice = true;
+        account.storeBackend = account.createStoreBackend(storageConfig.getStorageType());
+        account.openJournal(getJournalFileName(dataPath, username));
 
         return account;
     }
 
     public static SignalAccount createTemporaryAccount(IdentityKeyPair identityKey, int registrationId) {
-        SignalAccount account = new SignalAccount();
+        SignalAccount account = new SignalAccount(new StorageConfig());
 
         account.signalProtocolStore = new JsonSignalProtocolStore(identityKey, registrationId);
         account.registered = false;
@@ -135,6 +174,18 @@ public class SignalAccount {
         return dataPath + "/" + username;
     }
 
+    private static String getStoresPath(String dataPath, String username) {
+        return getFileName(dataPath, username) + ".d";
+    }
+
+    private static String getLockFileName(String fileName) {
+        return fileName + ".lock";
+    }
+
+    private static String getJournalFileName(String dataPath, String username) {
+        return getFileName(dataPath, username) + ".journal";
+    }
+
     public static boolean userExists(String dataPath, String username) {
         if (username == null) {
             return false;
@@ -144,12 +195,133 @@ public class SignalAccount {
     }
 
     private void load() throws IOException {
-        JsonNode rootNode;
-        synchronized (fileChannel) {
-            fileChannel.position(0);
-            rootNode = jsonProcessor.readTree(Channels.newInputStream(fileChannel));
+        ObjectNode accountNode = jsonProcessor.createObjectNode();
+        synchronized (lockFileChannel) {
+            try (JsonParser parser = jsonProcessor.getFactory().createParser(new File(fileName))) {
+                readAccountFile(parser, accountNode);
+            }
+        }
+
+        loadAccountFields(accountNode);
+        JsonNode storageNode = accountNode.get("storage");
+        StoreBackend loadedStoreBackend = null;
+        if (storageNode != null) {
+            loadedStoreBackend = createStoreBackend(getStorageType(storageNode.asText()));
+            ObjectNode storesNode = jsonProcessor.createObjectNode();
+            loadedStoreBackend.readStores(storesNode);
+            try (JsonParser parser = storesNode.traverse(jsonProcessor)) {
+                readAccountFile(parser, jsonProcessor.createObjectNode());
+            }
+        }
+        storedStorageName = loadedStoreBackend == null ? null : loadedStoreBackend.getName();
+
+        if (signalProtocolStore == null) {
+            throw new InvalidObjectException("Incorrect file format: expected parameter axolotlStore not found ");
+        }
+        signalProtocolStore.setSessionCacheSize(storageConfig.getSessionCacheSize());
+        if (groupStore == null) {
+            groupStore = new JsonGroupStore();
+        }
+        if (contactStore == null) {
+            contactStore = new JsonContactsStore();
+        }
+        if (threadStore == null) {
+            threadStore = new JsonThreadStore();
+        }
+
+        StorageConfig.StorageType storageType = storageConfig.getStorageType();
+        if (loadedStoreBackend != null && loadedStoreBackend.getName().equals(getStorageName(storageType))) {
+            storeBackend = loadedStoreBackend;
+            // The backend already contains the current state
+            for (PersistentStore store : getStores().values()) {
+                store.setDirty(false);
+            }
+        } else {
+            storeBackend = createStoreBackend(storageType);
+            obsoleteStoreBackend = loadedStoreBackend;
+        }
+        if (storeBackend instanceof StoreChangeListener) {
+            attachChangeListener((StoreChangeListener) storeBackend);
+        }
+    }
+
+    /**
+     * Reads the account file in a single pass, the stores are deserialized directly from the token stream.
+     * The remaining account fields are collected in the given node.
+     */
+    private void readAccountFile(JsonParser parser, ObjectNode accountNode) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new InvalidObjectException("Incorrect file format: expected a json object");
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            switch (fieldName) {
+                case "axolotlStore":
+                    signalProtocolStore = jsonProcessor.readValue(parser, JsonSignalProtocolStore.class);
+                    break;
+                case JsonGroupStore.STORE_NAME:
+                    groupStore = jsonProcessor.readValue(parser, JsonGroupStore.class);
+                    break;
+                case JsonContactsStore.STORE_NAME:
+                    contactStore = jsonProcessor.readValue(parser, JsonContactsStore.class);
+                    break;
+                case JsonThreadStore.STORE_NAME:
+                    threadStore = jsonProcessor.readValue(parser, JsonThreadStore.class);
+                    break;
+                default:
+                    accountNode.set(fieldName, jsonProcessor.readTree(parser));
+            }
         }
+    }
+
+    private static StorageConfig.StorageType getStorageType(String storageName) throws IOException {
+        for (StorageConfig.StorageType storageType : StorageConfig.StorageType.values()) {
+            if (storageType != StorageConfig.StorageType.JSON && getStorageName(storageType).equals(storageName)) {
+                return storageType;
+            }
+        }
+        throw new IOException("Unknown account storage: " + storageName);
+    }
+
+    private static String getStorageName(StorageConfig.StorageType storageType) {
+        return storageType.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the backend for the store data, or null if the stores are saved in the account file itself
+     */
+    private StoreBackend createStoreBackend(StorageConfig.StorageType storageType) {
+        switch (storageType) {
+            case SPLIT:
+                return new SplitFileStoreBackend(storesPath, jsonProcessor, snapshotWriter);
+            case DB:
+                return new DatabaseStoreBackend(storesPath + "/account.db", jsonProcessor, storageConfig.getFsyncPolicy());
+            default:
+                return null;
+        }
+    }
+
+    private boolean isStoredIn(StoreBackend backend) {
+        return backend.getName().equals(storedStorageName);
+    }
+
+    /**
+     * The journal is not needed if the backend already saves the individual changes.
+     */
+    private boolean isJournalUsed() {
+        return storageConfig.isJournalEnabled() && !(storeBackend instanceof StoreChangeListener);
+    }
+
+    private Map<String, PersistentStore> getStores() {
+        Map<String, PersistentStore> stores = new LinkedHashMap<>(signalProtocolStore.getStores());
+        stores.put(JsonGroupStore.STORE_NAME, groupStore);
+        stores.put(JsonContactsStore.STORE_NAME, contactStore);
+        stores.put(JsonThreadStore.STORE_NAME, threadStore);
+        return stores;
+    }
 
+    private void loadAccountFields(JsonNode rootNode) throws IOException {
         JsonNode node = rootNode.get("deviceId");
         if (node != null) {
             deviceId = node.asInt();
@@ -177,38 +349,96 @@ public class SignalAccount {
         if (rootNode.has("profileKey")) {
             profileKey = Base64.decode(Util.getNotNullNode(rootNode, "profileKey").asText());
         }
-
-        signalProtocolStore = jsonProcessor.convertValue(Util.getNotNullNode(rootNode, "axolotlStore"), JsonSignalProtocolStore.class);
         registered = Util.getNotNullNode(rootNode, "registered").asBoolean();
-        JsonNode groupStoreNode = rootNode.get("groupStore");
-        if (groupStoreNode != null) {
-            groupStore = jsonProcessor.convertValue(groupStoreNode, JsonGroupStore.class);
+    }
+
+    /**
+     * Replays the changes recorded in the journal since the last full save.
+     * If journaling is disabled, an existing journal is folded into the account file and removed.
+     */
+    private void loadJournal(String journalFileName) throws IOException {
+        if (!isJournalUsed() && !AccountJournal.exists(journalFileName)) {
+            return;
         }
-        if (groupStore == null) {
-            groupStore = new JsonGroupStore();
+        AccountJournal existingJournal = AccountJournal.open(journalFileName, jsonProcessor);
+        AccountJournal.Contents contents = existingJournal.readRecords();
+        if (contents.hasTornTail()) {
+            System.err.println("Ignoring incomplete record at the end of the journal");
         }
-
-        JsonNode contactStoreNode = rootNode.get("contactStore");
-        if (contactStoreNode != null) {
-            contactStore = jsonProcessor.convertValue(contactStoreNode, JsonContactsStore.class);
+        if (!contents.getCorruptLines().isEmpty()) {
+            System.err.println("Skipping unreadable journal records at lines " + contents.getCorruptLines()
+                    + ", the changes they contain are lost");
         }
-        if (contactStore == null) {
-            contactStore = new JsonContactsStore();
+        List<JsonNode> records = contents.getRecords();
+        for (JsonNode record : records) {
+            applyJournalRecord(record);
         }
-        JsonNode threadStoreNode = rootNode.get("threadStore");
-        if (threadStoreNode != null) {
-            threadStore = jsonProcessor.convertValue(threadStoreNode, JsonThreadStore.class);
+        if (!records.isEmpty() && storeBackend != null) {
+            // The replayed changes are not yet contained in the backend
+            storeBackend.reset();
         }
-        if (threadStore == null) {
-            threadStore = new JsonThreadStore();
+
+        if (!isJournalUsed()) {
+            save();
+            existingJournal.delete();
+            return;
+        }
+
+        journal = existingJournal;
+        journaledAccountNode = createAccountNode();
+        attachChangeListener(journal);
+        // Unreadable records would be reported again on every load until the journal is folded
+        requiresFullSave = !contents.getCorruptLines().isEmpty()
+                || journal.size() >= storageConfig.getJournalCompactionSize();
+    }
+
+    private void applyJournalRecord(JsonNode record) throws IOException {
+        final String store = Util.getNotNullNode(record, "store").asText();
+        final String key = Util.getNotNullNode(record, "key").asText();
+        final JsonNode entry = "remove".equals(Util.getNotNullNode(record, "op").asText()) ? null : Util.getNotNullNode(record, "entry");
+        switch (store) {
+            case "account":
+                loadAccountFields(entry);
+                break;
+            case JsonGroupStore.STORE_NAME:
+                groupStore.applyChange(key, entry);
+                break;
+            case JsonContactsStore.STORE_NAME:
+                contactStore.applyChange(key, entry);
+                break;
+            case JsonThreadStore.STORE_NAME:
+                threadStore.applyChange(key, entry);
+                break;
+            default:
+                if (!signalProtocolStore.applyChange(store, key, entry)) {
+                    System.err.println("Ignoring journal record for unknown store: " + store);
+                }
         }
     }
 
-    public void save() {
-        debug("save config");
-        if (fileChannel == null) {
+    /**
+     * Starts a new journal for a newly created account, the first save always writes the full account file.
+     */
+    private void openJournal(String journalFileName) throws IOException {
+        if (storeBackend instanceof StoreChangeListener) {
+            attachChangeListener((StoreChangeListener) storeBackend);
+        }
+        if (!isJournalUsed()) {
             return;
         }
+        journal = AccountJournal.open(journalFileName, jsonProcessor);
+        attachChangeListener(journal);
+        requiresFullSave = true;
+    }
+
+    private void attachChangeListener(StoreChangeListener listener) {
+        signalProtocolStore.setChangeListener(listener);
+        groupStore.setChangeListener(listener);
+        contactStore.setChangeListener(listener);
+        threadStore.setChangeListener(listener);
+    }
+
+    private ObjectNode createAccountNode() {
         ObjectNode rootNode = jsonProcessor.createObjectNode();
         rootNode.put("username", username)
                 .put("deviceId", deviceId)
@@ -219,39 +449,237 @@ public class SignalAccount {
                 .put("preKeyIdOffset", preKeyIdOffset)
                 .put("nextSignedPreKeyId", nextSignedPreKeyId)
                 .put("profileKey", Base64.encodeBytes(profileKey))
-                .put("registered", registered)
-                .putPOJO("axolotlStore", signalProtocolStore)
-                .putPOJO("groupStore", groupStore)
-                .putPOJO("contactStore", contactStore)
-                .putPOJO("threadStore", threadStore)
-        ;
+                .put("registered", registered);
+        return rootNode;
+    }
+
+    /**
+     * Combine subsequent saves into a single write in the background.
+     * Changes are written at most maxDelay milliseconds after the first save request, or as soon as maxPending saves
+     * have been requested.
+     * <p>
+     * The background writer only appends journal records, which are serialized when the change is made. The stores
+     * are changed by other threads without a lock, so full saves still run on the thread that calls save().
+     * Without a journal every save stays synchronous.
+     */
+    public void enableCoalescedSaves(long maxDelay, int maxPending) {
+        if (coalescingWriter != null || lockFileChannel == null) {
+            return;
+        }
+        if (journal == null) {
+            System.err.println("Combining saves requires the journal, saving every change immediately");
+            return;
+        }
+        coalescingWriter = new CoalescingWriter(new BooleanSupplier() {
+            @Override
+            public boolean getAsBoolean() {
+                return writeJournal();
+            }
+        }, maxDelay, maxPending);
+    }
+
+    /**
+     * Runs the action only after the current state has been saved to disk.
+     * Used for cleanup that is only safe once the state that depends on it is persisted.
+     */
+    public void runAfterSave(Runnable action) {
+        if (coalescingWriter == null) {
+            // Saves are synchronous, so the previous save already wrote the current state
+            action.run();
+        } else {
+            coalescingWriter.runAfterWrite(action);
+        }
+    }
+
+    /**
+     * Writes all pending coalesced changes and waits until they are on disk.
+     */
+    public void flushPendingSaves() {
+        if (coalescingWriter != null) {
+            coalescingWriter.flush();
+        }
+    }
+
+    public void save() {
+        if (coalescingWriter == null || requiresFullSave) {
+            writeToDisk();
+            return;
+        }
+        synchronized (lockFileChannel) {
+            journalAccountFields();
+        }
+        coalescingWriter.requestWrite();
+    }
+
+    private boolean writeToDisk() {
+        debug("save config");
+        if (lockFileChannel == null) {
+            return true;
+        }
+        if (journal != null && !requiresFullSave) {
+            try {
+                if (saveJournal()) {
+                    return true;
+                }
+            } catch (Exception e) {
+                System.err.println(String.format("Error saving journal: %s", e.getMessage()));
+            }
+        }
+        final ObjectNode rootNode = createAccountNode();
+        if (storeBackend != null) {
+            rootNode.put("storage", storeBackend.getName());
+        }
         try {
-            synchronized (fileChannel) {
-                fileChannel.position(0);
-                jsonProcessor.writeValue(Channels.newOutputStream(fileChannel), rootNode);
-                fileChannel.truncate(fileChannel.position());
-                fileChannel.force(false);
+            synchronized (lockFileChannel) {
+                // The journal is truncated afterwards, so its changes must be on disk in the written files
+                final boolean sync = journal != null || snapshotWriter.isSyncDue();
+                if (storeBackend != null) {
+                    storeBackend.writeStores(getStores(), sync);
+                }
+                if (storeBackend == null || !rootNode.equals(savedAccountNode)) {
+                    snapshotWriter.write(new File(fileName), new SnapshotWriter.Content() {
+                        @Override
+                        public void writeTo(OutputStream output) throws IOException {
+                            writeAccountFile(output, rootNode);
+                        }
+                    }, sync);
+                    savedAccountNode = storeBackend != null ? rootNode : null;
+                    storedStorageName = storeBackend != null ? storeBackend.getName() : null;
+                }
+                if (obsoleteStoreBackend != null) {
+                    // Migrated to a different storage type
+                    obsoleteStoreBackend.delete();
+                    obsoleteStoreBackend = null;
+                }
+                if (journal != null) {
+                    // All changes recorded so far are now contained in the account file
+                    journal.truncate();
+                    journaledAccountNode = createAccountNode();
+                    requiresFullSave = false;
+                }
             }
+            return true;
         } catch (Exception e) {
             System.err.println(String.format("Error saving file: %s", e.getMessage()));
+            return false;
         }
     }
 
-    private void openFileChannel(String fileName) throws IOException {
-        if (fileChannel != null) {
+    /**
+     * Streams the account fields and, if they are not kept in a separate backend, the stores to the account file,
+     * without building a tree of the stores first.
+     */
+    private void writeAccountFile(OutputStream output, ObjectNode accountNode) throws IOException {
+        try (JsonGenerator generator = jsonProcessor.getFactory().createGenerator(output)) {
+            if (storageConfig.isPrettyPrintEnabled()) {
+                generator.useDefaultPrettyPrinter();
+            }
+            generator.writeStartObject();
+            Iterator<Map.Entry<String, JsonNode>> fields = accountNode.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                generator.writeFieldName(field.getKey());
+                generator.writeTree(field.getValue());
+            }
+            if (storeBackend == null) {
+                generator.writeObjectField("axolotlStore", signalProtocolStore);
+                generator.writeObjectField(JsonGroupStore.STORE_NAME, groupStore);
+                generator.writeObjectField(JsonContactsStore.STORE_NAME, contactStore);
+                generator.writeObjectField(JsonThreadStore.STORE_NAME, threadStore);
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Appends the changes since the last save to the journal.
+     *
+     * @return false if the journal has grown too large and needs to be compacted into the account file
+     */
+    private boolean saveJournal() throws IOException {
+        synchronized (lockFileChannel) {
+            journalAccountFields();
+            flushJournal();
+            return journal.size() < storageConfig.getJournalCompactionSize();
+        }
+    }
+
+    private void flushJournal() throws IOException {
+        if (snapshotWriter.isSyncDue()) {
+            journal.flush(true);
+        } else {
+            journal.flush(false);
+            snapshotWriter.syncLater(journal.getFile());
+        }
+    }
+
+    /**
+     * Records changed account fields in the journal, the stores record their own changes.
+     */
+    private void journalAccountFields() {
+        ObjectNode accountNode = createAccountNode();
+        if (!accountNode.equals(journaledAccountNode)) {
+            journal.onPut("account", username, accountNode);
+            journaledAccountNode = accountNode;
+        }
+    }
+
+    /**
+     * Appends the recorded changes on the background writer. Once the journal has grown too large, the next save
+     * folds it into the account file.
+     */
+    private boolean writeJournal() {
+        try {
+            synchronized (lockFileChannel) {
+                flushJournal();
+                if (journal.size() >= storageConfig.getJournalCompactionSize()) {
+                    requiresFullSave = true;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println(String.format("Error saving journal: %s", e.getMessage()));
+            return false;
+        }
+    }
+
+    /**
+     * Locks the account with a separate lock file, as the account file itself is replaced on every save.
+     */
+    private void openAccountFile(String fileName) throws IOException {
+        if (lockFileChannel != null) {
             return;
         }
 
-        if (!new File(fileName).exists()) {
-            IOUtils.createPrivateFile(fileName);
+        String lockFileName = getLockFileName(fileName);
+        if (!new File(lockFileName).exists()) {
+            IOUtils.createPrivateFile(lockFileName);
         }
-        fileChannel = new RandomAccessFile(new File(fileName), "rw").getChannel();
-        lock = fileChannel.tryLock();
+        lockFileChannel = new RandomAccessFile(new File(lockFileName), "rw").getChannel();
+        lock = lockFileChannel.tryLock();
         if (lock == null) {
             System.err.println("Config file is in use by another instance, waiting…");
-            lock = fileChannel.lock();
+            lock = lockFileChannel.lock();
             System.err.println("Config file lock acquired.");
         }
+        this.fileName = fileName;
+        if (!new File(fileName).exists()) {
+            IOUtils.createPrivateFile(fileName);
+        }
+    }
+
+    /**
+     * Writes pending changes and releases the lock on the account file.
+     */
+    public void close() throws IOException {
+        if (lockFileChannel == null) {
+            return;
+        }
+        flushPendingSaves();
+        snapshotWriter.close();
+        synchronized (lockFileChannel) {
+            lockFileChannel.close();
+        }
     }
 
     public void addPreKeys(Collection<PreKeyRecord> records) {
@@ -0,0 +1,93 @@
+package org.asamk.signal.storage;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Publishes read-only snapshots of the entries of a store, so readers on other threads neither need the store lock
+ * nor see entries while a writer changes them.
+ * Stored entries are copied right away and merged into a new snapshot on the next read, so a batch of updates costs a
+ * single new snapshot. Except for {@link #getIfCurrent()} all methods must be called with the store lock held.
+ */
+public abstract class SnapshotPublisher<K, V> {
+
+    /**
+     * Copies of the entries changed since the last snapshot, null for a removed entry
+     */
+    private final Map<K, V> pendingChanges = new HashMap<>();
+
+    private volatile Map<K, V> snapshot;
+
+    private volatile boolean stale = true;
+
+    /**
+     * @return a copy of the entry, which is never changed afterwards
+     */
+    protected abstract V copy(V entry);
+
+    /**
+     * @return the copy of the entry, that will be part of the next snapshot
+     */
+    public V put(K key, V entry) {
+        V copy = copy(entry);
+        if (snapshot != null) {
+            pendingChanges.put(key, copy);
+        }
+        stale = true;
+        return copy;
+    }
+
+    public void remove(K key) {
+        if (snapshot != null) {
+            pendingChanges.put(key, null);
+        }
+        stale = true;
+    }
+
+    /**
+     * Drops the current snapshot, the next one is copied from all entries of the store.
+     */
+    public void reset() {
+        pendingChanges.clear();
+        snapshot = null;
+        stale = true;
+    }
+
+    /**
+     * @return the current snapshot or null, if the store changed since and {@link #update(Map)} needs to be called
+     */
+    public Map<K, V> getIfCurrent() {
+        return stale ? null : snapshot;
+    }
+
+    /**
+     * @param entries all entries of the store
+     * @return an up to date snapshot
+     */
+    public Map<K, V> update(Map<K, V> entries) {
+        if (!stale) {
+            return snapshot;
+        }
+        Map<K, V> next;
+        if (snapshot == null) {
+            next = new HashMap<>(entries.size());
+            for (Map.Entry<K, V> entry : entries.entrySet()) {
+                next.put(entry.getKey(), copy(entry.getValue()));
+            }
+        } else {
+            next = new HashMap<>(snapshot);
+            for (Map.Entry<K, V> change : pendingChanges.entrySet()) {
+                if (change.getValue() == null) {
+                    next.remove(change.getKey());
+                } else {
+                    next.put(change.getKey(), change.getValue());
+                }
+            }
+            pendingChanges.clear();
+        }
+        snapshot = Collections.unmodifiableMap(next);
+        stale = false;
+        return snapshot;
+    }
+}
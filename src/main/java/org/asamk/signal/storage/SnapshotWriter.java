@@ -0,0 +1,185 @@
+package org.asamk.signal.storage;
+
+import org.asamk.signal.util.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.asamk.signal.util.LogUtils.debug;
+
+/**
+ * Replaces files by writing the new content to a temporary file next to the target, which is then renamed over the
+ * target. If signal-cli crashes during a write, the old file is kept.
+ * Only a synced write also survives a system crash or power loss: without a sync, the rename may reach the disk
+ * before the content, leaving an empty or partial file. Whether a write is synced is decided by the fsync policy,
+ * with the interval policy files written without a sync are synced by a timer.
+ */
+class SnapshotWriter {
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    interface Content {
+
+        void writeTo(OutputStream output) throws IOException;
+    }
+
+    private final StorageConfig.FsyncPolicy fsyncPolicy;
+    private final long fsyncInterval;
+    private long lastSync = 0;
+
+    /**
+     * Files written without a sync, synced by the timer with the interval policy
+     */
+    private final Set<File> unsyncedFiles = new LinkedHashSet<>();
+    private ScheduledExecutorService syncTimer;
+
+    SnapshotWriter(StorageConfig.FsyncPolicy fsyncPolicy, long fsyncInterval) {
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncInterval = fsyncInterval;
+        if (fsyncPolicy == StorageConfig.FsyncPolicy.INTERVAL) {
+            startSyncTimer();
+        }
+    }
+
+    private void startSyncTimer() {
+        syncTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "signal-snapshot-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        syncTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                syncUnsyncedFiles();
+            }
+        }, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Decides if the current write needs to be synced to disk.
+     * With the interval policy, a sync is due if the last one was at least the configured interval ago.
+     */
+    synchronized boolean isSyncDue() {
+        switch (fsyncPolicy) {
+            case ALWAYS:
+                return true;
+            case NEVER:
+                return false;
+            default:
+                long now = System.currentTimeMillis();
+                if (now - lastSync < fsyncInterval) {
+                    return false;
+                }
+                lastSync = now;
+                return true;
+        }
+    }
+
+    /**
+     * Syncs a file that was changed without a sync, e.g. an appended journal, with the next run of the timer.
+     * Only needed with the interval policy, without it the file is left to the operating system.
+     */
+    void syncLater(File file) {
+        if (fsyncPolicy != StorageConfig.FsyncPolicy.INTERVAL) {
+            return;
+        }
+        synchronized (unsyncedFiles) {
+            unsyncedFiles.add(file.getAbsoluteFile());
+        }
+    }
+
+    private void syncUnsyncedFiles() {
+        List<File> files;
+        synchronized (unsyncedFiles) {
+            files = new ArrayList<>(unsyncedFiles);
+            unsyncedFiles.clear();
+        }
+        Set<File> directories = new LinkedHashSet<>();
+        for (File file : files) {
+            if (!file.exists()) {
+                // Replaced by a newer generation in the meantime
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                channel.force(false);
+            } catch (IOException e) {
+                System.err.println("Failed to sync file " + file + ": " + e.getMessage());
+            }
+            directories.add(file.getParentFile());
+        }
+        for (File directory : directories) {
+            syncDirectory(directory);
+        }
+    }
+
+    /**
+     * Stops the timer and syncs the files written without a sync.
+     */
+    void close() {
+        if (syncTimer != null) {
+            syncTimer.shutdown();
+            syncTimer = null;
+        }
+        syncUnsyncedFiles();
+    }
+
+    void write(File file, Content content) throws IOException {
+        write(file, content, isSyncDue());
+    }
+
+    /**
+     * @param sync if the file should be synced to disk, for writes of several files that share one sync decision
+     */
+    void write(File file, Content content, boolean sync) throws IOException {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        Files.deleteIfExists(tempFile.toPath());
+        IOUtils.createPrivateFile(tempFile.getPath());
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+            OutputStream output = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE);
+            content.writeTo(output);
+            output.flush();
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        if (sync) {
+            syncDirectory(file.getAbsoluteFile().getParentFile());
+        } else {
+            syncLater(file);
+        }
+    }
+
+    /**
+     * Makes the rename durable.
+     */
+    private static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories can't be opened on all platforms, e.g. on Windows
+            debug("failed to sync directory %s: %s", directory.getPath(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package org.asamk.signal.storage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.asamk.signal.storage.contacts.JsonContactsStore;
+import org.asamk.signal.storage.groups.JsonGroupStore;
+import org.asamk.signal.storage.threads.JsonThreadStore;
+import org.asamk.signal.util.IOUtils;
+import org.asamk.signal.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.asamk.signal.util.LogUtils.debug;
+
+/**
+ * Saves every store in its own json file, only stores that changed are rewritten.
+ * Changed stores are written to new files of the next generation and the manifest, which names the current file of
+ * every store, is replaced last. A crash before the manifest is replaced leaves the previous state of all stores.
+ */
+class SplitFileStoreBackend implements StoreBackend {
+
+    private static final List<String> PROTOCOL_STORE_NAMES = Arrays.asList("preKeys", "sessionStore", "signedPreKeyStore", "identityKeyStore");
+    private static final List<String> STORE_NAMES = Arrays.asList(JsonGroupStore.STORE_NAME, JsonContactsStore.STORE_NAME, JsonThreadStore.STORE_NAME);
+    private static final String MANIFEST_FILE_NAME = "manifest.json";
+    private static final Pattern GENERATION_FILE_PATTERN = Pattern.compile("(\\w+)\\.(\\d+)\\.json");
+
+    private final String storesPath;
+    private final ObjectMapper jsonProcessor;
+    private final SnapshotWriter snapshotWriter;
+    private long generation = 0;
+    /**
+     * The current file name of each store, as recorded in the manifest.
+     */
+    private final Map<String, String> storeFiles = new HashMap<>();
+
+    SplitFileStoreBackend(String storesPath, ObjectMapper jsonProcessor, SnapshotWriter snapshotWriter) {
+        this.storesPath = storesPath;
+        this.jsonProcessor = jsonProcessor;
+        this.snapshotWriter = snapshotWriter;
+    }
+
+    private File getStoreFile(String fileName) {
+        return new File(storesPath, fileName);
+    }
+
+    /**
+     * @return the file name used for stores written before the manifest existed
+     */
+    private static String getUnversionedFileName(String storeName) {
+        return storeName + ".json";
+    }
+
+    @Override
+    public String getName() {
+        return "split";
+    }
+
+    @Override
+    public void readStores(ObjectNode rootNode) throws IOException {
+        readManifest();
+        ObjectNode axolotlStoreNode = rootNode.putObject("axolotlStore");
+        for (String storeName : PROTOCOL_STORE_NAMES) {
+            File file = getStoreFile(getCurrentFileName(storeName));
+            if (!file.exists()) {
+                throw new IOException("Missing store file: " + file);
+            }
+            axolotlStoreNode.set(storeName, jsonProcessor.readTree(file));
+            storeFiles.put(storeName, file.getName());
+        }
+        for (String storeName : STORE_NAMES) {
+            File file = getStoreFile(getCurrentFileName(storeName));
+            if (file.exists()) {
+                rootNode.set(storeName, jsonProcessor.readTree(file));
+                storeFiles.put(storeName, file.getName());
+            }
+        }
+        deleteUnusedFiles();
+    }
+
+    private String getCurrentFileName(String storeName) {
+        String fileName = storeFiles.get(storeName);
+        return fileName != null ? fileName : getUnversionedFileName(storeName);
+    }
+
+    /**
+     * Without a manifest, the stores were written by an older version without generations.
+     */
+    private void readManifest() throws IOException {
+        File manifestFile = getStoreFile(MANIFEST_FILE_NAME);
+        if (!manifestFile.exists()) {
+            return;
+        }
+        JsonNode manifest = jsonProcessor.readTree(manifestFile);
+        generation = Util.getNotNullNode(manifest, "generation").asLong();
+        Iterator<Map.Entry<String, JsonNode>> it = Util.getNotNullNode(manifest, "stores").fields();
+        while (it.hasNext()) {
+            Map.Entry<String, JsonNode> entry = it.next();
+            storeFiles.put(entry.getKey(), entry.getValue().asText());
+        }
+    }
+
+    @Override
+    public void writeStores(Map<String, PersistentStore> stores, boolean sync) throws IOException {
+        IOUtils.createPrivateDirectories(storesPath);
+        final long nextGeneration = generation + 1;
+        Map<String, String> nextStoreFiles = new HashMap<>(storeFiles);
+        List<PersistentStore> writtenStores = new ArrayList<>();
+        try {
+            for (Map.Entry<String, PersistentStore> entry : stores.entrySet()) {
+                PersistentStore store = entry.getValue();
+                if (!store.isDirty()) {
+                    continue;
+                }
+                debug("save store %s", entry.getKey());
+                store.setDirty(false);
+                writtenStores.add(store);
+                String fileName = entry.getKey() + "." + nextGeneration + ".json";
+                writeFile(fileName, store, sync);
+                nextStoreFiles.put(entry.getKey(), fileName);
+            }
+            if (writtenStores.isEmpty()) {
+                return;
+            }
+            writeManifest(nextGeneration, nextStoreFiles, sync);
+        } catch (IOException | RuntimeException e) {
+            for (PersistentStore store : writtenStores) {
+                store.setDirty(true);
+            }
+            deleteUnusedFiles();
+            throw e;
+        }
+        generation = nextGeneration;
+        storeFiles.clear();
+        storeFiles.putAll(nextStoreFiles);
+        deleteUnusedFiles();
+    }
+
+    private void writeManifest(long generation, Map<String, String> storeFiles, boolean sync) throws IOException {
+        ObjectNode manifest = jsonProcessor.createObjectNode();
+        manifest.put("generation", generation);
+        ObjectNode storesNode = manifest.putObject("stores");
+        for (Map.Entry<String, String> entry : new TreeMap<>(storeFiles).entrySet()) {
+            storesNode.put(entry.getKey(), entry.getValue());
+        }
+        writeFile(MANIFEST_FILE_NAME, manifest, sync);
+    }
+
+    private void writeFile(String fileName, final Object content, boolean sync) throws IOException {
+        snapshotWriter.write(getStoreFile(fileName), new SnapshotWriter.Content() {
+            @Override
+            public void writeTo(OutputStream output) throws IOException {
+                jsonProcessor.writeValue(output, content);
+            }
+        }, sync);
+    }
+
+    /**
+     * Removes store files the manifest doesn't refer to, left over from replaced generations or interrupted writes.
+     */
+    private void deleteUnusedFiles() {
+        if (storeFiles.isEmpty()) {
+            // Without a manifest the unversioned files are still in use
+            return;
+        }
+        for (File file : listStoreFiles()) {
+            if (!storeFiles.containsValue(file.getName())) {
+                try {
+                    Files.deleteIfExists(file.toPath());
+                } catch (IOException e) {
+                    debug("failed to delete unused store file %s: %s", file.getPath(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the unversioned and generation files of all known stores
+     */
+    private List<File> listStoreFiles() {
+        List<File> files = new ArrayList<>();
+        File[] children = new File(storesPath).listFiles();
+        if (children == null) {
+            return files;
+        }
+        for (File file : children) {
+            Matcher matcher = GENERATION_FILE_PATTERN.matcher(file.getName());
+            String storeName = matcher.matches() ? matcher.group(1) : file.getName().replaceFirst("\\.json$", "");
+            if ((PROTOCOL_STORE_NAMES.contains(storeName) || STORE_NAMES.contains(storeName)) && file.getName().endsWith(".json")) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    @Override
+    public void reset() {
+        // Only stores marked as dirty are written, nothing to forget
+    }
+
+    @Override
+    public void delete() throws IOException {
+        Files.deleteIfExists(getStoreFile(MANIFEST_FILE_NAME).toPath());
+        for (File file : listStoreFiles()) {
+            Files.deleteIfExists(file.toPath());
+        }
+        generation = 0;
+        storeFiles.clear();
+    }
+}
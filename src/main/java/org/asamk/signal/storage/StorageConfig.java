@@ -0,0 +1,117 @@
+package org.asamk.signal.storage;
+
+/**
+ * Options controlling how the account state is persisted.
+ */
+public class StorageConfig {
+
+    public enum StorageType {
+        /**
+         * All stores in the single account file
+         */
+        JSON,
+        /**
+         * Every store in its own file in the account data directory, only changed stores are rewritten
+         */
+        SPLIT,
+        /**
+         * Every store entry as a row in an embedded database, only changed entries are written
+         */
+        DB
+    }
+
+    public enum FsyncPolicy {
+        /**
+         * Every save is synced to disk before it completes
+         */
+        ALWAYS,
+        /**
+         * A save is synced if the last sync is longer ago than the fsync interval
+         */
+        INTERVAL,
+        /**
+         * Syncing is left to the operating system, a system crash may lose recent changes
+         */
+        NEVER
+    }
+
+    private StorageType storageType = StorageType.JSON;
+    private boolean journalEnabled = false;
+    private long journalCompactionSize = 4 * 1024 * 1024;
+    private boolean prettyPrintEnabled = false;
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.ALWAYS;
+    private long fsyncInterval = 1000;
+    private int sessionCacheSize = 100;
+
+    public StorageType getStorageType() {
+        return storageType;
+    }
+
+    public void setStorageType(final StorageType storageType) {
+        this.storageType = storageType;
+    }
+
+    public boolean isJournalEnabled() {
+        return journalEnabled;
+    }
+
+    /**
+     * If enabled, changes are appended to a journal next to the account file instead of rewriting the whole file on
+     * every save.
+     */
+    public void setJournalEnabled(final boolean journalEnabled) {
+        this.journalEnabled = journalEnabled;
+    }
+
+    public long getJournalCompactionSize() {
+        return journalCompactionSize;
+    }
+
+    /**
+     * Size in bytes after which the journal is folded back into the account file.
+     */
+    public void setJournalCompactionSize(final long journalCompactionSize) {
+        this.journalCompactionSize = journalCompactionSize;
+    }
+
+    public boolean isPrettyPrintEnabled() {
+        return prettyPrintEnabled;
+    }
+
+    /**
+     * If enabled, the account files are written with indentation, which makes them larger and slower to write.
+     */
+    public void setPrettyPrintEnabled(final boolean prettyPrintEnabled) {
+        this.prettyPrintEnabled = prettyPrintEnabled;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public void setFsyncPolicy(final FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    public long getFsyncInterval() {
+        return fsyncInterval;
+    }
+
+    /**
+     * Minimum time in milliseconds between two syncs with the interval policy.
+     */
+    public void setFsyncInterval(final long fsyncInterval) {
+        this.fsyncInterval = fsyncInterval;
+    }
+
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Number of recently stored session records that are kept deserialized, 0 disables the cache.
+     */
+    public void setSessionCacheSize(final int sessionCacheSize) {
+        this.sessionCacheSize = sessionCacheSize;
+    }
+}
@@ -0,0 +1,42 @@
+package org.asamk.signal.storage;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Stores the content of the account stores outside of the main account file.
+ * The main account file still contains the account fields and holds the lock.
+ */
+interface StoreBackend {
+
+    /**
+     * @return the name stored in the account file, to find the backend again when loading
+     */
+    String getName();
+
+    /**
+     * Adds the content of all stores to the account tree, in the same format as used in a single account file.
+     */
+    void readStores(ObjectNode rootNode) throws IOException;
+
+    /**
+     * Persists the current state of the given stores.
+     *
+     * @param stores all stores of the account, by their name in the account file
+     * @param sync   if the state must be on disk when this returns, e.g. before the journal is truncated, otherwise the
+     *               fsync policy decides
+     */
+    void writeStores(Map<String, PersistentStore> stores, boolean sync) throws IOException;
+
+    /**
+     * Forget about the already stored state, the next write will store the complete state of all stores.
+     */
+    void reset();
+
+    /**
+     * Removes all data of this backend, after the account has been moved to a different storage.
+     */
+    void delete() throws IOException;
+}
@@ -0,0 +1,20 @@
+package org.asamk.signal.storage;
+
+/**
+ * Gets notified about every change of an entry in one of the account stores.
+ */
+public interface StoreChangeListener {
+
+    /**
+     * @param store Name of the store, as used in the account file
+     * @param key   Key identifying the entry inside the store
+     * @param entry The new entry, serializable to the same format as in the account file
+     */
+    void onPut(String store, String key, Object entry);
+
+    /**
+     * @param store Name of the store, as used in the account file
+     * @param key   Key identifying the removed entry inside the store
+     */
+    void onRemove(String store, String key);
+}
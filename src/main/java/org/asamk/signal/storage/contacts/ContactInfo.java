@@ -16,12 +16,28 @@ public class ContactInfo {
     @JsonProperty
     public String color;
 
+    /**
+     * Raw profile key, stored as base64 in the account file. The array is shared with copies and not changed in place.
+     */
     @JsonProperty
-    public String profileKey;
+    public byte[] profileKey;
 
     @JsonProperty(defaultValue = "false")
     public boolean blocked;
 
+    /**
+     * @return a copy of this contact, for snapshots of the contact store
+     */
+    public ContactInfo copy() {
+        ContactInfo copy = new ContactInfo();
+        copy.name = name;
+        copy.number = number;
+        copy.color = color;
+        copy.profileKey = profileKey;
+        copy.blocked = blocked;
+        return copy;
+    }
+
     @JsonIgnore
     public SignalServiceAddress getAddress() {
         return new SignalServiceAddress(null, number);
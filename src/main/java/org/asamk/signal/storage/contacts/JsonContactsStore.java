@@ -3,6 +3,7 @@ package org.asamk.signal.storage.contacts;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -12,37 +13,167 @@ import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
+import org.asamk.signal.storage.NumberInterner;
+import org.asamk.signal.storage.PersistentStore;
+import org.asamk.signal.storage.SnapshotPublisher;
+import org.asamk.signal.storage.StoreChangeListener;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+public class JsonContactsStore implements PersistentStore {
 
-public class JsonContactsStore {
+    public static final String STORE_NAME = "contactStore";
 
     private static final ObjectMapper jsonProcessor = new ObjectMapper();
     @JsonProperty("contacts")
-    @JsonSerialize(using = JsonContactsStore.MapToListSerializer.class)
     @JsonDeserialize(using = ContactsDeserializer.class)
     private Map<String, ContactInfo> contacts = new HashMap<>();
 
-    public void updateContact(ContactInfo contact) {
+    private final SnapshotPublisher<String, ContactInfo> snapshots = new SnapshotPublisher<String, ContactInfo>() {
+        @Override
+        protected ContactInfo copy(ContactInfo entry) {
+            return entry.copy();
+        }
+    };
+
+    /**
+     * Numbers of the blocked contacts, built on first use and kept up to date by every contact update
+     */
+    private Set<String> blockedNumbers;
+
+    private StoreChangeListener changeListener;
+
+    private volatile boolean dirty = true;
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public void setDirty(final boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    public synchronized void setChangeListener(StoreChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Applies a change recorded by a {@link StoreChangeListener}, entry is null for a removed contact.
+     */
+    public synchronized void applyChange(String key, JsonNode entry) throws IOException {
+        dirty = true;
+        if (entry == null) {
+            contacts.remove(key);
+            snapshots.remove(key);
+            updateBlocked(key, false);
+        } else {
+            ContactInfo contact = jsonProcessor.treeToValue(entry, ContactInfo.class);
+            contact.number = NumberInterner.intern(contact.number);
+            contacts.put(contact.number, contact);
+            snapshots.put(contact.number, contact);
+            updateBlocked(contact.number, contact.blocked);
+        }
+    }
+
+    private void updateBlocked(String number, boolean blocked) {
+        if (blockedNumbers == null) {
+            return;
+        }
+        if (blocked) {
+            blockedNumbers.add(number);
+        } else {
+            blockedNumbers.remove(number);
+        }
+    }
+
+    private Set<String> getBlockedNumbersIndex() {
+        if (blockedNumbers == null) {
+            blockedNumbers = new HashSet<>();
+            for (ContactInfo contact : contacts.values()) {
+                if (contact.blocked) {
+                    blockedNumbers.add(contact.number);
+                }
+            }
+        }
+        return blockedNumbers;
+    }
+
+    public synchronized void updateContact(ContactInfo contact) {
+        contact.number = NumberInterner.intern(contact.number);
         contacts.put(contact.number, contact);
+        ContactInfo copy = snapshots.put(contact.number, contact);
+        updateBlocked(contact.number, contact.blocked);
+        dirty = true;
+        if (changeListener != null) {
+            changeListener.onPut(STORE_NAME, contact.number, copy);
+        }
     }
 
-    public ContactInfo getContact(String number) {
+    /**
+     * Returns the stored contact, which may only be changed by the writer of the account state.
+     * Other readers should use {@link #getSnapshot()}.
+     */
+    public synchronized ContactInfo getContact(String number) {
         return contacts.get(number);
     }
 
-    public List<ContactInfo> getContacts() {
+    public synchronized List<ContactInfo> getContacts() {
         return new ArrayList<>(contacts.values());
     }
 
+    /**
+     * @return an unmodifiable map of copies of all contacts as of the last update, by number
+     */
+    public Map<String, ContactInfo> getSnapshot() {
+        Map<String, ContactInfo> snapshot = snapshots.getIfCurrent();
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (this) {
+            return snapshots.update(contacts);
+        }
+    }
+
+    @JsonProperty("contacts")
+    @JsonSerialize(using = JsonContactsStore.MapToListSerializer.class)
+    private Map<String, ContactInfo> getSavedContacts() {
+        return getSnapshot();
+    }
+
+    public synchronized boolean isBlocked(String number) {
+        return getBlockedNumbersIndex().contains(number);
+    }
+
+    /**
+     * @return the numbers of all blocked contacts
+     */
+    public synchronized Set<String> getBlockedNumbers() {
+        return new HashSet<>(getBlockedNumbersIndex());
+    }
+
     /**
      * Remove all contacts from the store
      */
-    public void clear() {
+    public synchronized void clear() {
+        if (changeListener != null) {
+            for (String number : contacts.keySet()) {
+                changeListener.onRemove(STORE_NAME, number);
+            }
+        }
         contacts.clear();
+        snapshots.reset();
+        if (blockedNumbers != null) {
+            blockedNumbers.clear();
+        }
+        dirty = true;
     }
 
     private static class MapToListSerializer extends JsonSerializer<Map<?, ?>> {
@@ -58,9 +189,13 @@ public class JsonContactsStore {
         @Override
         public Map<String, ContactInfo> deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
             Map<String, ContactInfo> contacts = new HashMap<>();
-            JsonNode node = jsonParser.getCodec().readTree(jsonParser);
-            for (JsonNode n : node) {
-                ContactInfo c = jsonProcessor.treeToValue(n, ContactInfo.class);
+            if (!jsonParser.isExpectedStartArrayToken()) {
+                jsonParser.skipChildren();
+                return contacts;
+            }
+            while (jsonParser.nextToken() != JsonToken.END_ARRAY) {
+                ContactInfo c = jsonProcessor.readValue(jsonParser, ContactInfo.class);
+                c.number = NumberInterner.intern(c.number);
                 contacts.put(c.number, c);
             }
 
@@ -0,0 +1,57 @@
+package org.asamk.signal.storage.groups;
+
+import org.whispersystems.util.Base64;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A group id as map key, compared by its bytes, so group lookups don't need the base64 form.
+ * A lookup by a received id still allocates a key and hashes the bytes once, it only saves the base64 encoding. The
+ * cached hash makes the hash and the comparison of the stored keys cheap.
+ * The id array is not copied, it must not be changed after the key is created.
+ */
+public final class GroupId {
+
+    private final byte[] id;
+    private final int hash;
+
+    private GroupId(byte[] id) {
+        this.id = id;
+        this.hash = Arrays.hashCode(id);
+    }
+
+    public static GroupId of(byte[] id) {
+        return new GroupId(id);
+    }
+
+    public static GroupId fromBase64(String id) throws IOException {
+        return new GroupId(Base64.decode(id));
+    }
+
+    public String toBase64() {
+        return Base64.encodeBytes(id);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof GroupId)) {
+            return false;
+        }
+        GroupId other = (GroupId) o;
+        return hash == other.hash && Arrays.equals(id, other.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return toBase64();
+    }
+}
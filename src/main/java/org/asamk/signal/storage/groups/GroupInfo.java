@@ -6,6 +6,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -18,7 +19,11 @@ public class GroupInfo {
     public String name;
 
     @JsonProperty
-    public Set<String> members = new HashSet<>();
+    private final Set<String> members = new HashSet<>();
+    /**
+     * Addresses of the members, created on first use and dropped when the members change
+     */
+    private Set<SignalServiceAddress> memberAddresses;
     @JsonProperty
     public boolean active;
     @JsonProperty
@@ -41,23 +46,69 @@ public class GroupInfo {
         this.blocked = blocked;
     }
 
+    /**
+     * @return a copy of this group, for snapshots of the group store
+     */
+    public synchronized GroupInfo copy() {
+        GroupInfo copy = new GroupInfo(groupId, name, members, avatarId, color, blocked);
+        copy.active = active;
+        copy.memberAddresses = memberAddresses;
+        return copy;
+    }
+
     @JsonIgnore
     public long getAvatarId() {
         return avatarId;
     }
 
+    /**
+     * @return an unmodifiable set of the member addresses, shared until the members change
+     */
     @JsonIgnore
-    public Set<SignalServiceAddress> getMembers() {
-        Set<SignalServiceAddress> addresses = new HashSet<>(members.size());
-        for (String member : members) {
-            addresses.add(new SignalServiceAddress(null, member));
+    public synchronized Set<SignalServiceAddress> getMembers() {
+        if (memberAddresses == null) {
+            Set<SignalServiceAddress> addresses = new HashSet<>(members.size());
+            for (String member : members) {
+                addresses.add(new SignalServiceAddress(null, member));
+            }
+            memberAddresses = Collections.unmodifiableSet(addresses);
+        }
+        return memberAddresses;
+    }
+
+    /**
+     * @return an unmodifiable view of the member numbers
+     */
+    @JsonIgnore
+    public Set<String> getMemberNumbers() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    public synchronized boolean isMember(String number) {
+        return members.contains(number);
+    }
+
+    public synchronized boolean addMember(String number) {
+        if (!members.add(number)) {
+            return false;
+        }
+        memberAddresses = null;
+        return true;
+    }
+
+    public synchronized boolean removeMember(String number) {
+        if (!members.remove(number)) {
+            return false;
         }
-        return addresses;
+        memberAddresses = null;
+        return true;
     }
 
-    public void addMembers(Collection<SignalServiceAddress> members) {
+    public synchronized void addMembers(Collection<SignalServiceAddress> members) {
         for (SignalServiceAddress member : members) {
-            this.members.add(member.getNumber().get());
+            if (this.members.add(member.getNumber().get())) {
+                memberAddresses = null;
+            }
         }
     }
 }
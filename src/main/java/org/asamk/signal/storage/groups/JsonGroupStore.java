@@ -3,6 +3,7 @@ package org.asamk.signal.storage.groups;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -12,37 +13,157 @@ import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
-import org.whispersystems.util.Base64;
+import org.asamk.signal.storage.PersistentStore;
+import org.asamk.signal.storage.SnapshotPublisher;
+import org.asamk.signal.storage.StoreChangeListener;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-public class JsonGroupStore {
+public class JsonGroupStore implements PersistentStore {
+
+    public static final String STORE_NAME = "groupStore";
 
     private static final ObjectMapper jsonProcessor = new ObjectMapper();
 
     public static List<GroupInfo> groupsWithLegacyAvatarId = new ArrayList<>();
 
     @JsonProperty("groups")
-    @JsonSerialize(using = JsonGroupStore.MapToListSerializer.class)
     @JsonDeserialize(using = JsonGroupStore.GroupsDeserializer.class)
-    private Map<String, GroupInfo> groups = new HashMap<>();
+    private Map<GroupId, GroupInfo> groups = new HashMap<>();
+
+    private final SnapshotPublisher<GroupId, GroupInfo> snapshots = new SnapshotPublisher<GroupId, GroupInfo>() {
+        @Override
+        protected GroupInfo copy(GroupInfo entry) {
+            return entry.copy();
+        }
+    };
+
+    /**
+     * Ids of the blocked groups, built on first use and kept up to date by every group update
+     */
+    private Set<GroupId> blockedGroups;
 
-    public void updateGroup(GroupInfo group) {
-        groups.put(Base64.encodeBytes(group.groupId), group);
+    private StoreChangeListener changeListener;
+
+    private volatile boolean dirty = true;
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
     }
 
-    public GroupInfo getGroup(byte[] groupId) {
-        return groups.get(Base64.encodeBytes(groupId));
+    @Override
+    public void setDirty(final boolean dirty) {
+        this.dirty = dirty;
     }
 
-    public List<GroupInfo> getGroups() {
+    public synchronized void setChangeListener(StoreChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Applies a change recorded by a {@link StoreChangeListener}, entry is null for a removed group.
+     */
+    public synchronized void applyChange(String key, JsonNode entry) throws IOException {
+        dirty = true;
+        if (entry == null) {
+            GroupId groupId = GroupId.fromBase64(key);
+            groups.remove(groupId);
+            snapshots.remove(groupId);
+            updateBlocked(groupId, false);
+        } else {
+            GroupInfo group = jsonProcessor.treeToValue(entry, GroupInfo.class);
+            GroupId groupId = GroupId.of(group.groupId);
+            groups.put(groupId, group);
+            snapshots.put(groupId, group);
+            updateBlocked(groupId, group.blocked);
+        }
+    }
+
+    private void updateBlocked(GroupId groupId, boolean blocked) {
+        if (blockedGroups == null) {
+            return;
+        }
+        if (blocked) {
+            blockedGroups.add(groupId);
+        } else {
+            blockedGroups.remove(groupId);
+        }
+    }
+
+    private Set<GroupId> getBlockedGroupsIndex() {
+        if (blockedGroups == null) {
+            blockedGroups = new HashSet<>();
+            for (Map.Entry<GroupId, GroupInfo> entry : groups.entrySet()) {
+                if (entry.getValue().blocked) {
+                    blockedGroups.add(entry.getKey());
+                }
+            }
+        }
+        return blockedGroups;
+    }
+
+    public synchronized void updateGroup(GroupInfo group) {
+        final GroupId key = GroupId.of(group.groupId);
+        groups.put(key, group);
+        GroupInfo copy = snapshots.put(key, group);
+        updateBlocked(key, group.blocked);
+        dirty = true;
+        if (changeListener != null) {
+            changeListener.onPut(STORE_NAME, key.toBase64(), copy);
+        }
+    }
+
+    /**
+     * Returns the stored group, which may only be changed by the writer of the account state.
+     * Other readers should use {@link #getSnapshot()}.
+     */
+    public synchronized GroupInfo getGroup(byte[] groupId) {
+        return groups.get(GroupId.of(groupId));
+    }
+
+    public synchronized List<GroupInfo> getGroups() {
         return new ArrayList<>(groups.values());
     }
 
+    /**
+     * @return an unmodifiable map of copies of all groups as of the last update
+     */
+    public Map<GroupId, GroupInfo> getSnapshot() {
+        Map<GroupId, GroupInfo> snapshot = snapshots.getIfCurrent();
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (this) {
+            return snapshots.update(groups);
+        }
+    }
+
+    @JsonProperty("groups")
+    @JsonSerialize(using = JsonGroupStore.MapToListSerializer.class)
+    private Map<GroupId, GroupInfo> getSavedGroups() {
+        return getSnapshot();
+    }
+
+    public synchronized boolean isBlocked(byte[] groupId) {
+        return getBlockedGroupsIndex().contains(GroupId.of(groupId));
+    }
+
+    public synchronized List<byte[]> getBlockedGroupIds() {
+        Set<GroupId> blocked = getBlockedGroupsIndex();
+        List<byte[]> groupIds = new ArrayList<>(blocked.size());
+        for (GroupId groupId : blocked) {
+            groupIds.add(groups.get(groupId).groupId);
+        }
+        return groupIds;
+    }
+
     private static class MapToListSerializer extends JsonSerializer<Map<?, ?>> {
 
         @Override
@@ -51,19 +172,22 @@ public class JsonGroupStore {
         }
     }
 
-    private static class GroupsDeserializer extends JsonDeserializer<Map<String, GroupInfo>> {
+    private static class GroupsDeserializer extends JsonDeserializer<Map<GroupId, GroupInfo>> {
 
         @Override
-        public Map<String, GroupInfo> deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
-            Map<String, GroupInfo> groups = new HashMap<>();
-            JsonNode node = jsonParser.getCodec().readTree(jsonParser);
-            for (JsonNode n : node) {
-                GroupInfo g = jsonProcessor.treeToValue(n, GroupInfo.class);
+        public Map<GroupId, GroupInfo> deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
+            Map<GroupId, GroupInfo> groups = new HashMap<>();
+            if (!jsonParser.isExpectedStartArrayToken()) {
+                jsonParser.skipChildren();
+                return groups;
+            }
+            while (jsonParser.nextToken() != JsonToken.END_ARRAY) {
+                GroupInfo g = jsonProcessor.readValue(jsonParser, GroupInfo.class);
                 // Check if a legacy avatarId exists
                 if (g.getAvatarId() != 0) {
                     groupsWithLegacyAvatarId.add(g);
                 }
-                groups.put(Base64.encodeBytes(g.groupId), g);
+                groups.put(GroupId.of(g.groupId), g);
             }
 
             return groups;
@@ -0,0 +1,45 @@
+package org.asamk.signal.storage.protocol;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.whispersystems.util.Base64;
+
+import java.io.IOException;
+
+/**
+ * A serialized record together with its base64 form from the account file.
+ * The base64 form is only decoded when the record is first used, and written back unchanged when the store is saved.
+ */
+final class EncodedRecord {
+
+    private final String encoded;
+    private byte[] decoded;
+
+    private EncodedRecord(String encoded, byte[] decoded) {
+        this.encoded = encoded;
+        this.decoded = decoded;
+    }
+
+    static EncodedRecord fromEncoded(String encoded) {
+        return new EncodedRecord(encoded, null);
+    }
+
+    static EncodedRecord fromBytes(byte[] decoded) {
+        return new EncodedRecord(null, decoded);
+    }
+
+    synchronized byte[] getBytes() throws IOException {
+        if (decoded == null) {
+            decoded = Base64.decode(encoded);
+        }
+        return decoded;
+    }
+
+    void writeField(JsonGenerator json, String fieldName) throws IOException {
+        if (encoded != null) {
+            json.writeStringField(fieldName, encoded);
+        } else {
+            json.writeBinaryField(fieldName, decoded);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.asamk.signal.storage.protocol;
+
+import java.util.Arrays;
+
+/**
+ * A hash map with primitive int keys and open addressing, so entries need neither boxed keys nor map entry objects.
+ * Null values are not supported, an empty slot is one without a value. Not thread safe.
+ */
+final class IntHashMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    IntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    IntHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean containsKey(int key) {
+        return values[indexOf(key)] != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        return (V) values[indexOf(key)];
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int index = indexOf(key);
+        V previous = (V) values[index];
+        keys[index] = key;
+        values[index] = value;
+        if (previous == null && ++size > values.length * 3 / 4) {
+            resize(values.length << 1);
+        }
+        return previous;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(int key) {
+        int index = indexOf(key);
+        V previous = (V) values[index];
+        if (previous == null) {
+            return null;
+        }
+        values[index] = null;
+        size--;
+        // Move following entries of the probe sequence back, so lookups don't stop at the new gap
+        int mask = values.length - 1;
+        int gap = index;
+        for (int i = (index + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                values[i] = null;
+                gap = i;
+            }
+        }
+        return previous;
+    }
+
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return the number of slots, for iterating with {@link #keyAt(int)} and {@link #valueAt(int)}
+     */
+    int capacity() {
+        return values.length;
+    }
+
+    int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * @return the value in the slot or null if the slot is empty
+     */
+    @SuppressWarnings("unchecked")
+    V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    private int indexOf(int key) {
+        int mask = values.length - 1;
+        int index = hash(key) & mask;
+        while (values[index] != null && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int index = indexOf(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -2,13 +2,20 @@ package org.asamk.signal.storage.protocol;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import org.asamk.signal.TrustLevel;
+import org.asamk.signal.storage.NumberInterner;
+import org.asamk.signal.storage.PersistentStore;
+import org.asamk.signal.storage.StoreChangeListener;
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.InvalidKeyException;
@@ -19,22 +26,105 @@ import org.whispersystems.util.Base64;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-public class JsonIdentityKeyStore implements IdentityKeyStore {
+@JsonSerialize(using = JsonIdentityKeyStore.JsonIdentityKeyStoreSerializer.class)
+public class JsonIdentityKeyStore implements IdentityKeyStore, PersistentStore {
 
-    private final Map<String, List<Identity>> trustedKeys = new HashMap<>();
+    static final String STORE_NAME = "identityKeyStore";
+
+    /**
+     * Identities by name, changed under the lock of the name. The lists are copied on write, so they can be read and
+     * handed out without a lock.
+     */
+    private final Map<String, List<Identity>> trustedKeys = new ConcurrentHashMap<>();
+
+    /**
+     * The newest identity of every name.
+     */
+    private final Map<String, Identity> currentIdentities = new ConcurrentHashMap<>();
+
+    /**
+     * Identities by key for the names whose keys were already looked up. Built on first use, so loading the account
+     * file doesn't create an index for every name.
+     */
+    private final Map<String, Map<IdentityKey, Identity>> identitiesByKey = new ConcurrentHashMap<>();
+
+    private final StripedLocks locks = new StripedLocks(StripedLocks.DEFAULT_STRIPES);
 
     private final IdentityKeyPair identityKeyPair;
     private final int localRegistrationId;
 
+    private volatile StoreChangeListener changeListener;
+
+    private volatile boolean dirty = true;
+
     public JsonIdentityKeyStore(IdentityKeyPair identityKeyPair, int localRegistrationId) {
         this.identityKeyPair = identityKeyPair;
         this.localRegistrationId = localRegistrationId;
     }
 
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public void setDirty(final boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    void setChangeListener(StoreChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    private void notifyChanged(String name, Identity id) {
+        dirty = true;
+        StoreChangeListener changeListener = this.changeListener;
+        if (changeListener == null) {
+            return;
+        }
+        String identityKey = id.getEncodedKey();
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("name", name);
+        node.put("identityKey", identityKey);
+        node.put("trustLevel", id.trustLevel.ordinal());
+        node.put("addedTimestamp", id.added.getTime());
+        changeListener.onPut(STORE_NAME, name + "." + identityKey, node);
+    }
+
+    /**
+     * Applies a change recorded by a {@link StoreChangeListener}.
+     */
+    void applyChange(String key, JsonNode entry) throws IOException {
+        if (entry == null) {
+            // Identities are never removed
+            return;
+        }
+        final String name = entry.get("name").asText();
+        final String encodedKey = entry.get("identityKey").asText();
+        final IdentityKey identityKey = decodeIdentityKey(name, encodedKey);
+        if (identityKey == null) {
+            return;
+        }
+        saveIdentity(name, encodedKey, identityKey, TrustLevel.fromInt(entry.get("trustLevel").asInt()), new Date(entry.get("addedTimestamp").asLong()));
+    }
+
+    /**
+     * @return the decoded key, or null if it's invalid and the identity should be skipped
+     */
+    private static IdentityKey decodeIdentityKey(String name, String encodedKey) {
+        try {
+            return new IdentityKey(Base64.decode(encodedKey), 0);
+        } catch (InvalidKeyException | IOException | RuntimeException e) {
+            System.err.println(String.format("Error while decoding key for: %s", name));
+            return null;
+        }
+    }
+
     @Override
     public IdentityKeyPair getIdentityKeyPair() {
         return identityKeyPair;
@@ -59,63 +149,121 @@ public class JsonIdentityKeyStore implements IdentityKeyStore {
      * @param added       Added timestamp, if null and the key is newly added, the current time is used.
      */
     public boolean saveIdentity(String name, IdentityKey identityKey, TrustLevel trustLevel, Date added) {
-        List<Identity> identities = trustedKeys.get(name);
-        if (identities == null) {
-            identities = new ArrayList<>();
-            trustedKeys.put(name, identities);
-        } else {
-            for (Identity id : identities) {
-                if (!id.identityKey.equals(identityKey))
-                    continue;
-
-                if (id.trustLevel.compareTo(trustLevel) < 0) {
-                    id.trustLevel = trustLevel;
+        return saveIdentity(name, Base64.encodeBytes(identityKey.serialize()), identityKey, trustLevel, added);
+    }
+
+    /**
+     * Keys loaded from the account file keep their base64 form, so they aren't encoded again when saving. Until a name
+     * has an index by key, its identities are compared by that form.
+     */
+    private boolean saveIdentity(String name, String encodedKey, IdentityKey identityKey, TrustLevel trustLevel, Date added) {
+        synchronized (locks.get(name)) {
+            List<Identity> identities = trustedKeys.get(name);
+            if (identities == null) {
+                name = NumberInterner.intern(name);
+                identities = new CopyOnWriteArrayList<>();
+                trustedKeys.put(name, identities);
+            } else {
+                Map<IdentityKey, Identity> byKey = identitiesByKey.get(name);
+                Identity id = byKey != null ? byKey.get(identityKey) : findIdentity(identities, encodedKey);
+                if (id != null) {
+                    boolean changed = false;
+                    if (id.trustLevel.compareTo(trustLevel) < 0) {
+                        id.trustLevel = trustLevel;
+                        changed = true;
+                    }
+                    if (added != null && !added.equals(id.added)) {
+                        id.added = added;
+                        updateCurrentIdentity(name, identities);
+                        changed = true;
+                    }
+                    if (changed) {
+                        notifyChanged(name, id);
+                    }
+                    return true;
                 }
-                if (added != null) {
-                    id.added = added;
+            }
+            Identity id = new Identity(encodedKey, identityKey, trustLevel, added != null ? added : new Date());
+            identities.add(id);
+            Map<IdentityKey, Identity> byKey = identitiesByKey.get(name);
+            if (byKey != null) {
+                byKey.put(id.getIdentityKey(), id);
+            }
+            Identity current = currentIdentities.get(name);
+            if (current == null || !id.added.before(current.added)) {
+                currentIdentities.put(name, id);
+            }
+            notifyChanged(name, id);
+            return false;
+        }
+    }
+
+    private static Identity findIdentity(List<Identity> identities, String encodedKey) {
+        for (Identity id : identities) {
+            if (id.getEncodedKey().equals(encodedKey)) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The newest identity, on equal timestamps the one added last.
+     */
+    private void updateCurrentIdentity(String name, List<Identity> identities) {
+        Identity current = null;
+        for (Identity id : identities) {
+            if (current == null || !id.added.before(current.added)) {
+                current = id;
+            }
+        }
+        currentIdentities.put(name, current);
+    }
+
+    private Map<IdentityKey, Identity> getIdentitiesByKey(String name) {
+        Map<IdentityKey, Identity> byKey = identitiesByKey.get(name);
+        if (byKey != null) {
+            return byKey;
+        }
+        synchronized (locks.get(name)) {
+            byKey = identitiesByKey.get(name);
+            if (byKey == null) {
+                byKey = new ConcurrentHashMap<>();
+                List<Identity> identities = trustedKeys.get(name);
+                if (identities != null) {
+                    for (Identity id : identities) {
+                        byKey.put(id.getIdentityKey(), id);
+                    }
                 }
-                return true;
+                identitiesByKey.put(name, byKey);
             }
+            return byKey;
         }
-        identities.add(new Identity(identityKey, trustLevel, added != null ? added : new Date()));
-        return false;
     }
 
     @Override
     public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
         // TODO implement possibility for different handling of incoming/outgoing trust decisions
-        List<Identity> identities = trustedKeys.get(address.getName());
-        if (identities == null) {
+        if (!trustedKeys.containsKey(address.getName())) {
             // Trust on first use
             return true;
         }
 
-        for (Identity id : identities) {
-            if (id.identityKey.equals(identityKey)) {
-                return id.isTrusted();
-            }
-        }
-
-        return false;
+        Identity id = getIdentitiesByKey(address.getName()).get(identityKey);
+        return id != null && id.isTrusted();
     }
 
     @Override
     public IdentityKey getIdentity(SignalProtocolAddress address) {
-        List<Identity> identities = trustedKeys.get(address.getName());
-        if (identities == null || identities.size() == 0) {
-            return null;
-        }
+        Identity current = currentIdentities.get(address.getName());
+        return current == null ? null : current.getIdentityKey();
+    }
 
-        long maxDate = 0;
-        Identity maxIdentity = null;
-        for (Identity id : identities) {
-            final long time = id.getDateAdded().getTime();
-            if (maxIdentity == null || maxDate <= time) {
-                maxDate = time;
-                maxIdentity = id;
-            }
-        }
-        return maxIdentity.getIdentityKey();
+    /**
+     * @return the identity with the newest added timestamp, or null if there is no identity for the name
+     */
+    public Identity getCurrentIdentity(String name) {
+        return currentIdentities.get(name);
     }
 
     public Map<String, List<Identity>> getIdentities() {
@@ -132,27 +280,36 @@ public class JsonIdentityKeyStore implements IdentityKeyStore {
 
         @Override
         public JsonIdentityKeyStore deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
-            JsonNode node = jsonParser.getCodec().readTree(jsonParser);
+            Integer localRegistrationId = null;
+            byte[] identityKeyPair = null;
+            List<TrustedKey> trustedKeys = new ArrayList<>();
+            while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = jsonParser.getCurrentName();
+                jsonParser.nextToken();
+                if ("registrationId".equals(fieldName)) {
+                    localRegistrationId = jsonParser.getValueAsInt();
+                } else if ("identityKey".equals(fieldName)) {
+                    identityKeyPair = jsonParser.getBinaryValue();
+                } else if ("trustedKeys".equals(fieldName) && jsonParser.isExpectedStartArrayToken()) {
+                    while (jsonParser.nextToken() == JsonToken.START_OBJECT) {
+                        trustedKeys.add(readTrustedKey(jsonParser));
+                    }
+                } else {
+                    jsonParser.skipChildren();
+                }
+            }
+            if (localRegistrationId == null || identityKeyPair == null) {
+                throw new IOException("Incorrect identity key store format: missing local identity");
+            }
 
             try {
-                int localRegistrationId = node.get("registrationId").asInt();
-                IdentityKeyPair identityKeyPair = new IdentityKeyPair(Base64.decode(node.get("identityKey").asText()));
-
-                JsonIdentityKeyStore keyStore = new JsonIdentityKeyStore(identityKeyPair, localRegistrationId);
-
-                JsonNode trustedKeysNode = node.get("trustedKeys");
-                if (trustedKeysNode.isArray()) {
-                    for (JsonNode trustedKey : trustedKeysNode) {
-                        String trustedKeyName = trustedKey.get("name").asText();
-                        try {
-                            IdentityKey id = new IdentityKey(Base64.decode(trustedKey.get("identityKey").asText()), 0);
-                            TrustLevel trustLevel = trustedKey.has("trustLevel") ? TrustLevel.fromInt(trustedKey.get("trustLevel").asInt()) : TrustLevel.TRUSTED_UNVERIFIED;
-                            Date added = trustedKey.has("addedTimestamp") ? new Date(trustedKey.get("addedTimestamp").asLong()) : new Date();
-                            keyStore.saveIdentity(trustedKeyName, id, trustLevel, added);
-                        } catch (InvalidKeyException | IOException e) {
-                            System.out.println(String.format("Error while decoding key for: %s", trustedKeyName));
-                        }
+                JsonIdentityKeyStore keyStore = new JsonIdentityKeyStore(new IdentityKeyPair(identityKeyPair), localRegistrationId);
+                for (TrustedKey trustedKey : trustedKeys) {
+                    IdentityKey identityKey = decodeIdentityKey(trustedKey.name, trustedKey.identityKey);
+                    if (identityKey == null) {
+                        continue;
                     }
+                    keyStore.saveIdentity(trustedKey.name, trustedKey.identityKey, identityKey, trustedKey.trustLevel, trustedKey.added);
                 }
 
                 return keyStore;
@@ -160,6 +317,40 @@ public class JsonIdentityKeyStore implements IdentityKeyStore {
                 throw new IOException(e);
             }
         }
+
+        private static TrustedKey readTrustedKey(JsonParser jsonParser) throws IOException {
+            TrustedKey trustedKey = new TrustedKey();
+            while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = jsonParser.getCurrentName();
+                jsonParser.nextToken();
+                if ("name".equals(fieldName)) {
+                    trustedKey.name = jsonParser.getValueAsString();
+                } else if ("identityKey".equals(fieldName)) {
+                    trustedKey.identityKey = jsonParser.getValueAsString();
+                } else if ("trustLevel".equals(fieldName)) {
+                    trustedKey.trustLevel = TrustLevel.fromInt(jsonParser.getValueAsInt());
+                } else if ("addedTimestamp".equals(fieldName)) {
+                    trustedKey.added = new Date(jsonParser.getValueAsLong());
+                } else {
+                    jsonParser.skipChildren();
+                }
+            }
+            if (trustedKey.added == null) {
+                trustedKey.added = new Date();
+            }
+            return trustedKey;
+        }
+    }
+
+    /**
+     * A trusted key as read from the file, before the local identity is known.
+     */
+    private static class TrustedKey {
+
+        String name;
+        String identityKey;
+        TrustLevel trustLevel = TrustLevel.TRUSTED_UNVERIFIED;
+        Date added;
     }
 
     public static class JsonIdentityKeyStoreSerializer extends JsonSerializer<JsonIdentityKeyStore> {
@@ -168,13 +359,13 @@ public class JsonIdentityKeyStore implements IdentityKeyStore {
         public void serialize(JsonIdentityKeyStore jsonIdentityKeyStore, JsonGenerator json, SerializerProvider serializerProvider) throws IOException {
             json.writeStartObject();
             json.writeNumberField("registrationId", jsonIdentityKeyStore.getLocalRegistrationId());
-            json.writeStringField("identityKey", Base64.encodeBytes(jsonIdentityKeyStore.getIdentityKeyPair().serialize()));
+            json.writeBinaryField("identityKey", jsonIdentityKeyStore.getIdentityKeyPair().serialize());
             json.writeArrayFieldStart("trustedKeys");
             for (Map.Entry<String, List<Identity>> trustedKey : jsonIdentityKeyStore.trustedKeys.entrySet()) {
                 for (Identity id : trustedKey.getValue()) {
                     json.writeStartObject();
                     json.writeStringField("name", trustedKey.getKey());
-                    json.writeStringField("identityKey", Base64.encodeBytes(id.identityKey.serialize()));
+                    json.writeStringField("identityKey", id.getEncodedKey());
                     json.writeNumberField("trustLevel", id.trustLevel.ordinal());
                     json.writeNumberField("addedTimestamp", id.added.getTime());
                     json.writeEndObject();
@@ -187,9 +378,10 @@ public class JsonIdentityKeyStore implements IdentityKeyStore {
 
     public class Identity {
 
-        IdentityKey identityKey;
-        TrustLevel trustLevel;
-        Date added;
+        private String encodedKey;
+        private final IdentityKey identityKey;
+        volatile TrustLevel trustLevel;
+        volatile Date added;
 
         public Identity(IdentityKey identityKey, TrustLevel trustLevel) {
             this.identityKey = identityKey;
@@ -197,7 +389,8 @@ public class JsonIdentityKeyStore implements IdentityKeyStore {
             this.added = new Date();
         }
 
-        Identity(IdentityKey identityKey, TrustLevel trustLevel, Date added) {
+        Identity(String encodedKey, IdentityKey identityKey, TrustLevel trustLevel, Date added) {
+            this.encodedKey = encodedKey;
             this.identityKey = identityKey;
             this.trustLevel = trustLevel;
             this.added = added;
@@ -208,6 +401,13 @@ public class JsonIdentityKeyStore implements IdentityKeyStore {
                     trustLevel == TrustLevel.TRUSTED_VERIFIED;
         }
 
+        synchronized String getEncodedKey() {
+            if (encodedKey == null) {
+                encodedKey = Base64.encodeBytes(identityKey.serialize());
+            }
+            return encodedKey;
+        }
+
         public IdentityKey getIdentityKey() {
             return this.identityKey;
         }
@@ -221,7 +421,7 @@ public class JsonIdentityKeyStore implements IdentityKeyStore {
         }
 
         public byte[] getFingerprint() {
-            return identityKey.getPublicKey().serialize();
+            return getIdentityKey().getPublicKey().serialize();
         }
     }
 }
@@ -2,82 +2,322 @@ package org.asamk.signal.storage.protocol;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import org.asamk.signal.storage.PersistentStore;
+import org.asamk.signal.storage.StoreChangeListener;
 import org.whispersystems.libsignal.InvalidKeyIdException;
 import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.PreKeyStore;
 import org.whispersystems.util.Base64;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
-class JsonPreKeyStore implements PreKeyStore {
+/**
+ * One-time prekeys with their lifecycle: generated, uploaded, superseded by a newer upload and consumed by a received
+ * message. Consumed prekeys are only kept as a state without the key.
+ */
+@JsonSerialize(using = JsonPreKeyStore.JsonPreKeyStoreSerializer.class)
+class JsonPreKeyStore implements PreKeyStore, PersistentStore {
 
-    private final Map<Integer, byte[]> store = new HashMap<>();
+    static final String STORE_NAME = "preKeys";
+
+    /**
+     * Time superseded and consumed prekeys are kept. The server keeps undelivered messages for 30 days, which may
+     * still use a prekey that was replaced by a newer upload.
+     */
+    static final long RETENTION_TIME = TimeUnit.DAYS.toMillis(30);
+
+    /**
+     * Written as record of consumed prekeys. Older versions require a record in every entry, they load this one as an
+     * empty prekey, which the server never hands out again.
+     */
+    private static final String CONSUMED_RECORD = "";
+
+    enum State {
+        /**
+         * Stored locally, not uploaded yet
+         */
+        GENERATED,
+        /**
+         * Part of the last upload to the server
+         */
+        UPLOADED,
+        /**
+         * Replaced on the server by a newer upload
+         */
+        SUPERSEDED,
+        /**
+         * Used by a received message and removed
+         */
+        CONSUMED
+    }
+
+    private final IntHashMap<PreKeyEntry> store = new IntHashMap<>();
+
+    private StoreChangeListener changeListener;
+
+    private volatile boolean dirty = true;
 
     public JsonPreKeyStore() {
 
     }
 
-    private void addPreKeys(Map<Integer, byte[]> preKeys) {
-        store.putAll(preKeys);
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public void setDirty(final boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    synchronized void setChangeListener(StoreChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    private static ObjectNode toJson(int id, PreKeyEntry entry) {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("id", id);
+        if (entry.record != null) {
+            try {
+                node.put("record", Base64.encodeBytes(entry.record.getBytes()));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        } else {
+            node.put("record", CONSUMED_RECORD);
+        }
+        node.put("state", entry.state.name());
+        node.put("timestamp", entry.timestamp);
+        return node;
+    }
+
+    private void notifyChanged(int id, PreKeyEntry entry) {
+        dirty = true;
+        if (changeListener != null) {
+            changeListener.onPut(STORE_NAME, String.valueOf(id), toJson(id, entry));
+        }
+    }
+
+    private void notifyRemoved(int id) {
+        dirty = true;
+        if (changeListener != null) {
+            changeListener.onRemove(STORE_NAME, String.valueOf(id));
+        }
+    }
+
+    /**
+     * Applies a change recorded by a {@link StoreChangeListener}, entry is null for a removed key.
+     */
+    synchronized void applyChange(String key, JsonNode entry) throws IOException {
+        dirty = true;
+        if (entry == null) {
+            store.remove(Integer.parseInt(key));
+        } else {
+            JsonNode record = entry.get("record");
+            State state = entry.has("state") ? State.valueOf(entry.get("state").asText()) : State.UPLOADED;
+            long timestamp = entry.has("timestamp") ? entry.get("timestamp").asLong() : 0;
+            store.put(entry.get("id").asInt(), new PreKeyEntry(record == null || state == State.CONSUMED ? null : EncodedRecord.fromEncoded(record.asText()), state, timestamp));
+        }
+    }
+
+    private PreKeyEntry getUsable(int preKeyId) {
+        PreKeyEntry entry = store.get(preKeyId);
+        return entry == null || entry.state == State.CONSUMED ? null : entry;
     }
 
     @Override
-    public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+    public synchronized PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
         try {
-            if (!store.containsKey(preKeyId)) {
+            PreKeyEntry entry = getUsable(preKeyId);
+            if (entry == null) {
                 throw new InvalidKeyIdException("No such prekeyrecord!");
             }
 
-            return new PreKeyRecord(store.get(preKeyId));
+            return new PreKeyRecord(entry.record.getBytes());
         } catch (IOException e) {
             throw new AssertionError(e);
         }
     }
 
     @Override
-    public void storePreKey(int preKeyId, PreKeyRecord record) {
-        store.put(preKeyId, record.serialize());
+    public synchronized void storePreKey(int preKeyId, PreKeyRecord record) {
+        PreKeyEntry entry = new PreKeyEntry(EncodedRecord.fromBytes(record.serialize()), State.GENERATED, System.currentTimeMillis());
+        store.put(preKeyId, entry);
+        notifyChanged(preKeyId, entry);
     }
 
     @Override
-    public boolean containsPreKey(int preKeyId) {
-        return store.containsKey(preKeyId);
+    public synchronized boolean containsPreKey(int preKeyId) {
+        return getUsable(preKeyId) != null;
     }
 
     @Override
-    public void removePreKey(int preKeyId) {
-        store.remove(preKeyId);
+    public synchronized void removePreKey(int preKeyId) {
+        if (getUsable(preKeyId) == null) {
+            return;
+        }
+        PreKeyEntry entry = new PreKeyEntry(null, State.CONSUMED, System.currentTimeMillis());
+        store.put(preKeyId, entry);
+        notifyChanged(preKeyId, entry);
+    }
+
+    /**
+     * Records a successful upload. The server replaces all its prekeys with the uploaded ones, so previously uploaded
+     * prekeys become superseded and generated prekeys that were not part of the upload can't be used anymore.
+     */
+    synchronized void markUploaded(int[] uploadedIds) {
+        int[] sortedIds = uploadedIds.clone();
+        Arrays.sort(sortedIds);
+        long now = System.currentTimeMillis();
+        int[] removedIds = new int[store.size()];
+        int removed = 0;
+        for (int slot = 0; slot < store.capacity(); slot++) {
+            PreKeyEntry entry = store.valueAt(slot);
+            if (entry == null) {
+                continue;
+            }
+            int id = store.keyAt(slot);
+            if (Arrays.binarySearch(sortedIds, id) >= 0) {
+                if (entry.state == State.GENERATED) {
+                    entry.setState(State.UPLOADED, now);
+                    notifyChanged(id, entry);
+                }
+            } else if (entry.state == State.UPLOADED) {
+                entry.setState(State.SUPERSEDED, now);
+                notifyChanged(id, entry);
+            } else if (entry.state == State.GENERATED) {
+                removedIds[removed++] = id;
+            }
+        }
+        removeAll(removedIds, removed);
+    }
+
+    /**
+     * Drops superseded and consumed prekeys older than the retention time.
+     *
+     * @return the number of dropped prekeys
+     */
+    synchronized int compact(long now) {
+        int[] removedIds = new int[store.size()];
+        int removed = 0;
+        for (int slot = 0; slot < store.capacity(); slot++) {
+            PreKeyEntry entry = store.valueAt(slot);
+            if (entry != null && (entry.state == State.SUPERSEDED || entry.state == State.CONSUMED) && now - entry.timestamp >= RETENTION_TIME) {
+                removedIds[removed++] = store.keyAt(slot);
+            }
+        }
+        removeAll(removedIds, removed);
+        return removed;
+    }
+
+    /**
+     * Removing moves entries between slots, so the ids are collected first.
+     */
+    private void removeAll(int[] ids, int count) {
+        for (int i = 0; i < count; i++) {
+            store.remove(ids[i]);
+            notifyRemoved(ids[i]);
+        }
+    }
+
+    synchronized PreKeyStatistics getStatistics(long now) {
+        int[] countByState = new int[State.values().length];
+        int[] ageBuckets = new int[PreKeyStatistics.AGE_BUCKET_LIMITS.length + 1];
+        int unknownAge = 0;
+        for (int slot = 0; slot < store.capacity(); slot++) {
+            PreKeyEntry entry = store.valueAt(slot);
+            if (entry == null) {
+                continue;
+            }
+            countByState[entry.state.ordinal()]++;
+            if (entry.state == State.CONSUMED) {
+                continue;
+            }
+            if (entry.timestamp == 0) {
+                unknownAge++;
+            } else {
+                ageBuckets[PreKeyStatistics.getAgeBucket(now - entry.timestamp)]++;
+            }
+        }
+        return new PreKeyStatistics(countByState[State.GENERATED.ordinal()], countByState[State.UPLOADED.ordinal()], countByState[State.SUPERSEDED.ordinal()], countByState[State.CONSUMED.ordinal()], ageBuckets, unknownAge);
+    }
+
+    /**
+     * A prekey in serialized form, the record is null once the prekey is consumed.
+     */
+    private static final class PreKeyEntry {
+
+        private final EncodedRecord record;
+        private State state;
+        /**
+         * Time of the last state change, 0 if unknown
+         */
+        private long timestamp;
+
+        private PreKeyEntry(EncodedRecord record, State state, long timestamp) {
+            this.record = record;
+            this.state = state;
+            this.timestamp = timestamp;
+        }
+
+        private void setState(State state, long timestamp) {
+            this.state = state;
+            this.timestamp = timestamp;
+        }
     }
 
     public static class JsonPreKeyStoreDeserializer extends JsonDeserializer<JsonPreKeyStore> {
 
         @Override
         public JsonPreKeyStore deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
-            JsonNode node = jsonParser.getCodec().readTree(jsonParser);
-
-            Map<Integer, byte[]> preKeyMap = new HashMap<>();
-            if (node.isArray()) {
-                for (JsonNode preKey : node) {
-                    Integer preKeyId = preKey.get("id").asInt();
-                    try {
-                        preKeyMap.put(preKeyId, Base64.decode(preKey.get("record").asText()));
-                    } catch (IOException e) {
-                        System.out.println(String.format("Error while decoding prekey for: %s", preKeyId));
+            JsonPreKeyStore keyStore = new JsonPreKeyStore();
+            if (!jsonParser.isExpectedStartArrayToken()) {
+                jsonParser.skipChildren();
+                return keyStore;
+            }
+            while (jsonParser.nextToken() == JsonToken.START_OBJECT) {
+                int preKeyId = 0;
+                String record = null;
+                // Prekeys stored before the lifecycle was tracked were uploaded at an unknown time
+                State state = State.UPLOADED;
+                long timestamp = 0;
+                while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+                    String fieldName = jsonParser.getCurrentName();
+                    jsonParser.nextToken();
+                    if ("id".equals(fieldName)) {
+                        preKeyId = jsonParser.getValueAsInt();
+                    } else if ("record".equals(fieldName)) {
+                        record = jsonParser.getValueAsString();
+                    } else if ("state".equals(fieldName)) {
+                        state = State.valueOf(jsonParser.getValueAsString());
+                    } else if ("timestamp".equals(fieldName)) {
+                        timestamp = jsonParser.getValueAsLong();
+                    } else {
+                        jsonParser.skipChildren();
                     }
                 }
+                if (state == State.CONSUMED) {
+                    record = null;
+                } else if (record == null || record.isEmpty()) {
+                    System.err.println(String.format("Error while decoding prekey for: %s", preKeyId));
+                    continue;
+                }
+                keyStore.store.put(preKeyId, new PreKeyEntry(record == null ? null : EncodedRecord.fromEncoded(record), state, timestamp));
             }
 
-            JsonPreKeyStore keyStore = new JsonPreKeyStore();
-            keyStore.addPreKeys(preKeyMap);
-
             return keyStore;
 
         }
@@ -87,14 +327,27 @@ class JsonPreKeyStore implements PreKeyStore {
 
         @Override
         public void serialize(JsonPreKeyStore jsonPreKeyStore, JsonGenerator json, SerializerProvider serializerProvider) throws IOException {
-            json.writeStartArray();
-            for (Map.Entry<Integer, byte[]> preKey : jsonPreKeyStore.store.entrySet()) {
-                json.writeStartObject();
-                json.writeNumberField("id", preKey.getKey());
-                json.writeStringField("record", Base64.encodeBytes(preKey.getValue()));
-                json.writeEndObject();
+            synchronized (jsonPreKeyStore) {
+                IntHashMap<PreKeyEntry> store = jsonPreKeyStore.store;
+                json.writeStartArray();
+                for (int slot = 0; slot < store.capacity(); slot++) {
+                    PreKeyEntry entry = store.valueAt(slot);
+                    if (entry == null) {
+                        continue;
+                    }
+                    json.writeStartObject();
+                    json.writeNumberField("id", store.keyAt(slot));
+                    if (entry.record != null) {
+                        entry.record.writeField(json, "record");
+                    } else {
+                        json.writeStringField("record", CONSUMED_RECORD);
+                    }
+                    json.writeStringField("state", entry.state.name());
+                    json.writeNumberField("timestamp", entry.timestamp);
+                    json.writeEndObject();
+                }
+                json.writeEndArray();
             }
-            json.writeEndArray();
         }
     }
 }
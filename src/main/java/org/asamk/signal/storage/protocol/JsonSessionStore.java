@@ -2,57 +2,206 @@ package org.asamk.signal.storage.protocol;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import org.asamk.signal.storage.NumberInterner;
+import org.asamk.signal.storage.PersistentStore;
+import org.asamk.signal.storage.StoreChangeListener;
 import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SessionStore;
 import org.whispersystems.util.Base64;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-class JsonSessionStore implements SessionStore {
+@JsonSerialize(using = JsonSessionStore.JsonPreKeyStoreSerializer.class)
+class JsonSessionStore implements SessionStore, PersistentStore {
 
-    private final Map<SignalProtocolAddress, byte[]> sessions = new HashMap<>();
+    static final String STORE_NAME = "sessionStore";
+
+    static final int DEFAULT_CACHE_SIZE = 100;
+
+    /**
+     * Sessions by name and device id, so the sessions of one user can be found without scanning all sessions.
+     * The device sessions of a name are guarded by the lock of that name.
+     */
+    private final Map<String, Map<Integer, SessionEntry>> sessions = new ConcurrentHashMap<>();
+
+    private final StripedLocks locks = new StripedLocks(StripedLocks.DEFAULT_STRIPES);
+
+    /**
+     * The most recently stored sessions that still hold their deserialized record, in access order.
+     * Guarded by itself, the lock is taken after the lock of a name and before the lock of an entry.
+     */
+    private final LinkedHashMap<SignalProtocolAddress, SessionEntry> cachedSessions = new LinkedHashMap<SignalProtocolAddress, SessionEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<SignalProtocolAddress, SessionEntry> eldest) {
+            if (size() <= cacheSize) {
+                return false;
+            }
+            eldest.getValue().releaseRecord();
+            return true;
+        }
+    };
+
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+
+    private volatile StoreChangeListener changeListener;
+
+    private volatile boolean dirty = true;
 
     public JsonSessionStore() {
 
     }
 
-    private void addSessions(Map<SignalProtocolAddress, byte[]> sessions) {
-        this.sessions.putAll(sessions);
+    @Override
+    public boolean isDirty() {
+        return dirty;
     }
 
     @Override
-    public synchronized SessionRecord loadSession(SignalProtocolAddress remoteAddress) {
-        try {
-            if (containsSession(remoteAddress)) {
-                return new SessionRecord(sessions.get(remoteAddress));
-            } else {
+    public void setDirty(final boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    void setChangeListener(StoreChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Sets the number of stored session records that are kept deserialized, 0 disables the cache.
+     */
+    void setCacheSize(int cacheSize) {
+        synchronized (cachedSessions) {
+            this.cacheSize = cacheSize;
+            while (cachedSessions.size() > cacheSize) {
+                SignalProtocolAddress eldest = cachedSessions.keySet().iterator().next();
+                cachedSessions.remove(eldest).releaseRecord();
+            }
+        }
+    }
+
+    private void uncache(SignalProtocolAddress address) {
+        synchronized (cachedSessions) {
+            cachedSessions.remove(address);
+        }
+    }
+
+    private SessionEntry getEntry(SignalProtocolAddress address) {
+        Map<Integer, SessionEntry> deviceSessions = sessions.get(address.getName());
+        return deviceSessions == null ? null : deviceSessions.get(address.getDeviceId());
+    }
+
+    private void putEntry(SignalProtocolAddress address, SessionEntry entry) {
+        Map<Integer, SessionEntry> deviceSessions = sessions.get(address.getName());
+        if (deviceSessions == null) {
+            // Most users have only a few devices
+            deviceSessions = new HashMap<>(4);
+            sessions.put(NumberInterner.intern(address.getName()), deviceSessions);
+        }
+        deviceSessions.put(address.getDeviceId(), entry);
+    }
+
+    private SessionEntry removeEntry(SignalProtocolAddress address) {
+        Map<Integer, SessionEntry> deviceSessions = sessions.get(address.getName());
+        if (deviceSessions == null) {
+            return null;
+        }
+        SessionEntry entry = deviceSessions.remove(address.getDeviceId());
+        if (deviceSessions.isEmpty()) {
+            sessions.remove(address.getName());
+        }
+        uncache(address);
+        return entry;
+    }
+
+    private static String getKey(SignalProtocolAddress address) {
+        return address.getName() + "." + address.getDeviceId();
+    }
+
+    private static ObjectNode toJson(SignalProtocolAddress address, byte[] record) {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("name", address.getName());
+        node.put("deviceId", address.getDeviceId());
+        node.put("record", Base64.encodeBytes(record));
+        return node;
+    }
+
+    /**
+     * Applies a change recorded by a {@link StoreChangeListener}, entry is null for a removed session.
+     */
+    void applyChange(String key, JsonNode entry) throws IOException {
+        dirty = true;
+        if (entry == null) {
+            int separator = key.lastIndexOf('.');
+            SignalProtocolAddress address = new SignalProtocolAddress(key.substring(0, separator), Integer.parseInt(key.substring(separator + 1)));
+            synchronized (locks.get(address.getName())) {
+                removeEntry(address);
+            }
+        } else {
+            SignalProtocolAddress address = new SignalProtocolAddress(entry.get("name").asText(), entry.get("deviceId").asInt());
+            synchronized (locks.get(address.getName())) {
+                uncache(address);
+                putEntry(address, new SessionEntry(EncodedRecord.fromEncoded(entry.get("record").asText())));
+            }
+        }
+    }
+
+    @Override
+    public SessionRecord loadSession(SignalProtocolAddress remoteAddress) {
+        synchronized (locks.get(remoteAddress.getName())) {
+            SessionEntry entry = getEntry(remoteAddress);
+            if (entry == null) {
+                return new SessionRecord();
+            }
+            // The caller owns the returned record, so it leaves the cache, see SessionEntry.takeRecord
+            uncache(remoteAddress);
+            SessionRecord record = entry.takeRecord();
+            if (record != null) {
+                return record;
+            }
+            byte[] serialized;
+            try {
+                serialized = entry.getEncoded().getBytes();
+            } catch (IOException e) {
+                System.out.println(String.format("Error while decoding session for: %s", remoteAddress.getName()));
+                removeEntry(remoteAddress);
                 return new SessionRecord();
             }
-        } catch (IOException e) {
-            throw new AssertionError(e);
+            try {
+                return new SessionRecord(serialized);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
         }
     }
 
     @Override
-    public synchronized List<Integer> getSubDeviceSessions(String name) {
+    public List<Integer> getSubDeviceSessions(String name) {
         List<Integer> deviceIds = new LinkedList<>();
 
-        for (SignalProtocolAddress key : sessions.keySet()) {
-            if (key.getName().equals(name) &&
-                    key.getDeviceId() != 1) {
-                deviceIds.add(key.getDeviceId());
+        synchronized (locks.get(name)) {
+            Map<Integer, SessionEntry> deviceSessions = sessions.get(name);
+            if (deviceSessions != null) {
+                for (Integer deviceId : deviceSessions.keySet()) {
+                    if (deviceId != 1) {
+                        deviceIds.add(deviceId);
+                    }
+                }
             }
         }
 
@@ -60,50 +209,160 @@ class JsonSessionStore implements SessionStore {
     }
 
     @Override
-    public synchronized void storeSession(SignalProtocolAddress address, SessionRecord record) {
-        sessions.put(address, record.serialize());
+    public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+        synchronized (locks.get(address.getName())) {
+            SessionEntry entry = getEntry(address);
+            if (entry == null) {
+                entry = new SessionEntry(null);
+                putEntry(address, entry);
+            }
+            dirty = true;
+            StoreChangeListener changeListener = this.changeListener;
+            if (changeListener != null) {
+                byte[] serialized = record.serialize();
+                entry.setRecord(record, EncodedRecord.fromBytes(serialized));
+                changeListener.onPut(STORE_NAME, getKey(address), toJson(address, serialized));
+            } else {
+                // Serialized when the store is saved or the record is evicted from the cache
+                entry.setRecord(record, null);
+            }
+            synchronized (cachedSessions) {
+                if (cacheSize > 0) {
+                    cachedSessions.put(address, entry);
+                } else {
+                    entry.releaseRecord();
+                }
+            }
+        }
     }
 
     @Override
-    public synchronized boolean containsSession(SignalProtocolAddress address) {
-        return sessions.containsKey(address);
+    public boolean containsSession(SignalProtocolAddress address) {
+        synchronized (locks.get(address.getName())) {
+            return getEntry(address) != null;
+        }
     }
 
     @Override
-    public synchronized void deleteSession(SignalProtocolAddress address) {
-        sessions.remove(address);
+    public void deleteSession(SignalProtocolAddress address) {
+        synchronized (locks.get(address.getName())) {
+            if (removeEntry(address) == null) {
+                return;
+            }
+            dirty = true;
+            StoreChangeListener changeListener = this.changeListener;
+            if (changeListener != null) {
+                changeListener.onRemove(STORE_NAME, getKey(address));
+            }
+        }
     }
 
     @Override
-    public synchronized void deleteAllSessions(String name) {
-        for (SignalProtocolAddress key : new ArrayList<>(sessions.keySet())) {
-            if (key.getName().equals(name)) {
-                sessions.remove(key);
+    public void deleteAllSessions(String name) {
+        synchronized (locks.get(name)) {
+            Map<Integer, SessionEntry> deviceSessions = sessions.remove(name);
+            if (deviceSessions == null) {
+                return;
+            }
+            dirty = true;
+            StoreChangeListener changeListener = this.changeListener;
+            for (Integer deviceId : deviceSessions.keySet()) {
+                SignalProtocolAddress address = new SignalProtocolAddress(name, deviceId);
+                uncache(address);
+                if (changeListener != null) {
+                    changeListener.onRemove(STORE_NAME, getKey(address));
+                }
             }
         }
     }
 
+    /**
+     * A session in serialized form and, while it is cached, as deserialized record.
+     * The serialized form is null while the record has stored changes that are not serialized yet.
+     * An entry can be evicted from the cache while its name is locked by another thread, so it has its own lock.
+     */
+    private static final class SessionEntry {
+
+        private EncodedRecord encoded;
+        private SessionRecord record;
+
+        private SessionEntry(EncodedRecord encoded) {
+            this.encoded = encoded;
+        }
+
+        private synchronized void setRecord(SessionRecord record, EncodedRecord encoded) {
+            this.record = record;
+            this.encoded = encoded;
+        }
+
+        private synchronized EncodedRecord getEncoded() {
+            if (encoded == null) {
+                encoded = EncodedRecord.fromBytes(record.serialize());
+            }
+            return encoded;
+        }
+
+        /**
+         * Drops the deserialized record when it's evicted from the cache, its stored changes are serialized first.
+         */
+        private synchronized void releaseRecord() {
+            getEncoded();
+            record = null;
+        }
+
+        /**
+         * Hands the cached record to a caller, which can then change it without storing it again: libsignal's
+         * SessionCipher processes a prekey message on the loaded record before decrypting, and doesn't store the record
+         * if decrypting fails. The entry therefore can't keep the record, and needs a copy of the stored state instead.
+         * SessionRecord has no copy other than its serialized form. If a change listener is set, storeSession already
+         * serialized the record and nothing is left to do here. Otherwise the serialization deferred by storeSession
+         * happens now, once per stored record, and the load still saves deserializing it.
+         *
+         * @return the cached record, or null if it isn't cached
+         */
+        private synchronized SessionRecord takeRecord() {
+            SessionRecord record = this.record;
+            if (record != null) {
+                getEncoded();
+                this.record = null;
+            }
+            return record;
+        }
+    }
+
     public static class JsonSessionStoreDeserializer extends JsonDeserializer<JsonSessionStore> {
 
         @Override
         public JsonSessionStore deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
-            JsonNode node = jsonParser.getCodec().readTree(jsonParser);
-
-            Map<SignalProtocolAddress, byte[]> sessionMap = new HashMap<>();
-            if (node.isArray()) {
-                for (JsonNode session : node) {
-                    String sessionName = session.get("name").asText();
-                    try {
-                        sessionMap.put(new SignalProtocolAddress(sessionName, session.get("deviceId").asInt()), Base64.decode(session.get("record").asText()));
-                    } catch (IOException e) {
-                        System.out.println(String.format("Error while decoding session for: %s", sessionName));
+            JsonSessionStore sessionStore = new JsonSessionStore();
+            if (!jsonParser.isExpectedStartArrayToken()) {
+                jsonParser.skipChildren();
+                return sessionStore;
+            }
+            while (jsonParser.nextToken() == JsonToken.START_OBJECT) {
+                String sessionName = null;
+                int deviceId = 0;
+                String record = null;
+                while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+                    String fieldName = jsonParser.getCurrentName();
+                    jsonParser.nextToken();
+                    if ("name".equals(fieldName)) {
+                        sessionName = jsonParser.getValueAsString();
+                    } else if ("deviceId".equals(fieldName)) {
+                        deviceId = jsonParser.getValueAsInt();
+                    } else if ("record".equals(fieldName)) {
+                        record = jsonParser.getValueAsString();
+                    } else {
+                        jsonParser.skipChildren();
                     }
                 }
+                if (record == null) {
+                    System.out.println(String.format("Error while decoding session for: %s", sessionName));
+                    continue;
+                }
+                sessionStore.putEntry(new SignalProtocolAddress(sessionName, deviceId), new SessionEntry(EncodedRecord.fromEncoded(record)));
             }
 
-            JsonSessionStore sessionStore = new JsonSessionStore();
-            sessionStore.addSessions(sessionMap);
-
             return sessionStore;
 
         }
@@ -114,12 +373,16 @@ class JsonSessionStore implements SessionStore {
         @Override
         public void serialize(JsonSessionStore jsonSessionStore, JsonGenerator json, SerializerProvider serializerProvider) throws IOException {
             json.writeStartArray();
-            for (Map.Entry<SignalProtocolAddress, byte[]> preKey : jsonSessionStore.sessions.entrySet()) {
-                json.writeStartObject();
-                json.writeStringField("name", preKey.getKey().getName());
-                json.writeNumberField("deviceId", preKey.getKey().getDeviceId());
-                json.writeStringField("record", Base64.encodeBytes(preKey.getValue()));
-                json.writeEndObject();
+            for (Map.Entry<String, Map<Integer, SessionEntry>> deviceSessions : jsonSessionStore.sessions.entrySet()) {
+                synchronized (jsonSessionStore.locks.get(deviceSessions.getKey())) {
+                    for (Map.Entry<Integer, SessionEntry> session : deviceSessions.getValue().entrySet()) {
+                        json.writeStartObject();
+                        json.writeStringField("name", deviceSessions.getKey());
+                        json.writeNumberField("deviceId", session.getKey());
+                        session.getValue().getEncoded().writeField(json, "record");
+                        json.writeEndObject();
+                    }
+                }
             }
             json.writeEndArray();
         }
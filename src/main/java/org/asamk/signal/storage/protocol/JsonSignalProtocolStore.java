@@ -1,10 +1,13 @@
 package org.asamk.signal.storage.protocol;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
 import org.asamk.signal.TrustLevel;
+import org.asamk.signal.storage.PersistentStore;
+import org.asamk.signal.storage.StoreChangeListener;
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.InvalidKeyIdException;
@@ -14,6 +17,8 @@ import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -39,6 +44,8 @@ public class JsonSignalProtocolStore implements SignalProtocolStore {
     @JsonSerialize(using = JsonIdentityKeyStore.JsonIdentityKeyStoreSerializer.class)
     private JsonIdentityKeyStore identityKeyStore;
 
+    private volatile PreKeyListener preKeyListener;
+
     public JsonSignalProtocolStore() {
     }
 
@@ -56,6 +63,64 @@ public class JsonSignalProtocolStore implements SignalProtocolStore {
         this.identityKeyStore = new JsonIdentityKeyStore(identityKeyPair, registrationId);
     }
 
+    /**
+     * @return the sub stores by their name in the account file
+     */
+    public Map<String, PersistentStore> getStores() {
+        Map<String, PersistentStore> stores = new LinkedHashMap<>();
+        stores.put(JsonPreKeyStore.STORE_NAME, preKeyStore);
+        stores.put(JsonSessionStore.STORE_NAME, sessionStore);
+        stores.put(JsonSignedPreKeyStore.STORE_NAME, signedPreKeyStore);
+        stores.put(JsonIdentityKeyStore.STORE_NAME, identityKeyStore);
+        return stores;
+    }
+
+    public void setChangeListener(StoreChangeListener changeListener) {
+        preKeyStore.setChangeListener(changeListener);
+        sessionStore.setChangeListener(changeListener);
+        signedPreKeyStore.setChangeListener(changeListener);
+        identityKeyStore.setChangeListener(changeListener);
+    }
+
+    /**
+     * Sets a listener that is notified when a one-time prekey is removed after it was used by a received message.
+     */
+    public void setPreKeyListener(PreKeyListener preKeyListener) {
+        this.preKeyListener = preKeyListener;
+    }
+
+    /**
+     * Sets the number of stored session records that are kept deserialized, 0 disables the cache.
+     */
+    public void setSessionCacheSize(int sessionCacheSize) {
+        sessionStore.setCacheSize(sessionCacheSize);
+    }
+
+    /**
+     * Applies a change recorded by a {@link StoreChangeListener} to the matching sub store.
+     *
+     * @param entry the changed entry or null, if the entry was removed
+     * @return false if the store name is unknown
+     */
+    public boolean applyChange(String store, String key, JsonNode entry) throws IOException {
+        switch (store) {
+            case JsonPreKeyStore.STORE_NAME:
+                preKeyStore.applyChange(key, entry);
+                return true;
+            case JsonSessionStore.STORE_NAME:
+                sessionStore.applyChange(key, entry);
+                return true;
+            case JsonSignedPreKeyStore.STORE_NAME:
+                signedPreKeyStore.applyChange(key, entry);
+                return true;
+            case JsonIdentityKeyStore.STORE_NAME:
+                identityKeyStore.applyChange(key, entry);
+                return true;
+            default:
+                return false;
+        }
+    }
+
     @Override
     public IdentityKeyPair getIdentityKeyPair() {
         return identityKeyStore.getIdentityKeyPair();
@@ -83,6 +148,10 @@ public class JsonSignalProtocolStore implements SignalProtocolStore {
         return identityKeyStore.getIdentities(name);
     }
 
+    public JsonIdentityKeyStore.Identity getCurrentIdentity(String name) {
+        return identityKeyStore.getCurrentIdentity(name);
+    }
+
     @Override
     public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
         return identityKeyStore.isTrustedIdentity(address, identityKey, direction);
@@ -111,6 +180,34 @@ public class JsonSignalProtocolStore implements SignalProtocolStore {
     @Override
     public void removePreKey(int preKeyId) {
         preKeyStore.removePreKey(preKeyId);
+        PreKeyListener preKeyListener = this.preKeyListener;
+        if (preKeyListener != null) {
+            preKeyListener.onPreKeyRemoved(preKeyId);
+        }
+    }
+
+    /**
+     * Records that the given prekeys were uploaded, replacing all prekeys previously uploaded to the server.
+     */
+    public void markPreKeysUploaded(List<PreKeyRecord> records) {
+        int[] ids = new int[records.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = records.get(i).getId();
+        }
+        preKeyStore.markUploaded(ids);
+    }
+
+    /**
+     * Drops prekeys that were superseded by a newer upload or consumed longer ago than the retention time.
+     *
+     * @return the number of dropped prekeys
+     */
+    public int compactPreKeys() {
+        return preKeyStore.compact(System.currentTimeMillis());
+    }
+
+    public PreKeyStatistics getPreKeyStatistics() {
+        return preKeyStore.getStatistics(System.currentTimeMillis());
     }
 
     @Override
@@ -167,4 +264,9 @@ public class JsonSignalProtocolStore implements SignalProtocolStore {
     public void removeSignedPreKey(int signedPreKeyId) {
         signedPreKeyStore.removeSignedPreKey(signedPreKeyId);
     }
+
+    public interface PreKeyListener {
+
+        void onPreKeyRemoved(int preKeyId);
+    }
 }
@@ -2,43 +2,89 @@ package org.asamk.signal.storage.protocol;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import org.asamk.signal.storage.PersistentStore;
+import org.asamk.signal.storage.StoreChangeListener;
 import org.whispersystems.libsignal.InvalidKeyIdException;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.state.SignedPreKeyStore;
 import org.whispersystems.util.Base64;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-class JsonSignedPreKeyStore implements SignedPreKeyStore {
+@JsonSerialize(using = JsonSignedPreKeyStore.JsonSignedPreKeyStoreSerializer.class)
+class JsonSignedPreKeyStore implements SignedPreKeyStore, PersistentStore {
 
-    private final Map<Integer, byte[]> store = new HashMap<>();
+    static final String STORE_NAME = "signedPreKeyStore";
+
+    /**
+     * Changes are serialized by the store lock, so they reach the change listener in the same order as the map.
+     */
+    private final Map<Integer, EncodedRecord> store = new ConcurrentHashMap<>();
+
+    private volatile StoreChangeListener changeListener;
+
+    private volatile boolean dirty = true;
 
     public JsonSignedPreKeyStore() {
 
     }
 
-    private void addSignedPreKeys(Map<Integer, byte[]> preKeys) {
-        store.putAll(preKeys);
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public void setDirty(final boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    void setChangeListener(StoreChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    private static ObjectNode toJson(int id, byte[] record) {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("id", id);
+        node.put("record", Base64.encodeBytes(record));
+        return node;
+    }
+
+    /**
+     * Applies a change recorded by a {@link StoreChangeListener}, entry is null for a removed key.
+     */
+    synchronized void applyChange(String key, JsonNode entry) throws IOException {
+        dirty = true;
+        if (entry == null) {
+            store.remove(Integer.parseInt(key));
+        } else {
+            store.put(entry.get("id").asInt(), EncodedRecord.fromEncoded(entry.get("record").asText()));
+        }
     }
 
     @Override
     public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
         try {
-            if (!store.containsKey(signedPreKeyId)) {
+            EncodedRecord record = store.get(signedPreKeyId);
+            if (record == null) {
                 throw new InvalidKeyIdException("No such signedprekeyrecord! " + signedPreKeyId);
             }
 
-            return new SignedPreKeyRecord(store.get(signedPreKeyId));
+            return new SignedPreKeyRecord(record.getBytes());
         } catch (IOException e) {
             throw new AssertionError(e);
         }
@@ -49,8 +95,8 @@ class JsonSignedPreKeyStore implements SignedPreKeyStore {
         try {
             List<SignedPreKeyRecord> results = new LinkedList<>();
 
-            for (byte[] serialized : store.values()) {
-                results.add(new SignedPreKeyRecord(serialized));
+            for (EncodedRecord serialized : store.values()) {
+                results.add(new SignedPreKeyRecord(serialized.getBytes()));
             }
 
             return results;
@@ -60,8 +106,13 @@ class JsonSignedPreKeyStore implements SignedPreKeyStore {
     }
 
     @Override
-    public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
-        store.put(signedPreKeyId, record.serialize());
+    public synchronized void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
+        byte[] serialized = record.serialize();
+        store.put(signedPreKeyId, EncodedRecord.fromBytes(serialized));
+        dirty = true;
+        if (changeListener != null) {
+            changeListener.onPut(STORE_NAME, String.valueOf(signedPreKeyId), toJson(signedPreKeyId, serialized));
+        }
     }
 
     @Override
@@ -70,31 +121,46 @@ class JsonSignedPreKeyStore implements SignedPreKeyStore {
     }
 
     @Override
-    public void removeSignedPreKey(int signedPreKeyId) {
-        store.remove(signedPreKeyId);
+    public synchronized void removeSignedPreKey(int signedPreKeyId) {
+        if (store.remove(signedPreKeyId) == null) {
+            return;
+        }
+        dirty = true;
+        if (changeListener != null) {
+            changeListener.onRemove(STORE_NAME, String.valueOf(signedPreKeyId));
+        }
     }
 
     public static class JsonSignedPreKeyStoreDeserializer extends JsonDeserializer<JsonSignedPreKeyStore> {
 
         @Override
         public JsonSignedPreKeyStore deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
-            JsonNode node = jsonParser.getCodec().readTree(jsonParser);
-
-            Map<Integer, byte[]> preKeyMap = new HashMap<>();
-            if (node.isArray()) {
-                for (JsonNode preKey : node) {
-                    Integer preKeyId = preKey.get("id").asInt();
-                    try {
-                        preKeyMap.put(preKeyId, Base64.decode(preKey.get("record").asText()));
-                    } catch (IOException e) {
-                        System.out.println(String.format("Error while decoding prekey for: %s", preKeyId));
+            JsonSignedPreKeyStore keyStore = new JsonSignedPreKeyStore();
+            if (!jsonParser.isExpectedStartArrayToken()) {
+                jsonParser.skipChildren();
+                return keyStore;
+            }
+            while (jsonParser.nextToken() == JsonToken.START_OBJECT) {
+                int preKeyId = 0;
+                String record = null;
+                while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+                    String fieldName = jsonParser.getCurrentName();
+                    jsonParser.nextToken();
+                    if ("id".equals(fieldName)) {
+                        preKeyId = jsonParser.getValueAsInt();
+                    } else if ("record".equals(fieldName)) {
+                        record = jsonParser.getValueAsString();
+                    } else {
+                        jsonParser.skipChildren();
                     }
                 }
+                if (record == null) {
+                    System.out.println(String.format("Error while decoding prekey for: %s", preKeyId));
+                    continue;
+                }
+                keyStore.store.put(preKeyId, EncodedRecord.fromEncoded(record));
             }
 
-            JsonSignedPreKeyStore keyStore = new JsonSignedPreKeyStore();
-            keyStore.addSignedPreKeys(preKeyMap);
-
             return keyStore;
 
         }
@@ -105,10 +171,10 @@ class JsonSignedPreKeyStore implements SignedPreKeyStore {
         @Override
         public void serialize(JsonSignedPreKeyStore jsonPreKeyStore, JsonGenerator json, SerializerProvider serializerProvider) throws IOException {
             json.writeStartArray();
-            for (Map.Entry<Integer, byte[]> signedPreKey : jsonPreKeyStore.store.entrySet()) {
+            for (Map.Entry<Integer, EncodedRecord> signedPreKey : jsonPreKeyStore.store.entrySet()) {
                 json.writeStartObject();
                 json.writeNumberField("id", signedPreKey.getKey());
-                json.writeStringField("record", Base64.encodeBytes(signedPreKey.getValue()));
+                signedPreKey.getValue().writeField(json, "record");
                 json.writeEndObject();
             }
             json.writeEndArray();
@@ -0,0 +1,80 @@
+package org.asamk.signal.storage.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Number of one-time prekeys in each lifecycle state and the age distribution of the prekeys that can still be used.
+ */
+public class PreKeyStatistics {
+
+    /**
+     * Upper age limits in milliseconds of the age buckets, the last bucket contains all older prekeys.
+     */
+    public static final long[] AGE_BUCKET_LIMITS = {TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(7), TimeUnit.DAYS.toMillis(30)};
+
+    private final int generated;
+    private final int uploaded;
+    private final int superseded;
+    private final int consumed;
+    private final int[] ageBuckets;
+    private final int unknownAge;
+
+    PreKeyStatistics(int generated, int uploaded, int superseded, int consumed, int[] ageBuckets, int unknownAge) {
+        this.generated = generated;
+        this.uploaded = uploaded;
+        this.superseded = superseded;
+        this.consumed = consumed;
+        this.ageBuckets = ageBuckets;
+        this.unknownAge = unknownAge;
+    }
+
+    static int getAgeBucket(long age) {
+        int bucket = 0;
+        while (bucket < AGE_BUCKET_LIMITS.length && age >= AGE_BUCKET_LIMITS[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * @return the number of prekeys that were generated, but not uploaded yet
+     */
+    public int getGenerated() {
+        return generated;
+    }
+
+    /**
+     * @return the number of prekeys of the last upload that were not used yet
+     */
+    public int getUploaded() {
+        return uploaded;
+    }
+
+    /**
+     * @return the number of prekeys replaced on the server by a newer upload, kept for messages already sent to them
+     */
+    public int getSuperseded() {
+        return superseded;
+    }
+
+    /**
+     * @return the number of prekeys used by received messages within the retention time
+     */
+    public int getConsumed() {
+        return consumed;
+    }
+
+    /**
+     * @return the number of unused prekeys in each age bucket, since their last state change
+     */
+    public int[] getAgeBuckets() {
+        return ageBuckets.clone();
+    }
+
+    /**
+     * @return the number of unused prekeys loaded from an account file without lifecycle information
+     */
+    public int getUnknownAge() {
+        return unknownAge;
+    }
+}
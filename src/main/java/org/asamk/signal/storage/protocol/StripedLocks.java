@@ -0,0 +1,25 @@
+package org.asamk.signal.storage.protocol;
+
+/**
+ * A fixed set of locks selected by the remote name, so changes for the same recipient are serialized while changes
+ * for different recipients rarely wait for each other.
+ */
+final class StripedLocks {
+
+    static final int DEFAULT_STRIPES = 64;
+
+    private final Object[] locks;
+
+    StripedLocks(int stripes) {
+        locks = new Object[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    Object get(String name) {
+        int hash = name.hashCode();
+        hash ^= hash >>> 16;
+        return locks[(hash & 0x7fffffff) % locks.length];
+    }
+}
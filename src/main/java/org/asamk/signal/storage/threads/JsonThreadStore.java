@@ -3,6 +3,7 @@ package org.asamk.signal.storage.threads;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -12,31 +13,158 @@ import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
+import org.asamk.signal.storage.NumberInterner;
+import org.asamk.signal.storage.PersistentStore;
+import org.asamk.signal.storage.SnapshotPublisher;
+import org.asamk.signal.storage.StoreChangeListener;
+import org.asamk.signal.storage.groups.GroupId;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class JsonThreadStore {
+public class JsonThreadStore implements PersistentStore {
+
+    public static final String STORE_NAME = "threadStore";
 
     private static final ObjectMapper jsonProcessor = new ObjectMapper();
 
+    /**
+     * Threads of contacts keyed by the phone number, threads of groups by their {@link GroupId}.
+     */
     @JsonProperty("threads")
-    @JsonSerialize(using = JsonThreadStore.MapToListSerializer.class)
     @JsonDeserialize(using = ThreadsDeserializer.class)
-    private Map<String, ThreadInfo> threads = new HashMap<>();
+    private Map<Object, ThreadInfo> threads = new HashMap<>();
+
+    private final SnapshotPublisher<Object, ThreadInfo> snapshots = new SnapshotPublisher<Object, ThreadInfo>() {
+        @Override
+        protected ThreadInfo copy(ThreadInfo entry) {
+            return entry.copy();
+        }
+    };
 
-    public void updateThread(ThreadInfo thread) {
-        threads.put(thread.id, thread);
+    private StoreChangeListener changeListener;
+
+    private volatile boolean dirty = true;
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
     }
 
+    @Override
+    public void setDirty(final boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    public synchronized void setChangeListener(StoreChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Replaces the id of a contact thread with the shared instance of the number.
+     */
+    private static void internId(ThreadInfo thread) {
+        if (isPhoneNumber(thread.id)) {
+            thread.id = NumberInterner.intern(thread.id);
+        }
+    }
+
+    /**
+     * @param id a phone number or a base64 encoded group id
+     */
+    private static Object getKey(String id) {
+        if (isPhoneNumber(id)) {
+            return id;
+        }
+        try {
+            return GroupId.fromBase64(id);
+        } catch (IOException e) {
+            return id;
+        }
+    }
+
+    private static boolean isPhoneNumber(String id) {
+        if (id.length() < 2 || id.charAt(0) != '+') {
+            return false;
+        }
+        for (int i = 1; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies a change recorded by a {@link StoreChangeListener}, entry is null for a removed thread.
+     */
+    public synchronized void applyChange(String key, JsonNode entry) throws IOException {
+        dirty = true;
+        if (entry == null) {
+            Object threadKey = getKey(key);
+            threads.remove(threadKey);
+            snapshots.remove(threadKey);
+        } else {
+            ThreadInfo thread = jsonProcessor.treeToValue(entry, ThreadInfo.class);
+            internId(thread);
+            Object threadKey = getKey(thread.id);
+            threads.put(threadKey, thread);
+            snapshots.put(threadKey, thread);
+        }
+    }
+
+    /**
+     * Stores a copy of the thread, later changes of the given object are not stored.
+     */
+    public synchronized void updateThread(ThreadInfo thread) {
+        internId(thread);
+        Object key = getKey(thread.id);
+        threads.put(key, thread);
+        ThreadInfo copy = snapshots.put(key, thread);
+        dirty = true;
+        if (changeListener != null) {
+            changeListener.onPut(STORE_NAME, thread.id, copy);
+        }
+    }
+
+    /**
+     * Threads are read from a snapshot without locking, the returned thread must not be changed.
+     *
+     * @param id a phone number or a base64 encoded group id
+     */
     public ThreadInfo getThread(String id) {
-        return threads.get(id);
+        return getSnapshot().get(getKey(id));
+    }
+
+    /**
+     * Threads are read from a snapshot without locking, the returned thread must not be changed.
+     */
+    public ThreadInfo getGroupThread(byte[] groupId) {
+        return getSnapshot().get(GroupId.of(groupId));
     }
 
     public List<ThreadInfo> getThreads() {
-        return new ArrayList<>(threads.values());
+        return new ArrayList<>(getSnapshot().values());
+    }
+
+    private Map<Object, ThreadInfo> getSnapshot() {
+        Map<Object, ThreadInfo> snapshot = snapshots.getIfCurrent();
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (this) {
+            return snapshots.update(threads);
+        }
+    }
+
+    @JsonProperty("threads")
+    @JsonSerialize(using = JsonThreadStore.MapToListSerializer.class)
+    private Map<Object, ThreadInfo> getSavedThreads() {
+        return getSnapshot();
     }
 
     private static class MapToListSerializer extends JsonSerializer<Map<?, ?>> {
@@ -47,15 +175,19 @@ public class JsonThreadStore {
         }
     }
 
-    private static class ThreadsDeserializer extends JsonDeserializer<Map<String, ThreadInfo>> {
+    private static class ThreadsDeserializer extends JsonDeserializer<Map<Object, ThreadInfo>> {
 
         @Override
-        public Map<String, ThreadInfo> deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
-            Map<String, ThreadInfo> threads = new HashMap<>();
-            JsonNode node = jsonParser.getCodec().readTree(jsonParser);
-            for (JsonNode n : node) {
-                ThreadInfo t = jsonProcessor.treeToValue(n, ThreadInfo.class);
-                threads.put(t.id, t);
+        public Map<Object, ThreadInfo> deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
+            Map<Object, ThreadInfo> threads = new HashMap<>();
+            if (!jsonParser.isExpectedStartArrayToken()) {
+                jsonParser.skipChildren();
+                return threads;
+            }
+            while (jsonParser.nextToken() != JsonToken.END_ARRAY) {
+                ThreadInfo t = jsonProcessor.readValue(jsonParser, ThreadInfo.class);
+                internId(t);
+                threads.put(getKey(t.id), t);
             }
 
             return threads;
@@ -9,4 +9,11 @@ public class ThreadInfo {
 
     @JsonProperty
     public int messageExpirationTime;
+
+    public ThreadInfo copy() {
+        ThreadInfo copy = new ThreadInfo();
+        copy.id = id;
+        copy.messageExpirationTime = messageExpirationTime;
+        return copy;
+    }
 }
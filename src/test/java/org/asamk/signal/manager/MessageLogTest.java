@@ -0,0 +1,243 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.storage.StorageConfig;
+import org.junit.jupiter.api.*;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageLogTest {
+
+    /**
+     * Room for the commit record and three envelopes, the fourth one starts a new segment
+     */
+    private static final long SEGMENT_SIZE = 1024;
+
+    private Path directory;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("signal-message-log-test");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @DisplayName("should replay the envelopes from the first uncommitted one")
+    @Test
+    void replay() throws IOException {
+        MessageLog log = open();
+        assertThat(log.takeUncommittedEnvelopes()).isEmpty();
+        for (int i = 1; i <= 5; i++) {
+            assertThat(log.append(createEnvelope(i))).isEqualTo((long) i);
+            log.sync();
+        }
+        log.commit(1);
+        log.commit(2);
+        // Committed after the first uncommitted envelope, so it's processed again
+        log.commit(4);
+        log.close();
+
+        log = open();
+
+        assertThat(timestamps(log.takeUncommittedEnvelopes())).containsExactly(3L, 4L, 5L);
+        assertThat(log.takeUncommittedEnvelopes()).isEmpty();
+        log.close();
+    }
+
+    @DisplayName("should replay nothing once all envelopes are committed")
+    @Test
+    void commitAll() throws IOException {
+        MessageLog log = open();
+        List<Long> sequences = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            sequences.add(log.append(createEnvelope(i)));
+        }
+        log.sync();
+        Collections.reverse(sequences);
+        for (long sequence : sequences) {
+            log.commit(sequence);
+        }
+        log.close();
+
+        log = open();
+
+        assertThat(log.takeUncommittedEnvelopes()).isEmpty();
+        assertThat(log.append(createEnvelope(4))).isEqualTo(4L);
+        log.close();
+    }
+
+    @DisplayName("should ignore a partially written record at the end")
+    @Test
+    void tornTail() throws IOException {
+        MessageLog log = open();
+        log.append(createEnvelope(1));
+        log.append(createEnvelope(2));
+        log.close();
+        Files.write(segmentFiles().get(0).toPath(), new byte[]{0, 0, 1, 0, 7, 7, 7, 7, 1}, StandardOpenOption.APPEND);
+
+        log = open();
+
+        assertThat(timestamps(log.takeUncommittedEnvelopes())).containsExactly(1L, 2L);
+        assertThat(log.append(createEnvelope(3))).isEqualTo(3L);
+        log.close();
+        log = open();
+        assertThat(timestamps(log.takeUncommittedEnvelopes())).containsExactly(1L, 2L, 3L);
+        log.close();
+    }
+
+    @DisplayName("should keep one committed segment as spare and reuse it for the next segment")
+    @Test
+    void segmentRecycling() throws IOException {
+        MessageLog log = open();
+        List<Long> sequences = new ArrayList<>();
+        for (int i = 1; i <= 9; i++) {
+            sequences.add(log.append(createEnvelope(i)));
+        }
+        log.sync();
+        assertThat(segmentFiles().size()).isGreaterThan(2);
+
+        for (long sequence : sequences) {
+            log.commit(sequence);
+        }
+
+        assertThat(segmentFiles()).hasSize(1);
+        assertThat(new File(directory.toFile(), "spare").exists()).isTrue();
+
+        for (int i = 10; i <= 12; i++) {
+            log.append(createEnvelope(i));
+        }
+        log.sync();
+
+        assertThat(new File(directory.toFile(), "spare").exists()).isFalse();
+        assertThat(segmentFiles()).hasSize(2);
+        log.close();
+
+        // The reused file contains leftovers of its previous envelopes
+        log = open();
+        assertThat(timestamps(log.takeUncommittedEnvelopes())).containsExactly(10L, 11L, 12L);
+        log.close();
+    }
+
+    @DisplayName("should keep envelopes for a retry without holding back the commits")
+    @Test
+    void keepForRetry() throws IOException {
+        MessageLog log = open();
+        List<Long> sequences = new ArrayList<>();
+        for (int i = 1; i <= 9; i++) {
+            sequences.add(log.append(createEnvelope(i)));
+        }
+        log.keepForRetry(createEnvelope(2));
+        for (long sequence : sequences) {
+            log.commit(sequence);
+        }
+        assertThat(segmentFiles()).hasSize(1);
+        log.close();
+
+        log = open();
+        assertThat(log.takeUncommittedEnvelopes()).isEmpty();
+        assertThat(retryTimestamps(log)).containsExactly(2L);
+        assertThat(log.takeRetryEnvelopes()).isEmpty();
+        // Not finished, e.g. after a crash during the retry
+        log.close();
+
+        log = open();
+        assertThat(retryTimestamps(log)).containsExactly(2L);
+        log.keepForRetry(createEnvelope(2));
+        log.keepForRetry(createEnvelope(10));
+        log.finishRetries();
+        log.close();
+
+        log = open();
+        assertThat(retryTimestamps(log)).containsExactly(2L, 10L);
+        log.finishRetries();
+        log.close();
+
+        log = open();
+        assertThat(log.takeRetryEnvelopes()).isEmpty();
+        assertThat(new File(directory.toFile(), "retry").exists()).isFalse();
+        log.close();
+    }
+
+    @DisplayName("should reject envelopes after closing")
+    @Test
+    void closed() throws IOException {
+        MessageLog log = open();
+        long sequence = log.append(createEnvelope(1));
+        log.close();
+
+        try {
+            log.append(createEnvelope(2));
+            Assertions.fail("append should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        // Ignored, the envelope is processed again on the next start
+        log.commit(sequence);
+        log.sync();
+
+        log = open();
+        assertThat(timestamps(log.takeUncommittedEnvelopes())).containsExactly(1L);
+        log.close();
+    }
+
+    private MessageLog open() throws IOException {
+        return MessageLog.open(directory.toFile(), SEGMENT_SIZE, StorageConfig.FsyncPolicy.ALWAYS, 0);
+    }
+
+    private List<File> segmentFiles() {
+        List<File> segments = new ArrayList<>();
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".log")) {
+                    segments.add(file);
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static SignalServiceEnvelope createEnvelope(long timestamp) {
+        // About the size of a short text message
+        byte[] content = new byte[400];
+        return new SignalServiceEnvelope(SignalServiceProtos.Envelope.Type.CIPHERTEXT_VALUE, Optional.of(new SignalServiceAddress(null, "+4915100000001")), 1, timestamp, null, content, timestamp, null);
+    }
+
+    private static List<Long> retryTimestamps(MessageLog log) {
+        List<Long> timestamps = new ArrayList<>();
+        for (SignalServiceEnvelope envelope : log.takeRetryEnvelopes()) {
+            timestamps.add(envelope.getTimestamp());
+        }
+        return timestamps;
+    }
+
+    private static List<Long> timestamps(List<MessageLog.LoggedEnvelope> envelopes) {
+        List<Long> timestamps = new ArrayList<>();
+        for (MessageLog.LoggedEnvelope logged : envelopes) {
+            timestamps.add(logged.envelope.getTimestamp());
+        }
+        return timestamps;
+    }
+}
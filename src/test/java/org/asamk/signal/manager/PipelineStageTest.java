@@ -0,0 +1,135 @@
+package org.asamk.signal.manager;
+
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PipelineStageTest {
+
+    @DisplayName("should run the tasks in the order they were submitted")
+    @Test
+    void ordering() throws InterruptedException {
+        PipelineStage stage = new PipelineStage("test", 2);
+        final List<Integer> runs = Collections.synchronizedList(new ArrayList<Integer>());
+
+        for (int i = 0; i < 100; i++) {
+            final int value = i;
+            assertThat(stage.submit(new Runnable() {
+                @Override
+                public void run() {
+                    runs.add(value);
+                }
+            })).isTrue();
+        }
+        stage.shutdown();
+
+        assertThat(runs).hasSize(100);
+        for (int i = 0; i < runs.size(); i++) {
+            assertThat(runs.get(i)).isEqualTo(i);
+        }
+        assertThat(stage.getFailure()).isNull();
+    }
+
+    @DisplayName("should report the first exception and keep running the remaining tasks")
+    @Test
+    void runtimeException() throws InterruptedException {
+        PipelineStage stage = new PipelineStage("test", 4);
+        IllegalStateException first = new IllegalStateException("first");
+        List<String> runs = Collections.synchronizedList(new ArrayList<String>());
+
+        stage.submit(failingTask(first));
+        stage.submit(failingTask(new IllegalArgumentException("second")));
+        stage.submit(recordingTask(runs, "after"));
+        stage.shutdown();
+
+        assertThat(stage.getFailure()).isSameAs(first);
+        assertThat(runs).containsExactly("after");
+    }
+
+    @DisplayName("should report an error thrown by a task and keep the thread running")
+    @Test
+    void error() throws InterruptedException {
+        PipelineStage stage = new PipelineStage("test", 1);
+        final AssertionError error = new AssertionError("bad record");
+        List<String> runs = Collections.synchronizedList(new ArrayList<String>());
+
+        stage.submit(new Runnable() {
+            @Override
+            public void run() {
+                throw error;
+            }
+        });
+        // With a capacity of 1 these are only queued if the thread still takes from the queue
+        for (int i = 0; i < 3; i++) {
+            assertThat(stage.submit(recordingTask(runs, "task" + i))).isTrue();
+        }
+        stage.shutdown();
+
+        assertThat(stage.getFailure()).isSameAs(error);
+        assertThat(runs).containsExactly("task0", "task1", "task2");
+    }
+
+    @DisplayName("should not block a submitter on the full queue of a stopped thread")
+    @Test
+    void stoppedThread() throws InterruptedException {
+        PipelineStage stage = new PipelineStage("test", 1);
+        stage.shutdown();
+        List<String> runs = new ArrayList<>();
+
+        assertThat(stage.submit(recordingTask(runs, "queued"))).isTrue();
+        assertThat(stage.submit(recordingTask(runs, "rejected"))).isFalse();
+        stage.shutdown();
+
+        assertThat(runs).isEmpty();
+    }
+
+    @DisplayName("should run the queued tasks before shutdown returns")
+    @Test
+    void shutdownDrains() throws InterruptedException {
+        PipelineStage stage = new PipelineStage("test", 4);
+        final CountDownLatch started = new CountDownLatch(1);
+        final List<String> runs = Collections.synchronizedList(new ArrayList<String>());
+        stage.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                runs.add("slow");
+            }
+        });
+        stage.submit(recordingTask(runs, "next"));
+        started.await();
+
+        stage.shutdown();
+
+        assertThat(runs).containsExactly("slow", "next");
+        assertThat(stage.getFailure()).isNull();
+    }
+
+    private static Runnable failingTask(final RuntimeException e) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                throw e;
+            }
+        };
+    }
+
+    private static Runnable recordingTask(final List<String> runs, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                runs.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,118 @@
+package org.asamk.signal.storage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.jupiter.api.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AccountJournalTest {
+
+    private final ObjectMapper jsonProcessor = new ObjectMapper();
+    private Path directory;
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("signal-journal-test");
+        file = directory.resolve("journal");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory);
+    }
+
+    @DisplayName("should read back flushed records in order")
+    @Test
+    void readFlushed() throws IOException {
+        AccountJournal journal = AccountJournal.open(file.toString(), jsonProcessor);
+        journal.onPut("contacts", "+1", Collections.singletonMap("name", "a"));
+        journal.onRemove("contacts", "+2");
+        journal.flush(true);
+        journal.onPut("contacts", "+3", Collections.singletonMap("name", "c"));
+        journal.flush(false);
+
+        AccountJournal.Contents contents = AccountJournal.open(file.toString(), jsonProcessor).readRecords();
+
+        assertThat(keys(contents)).containsExactly("+1", "+2", "+3");
+        assertThat(contents.getCorruptLines()).isEmpty();
+        assertThat(contents.hasTornTail()).isFalse();
+    }
+
+    @DisplayName("should cut off an incomplete final record")
+    @Test
+    void tornTail() throws IOException {
+        AccountJournal journal = AccountJournal.open(file.toString(), jsonProcessor);
+        journal.onPut("contacts", "+1", Collections.singletonMap("name", "a"));
+        journal.flush(false);
+        final long completeSize = Files.size(file);
+        append("{\"store\":\"contacts\",\"op\":\"put\",\"key\":\"+2\",\"en");
+
+        AccountJournal reopened = AccountJournal.open(file.toString(), jsonProcessor);
+        AccountJournal.Contents contents = reopened.readRecords();
+
+        assertThat(keys(contents)).containsExactly("+1");
+        assertThat(contents.hasTornTail()).isTrue();
+        assertThat(contents.getCorruptLines()).isEmpty();
+        assertThat(Files.size(file)).isEqualTo(completeSize);
+
+        reopened.onRemove("contacts", "+3");
+        reopened.flush(false);
+        assertThat(keys(AccountJournal.open(file.toString(), jsonProcessor).readRecords())).containsExactly("+1", "+3");
+    }
+
+    @DisplayName("should skip a corrupt record and keep the records after it")
+    @Test
+    void corruptRecord() throws IOException {
+        AccountJournal journal = AccountJournal.open(file.toString(), jsonProcessor);
+        journal.onPut("contacts", "+1", Collections.singletonMap("name", "a"));
+        journal.flush(false);
+        append("{\"store\":\"contacts\",\"op\"\u0000garbage\n");
+        append("42\n");
+        journal.onRemove("contacts", "+2");
+        journal.flush(false);
+        final long size = Files.size(file);
+
+        AccountJournal.Contents contents = AccountJournal.open(file.toString(), jsonProcessor).readRecords();
+
+        assertThat(keys(contents)).containsExactly("+1", "+2");
+        assertThat(contents.getCorruptLines()).containsExactly(2, 3);
+        assertThat(contents.hasTornTail()).isFalse();
+        assertThat(Files.size(file)).isEqualTo(size);
+    }
+
+    @DisplayName("should read an empty journal")
+    @Test
+    void empty() throws IOException {
+        AccountJournal.Contents contents = AccountJournal.open(file.toString(), jsonProcessor).readRecords();
+
+        assertThat(contents.getRecords()).isEmpty();
+        assertThat(contents.hasTornTail()).isFalse();
+        assertThat(new File(file.toString()).exists()).isTrue();
+    }
+
+    private void append(String text) throws IOException {
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+
+    private static List<String> keys(AccountJournal.Contents contents) {
+        List<String> keys = new ArrayList<>();
+        for (JsonNode record : contents.getRecords()) {
+            keys.add(record.get("key").asText());
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,116 @@
+package org.asamk.signal.storage;
+
+import org.asamk.signal.storage.contacts.ContactInfo;
+import org.asamk.signal.storage.threads.ThreadInfo;
+import org.junit.jupiter.api.*;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SignalAccountStorageTest {
+
+    private static final String USERNAME = "+4915100000001";
+    private static final SignalProtocolAddress REMOTE = new SignalProtocolAddress("+4915100000002", 1);
+
+    private Path dataPath;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("signal-account-test");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walkFileTree(dataPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @DisplayName("should keep the account state when migrating from json to split to db and back")
+    @Test
+    void migrateAllStorageTypes() throws IOException {
+        SignalAccount account = SignalAccount.create(dataPath.toString(), USERNAME, KeyHelper.generateIdentityKeyPair(), 42, new byte[32], storageConfig(StorageConfig.StorageType.JSON));
+        account.setRegistered(true);
+        account.getSignalProtocolStore().storeSession(REMOTE, new SessionRecord());
+        ContactInfo contact = new ContactInfo();
+        contact.number = REMOTE.getName();
+        contact.name = "Remote";
+        account.getContactStore().updateContact(contact);
+        ThreadInfo thread = new ThreadInfo();
+        thread.id = REMOTE.getName();
+        thread.messageExpirationTime = 3600;
+        account.getThreadStore().updateThread(thread);
+        account.save();
+        account.close();
+
+        account = loadAndCheck(StorageConfig.StorageType.SPLIT);
+        assertThat(storeFile("manifest.json").exists()).isTrue();
+        account.close();
+
+        account = loadAndCheck(StorageConfig.StorageType.DB);
+        assertThat(storeFile("account.db").exists()).isTrue();
+        assertThat(storeFile("manifest.json").exists()).isFalse();
+        account.close();
+
+        account = loadAndCheck(StorageConfig.StorageType.JSON);
+        assertThat(storeFile("account.db").exists()).isFalse();
+        account.close();
+    }
+
+    @DisplayName("should keep changes made after migrating to split storage")
+    @Test
+    void changeAfterMigration() throws IOException {
+        SignalAccount account = SignalAccount.create(dataPath.toString(), USERNAME, KeyHelper.generateIdentityKeyPair(), 42, new byte[32], storageConfig(StorageConfig.StorageType.JSON));
+        account.save();
+        account.close();
+
+        account = SignalAccount.load(dataPath.toString(), USERNAME, storageConfig(StorageConfig.StorageType.SPLIT));
+        account.getSignalProtocolStore().storeSession(REMOTE, new SessionRecord());
+        account.save();
+        account.close();
+
+        account = SignalAccount.load(dataPath.toString(), USERNAME, storageConfig(StorageConfig.StorageType.SPLIT));
+        assertThat(account.getSignalProtocolStore().containsSession(REMOTE)).isTrue();
+        account.close();
+    }
+
+    private SignalAccount loadAndCheck(StorageConfig.StorageType storageType) throws IOException {
+        SignalAccount account = SignalAccount.load(dataPath.toString(), USERNAME, storageConfig(storageType));
+        assertThat(account.isRegistered()).isTrue();
+        assertThat(account.getSignalProtocolStore().getLocalRegistrationId()).isEqualTo(42);
+        assertThat(account.getSignalProtocolStore().containsSession(REMOTE)).isTrue();
+        assertThat(account.getContactStore().getContact(REMOTE.getName()).name).isEqualTo("Remote");
+        assertThat(account.getThreadStore().getThread(REMOTE.getName()).messageExpirationTime).isEqualTo(3600);
+        return account;
+    }
+
+    private File storeFile(String name) {
+        return new File(dataPath.toFile(), USERNAME + ".d/" + name);
+    }
+
+    private static StorageConfig storageConfig(StorageConfig.StorageType storageType) {
+        StorageConfig storageConfig = new StorageConfig();
+        storageConfig.setStorageType(storageType);
+        return storageConfig;
+    }
+}
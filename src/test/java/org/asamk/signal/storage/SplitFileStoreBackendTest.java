@@ -0,0 +1,210 @@
+package org.asamk.signal.storage;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.junit.jupiter.api.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SplitFileStoreBackendTest {
+
+    private final ObjectMapper jsonProcessor = new ObjectMapper();
+    private Path directory;
+    private Map<String, PersistentStore> stores;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("signal-split-test");
+        stores = new LinkedHashMap<>();
+        for (String name : new String[]{"preKeys", "sessionStore", "signedPreKeyStore", "identityKeyStore", "contactStore"}) {
+            stores.put(name, new TestStore(name + "-1"));
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @DisplayName("should read back the written stores")
+    @Test
+    void roundTrip() throws IOException {
+        createBackend().writeStores(stores, false);
+
+        ObjectNode rootNode = jsonProcessor.createObjectNode();
+        createBackend().readStores(rootNode);
+
+        assertThat(rootNode.get("axolotlStore").get("sessionStore").get("value").asText()).isEqualTo("sessionStore-1");
+        assertThat(rootNode.get("contactStore").get("value").asText()).isEqualTo("contactStore-1");
+        assertThat(fileNames()).contains("manifest.json", "sessionStore.1.json", "contactStore.1.json");
+    }
+
+    @DisplayName("should only rewrite changed stores and remove the replaced files")
+    @Test
+    void rewriteChanged() throws IOException {
+        SplitFileStoreBackend backend = createBackend();
+        backend.writeStores(stores, false);
+        ((TestStore) stores.get("sessionStore")).update("sessionStore-2");
+
+        backend.writeStores(stores, false);
+
+        assertThat(fileNames()).contains("sessionStore.2.json", "preKeys.1.json");
+        assertThat(fileNames()).doesNotContain("sessionStore.1.json", "preKeys.2.json");
+        assertThat(readManifest().get("generation").asLong()).isEqualTo(2L);
+        assertThat(readStore("sessionStore")).isEqualTo("sessionStore-2");
+    }
+
+    @DisplayName("should ignore store files written after the last manifest")
+    @Test
+    void interruptedWrite() throws IOException {
+        createBackend().writeStores(stores, false);
+        // A crash after writing a store file, before the manifest was replaced
+        write("sessionStore.2.json", "{\"value\":\"sessionStore-2\"}");
+
+        assertThat(readStore("sessionStore")).isEqualTo("sessionStore-1");
+        assertThat(fileNames()).doesNotContain("sessionStore.2.json");
+    }
+
+    @DisplayName("should keep the manifest when writing a store fails")
+    @Test
+    void failedWrite() throws IOException {
+        SplitFileStoreBackend backend = createBackend();
+        backend.writeStores(stores, false);
+        ((TestStore) stores.get("preKeys")).update("preKeys-2");
+        stores.put("sessionStore", new FailingStore());
+
+        try {
+            backend.writeStores(stores, false);
+            Assertions.fail("write should fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertThat(readManifest().get("generation").asLong()).isEqualTo(1L);
+        assertThat(stores.get("preKeys").isDirty()).isTrue();
+        assertThat(fileNames()).doesNotContain("preKeys.2.json");
+        assertThat(readStore("preKeys")).isEqualTo("preKeys-1");
+    }
+
+    @DisplayName("should read and keep store files written without a manifest")
+    @Test
+    void unversionedFiles() throws IOException {
+        for (String name : stores.keySet()) {
+            write(name + ".json", "{\"value\":\"" + name + "-0\"}");
+        }
+        SplitFileStoreBackend backend = createBackend();
+        ObjectNode rootNode = jsonProcessor.createObjectNode();
+        backend.readStores(rootNode);
+        assertThat(rootNode.get("axolotlStore").get("preKeys").get("value").asText()).isEqualTo("preKeys-0");
+
+        for (PersistentStore store : stores.values()) {
+            store.setDirty(false);
+        }
+        ((TestStore) stores.get("preKeys")).update("preKeys-1");
+        backend.writeStores(stores, false);
+
+        assertThat(fileNames()).contains("preKeys.1.json", "sessionStore.json");
+        assertThat(fileNames()).doesNotContain("preKeys.json");
+        assertThat(readStore("preKeys")).isEqualTo("preKeys-1");
+        assertThat(readStore("sessionStore")).isEqualTo("sessionStore-0");
+    }
+
+    @DisplayName("should remove all files on delete")
+    @Test
+    void delete() throws IOException {
+        SplitFileStoreBackend backend = createBackend();
+        backend.writeStores(stores, false);
+
+        backend.delete();
+
+        assertThat(fileNames()).isEmpty();
+    }
+
+    private SplitFileStoreBackend createBackend() {
+        return new SplitFileStoreBackend(directory.toString(), jsonProcessor, new SnapshotWriter(StorageConfig.FsyncPolicy.NEVER, 0));
+    }
+
+    private String readStore(String name) throws IOException {
+        ObjectNode rootNode = jsonProcessor.createObjectNode();
+        createBackend().readStores(rootNode);
+        JsonNode store = rootNode.get("axolotlStore").has(name) ? rootNode.get("axolotlStore").get(name) : rootNode.get(name);
+        return store.get("value").asText();
+    }
+
+    private JsonNode readManifest() throws IOException {
+        return jsonProcessor.readTree(directory.resolve("manifest.json").toFile());
+    }
+
+    private void write(String fileName, String content) throws IOException {
+        Files.write(directory.resolve(fileName), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private List<String> fileNames() {
+        List<String> names = new ArrayList<>();
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                names.add(file.getName());
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private static class TestStore implements PersistentStore {
+
+        public String value;
+        private boolean dirty = true;
+
+        TestStore(String value) {
+            this.value = value;
+        }
+
+        void update(String value) {
+            this.value = value;
+            this.dirty = true;
+        }
+
+        @JsonIgnore
+        @Override
+        public boolean isDirty() {
+            return dirty;
+        }
+
+        @Override
+        public void setDirty(boolean dirty) {
+            this.dirty = dirty;
+        }
+    }
+
+    private static class FailingStore extends TestStore {
+
+        FailingStore() {
+            super(null);
+        }
+
+        public String getFailure() {
+            throw new IllegalStateException("serialization failed");
+        }
+    }
+}
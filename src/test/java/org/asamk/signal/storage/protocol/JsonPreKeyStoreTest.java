@@ -0,0 +1,145 @@
+package org.asamk.signal.storage.protocol;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.jupiter.api.*;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.util.Base64;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JsonPreKeyStoreTest {
+
+    private final ObjectMapper jsonProcessor = new ObjectMapper();
+    private JsonPreKeyStore store;
+
+    @BeforeEach
+    void setUp() {
+        store = new JsonPreKeyStore();
+    }
+
+    @DisplayName("should move prekeys from generated to uploaded to superseded")
+    @Test
+    void uploadLifecycle() throws InvalidKeyIdException {
+        storePreKeys(1, 2, 3);
+        assertStatistics(3, 0, 0, 0);
+
+        store.markUploaded(new int[]{1, 2});
+        // 3 was not part of the upload, the server never hands it out
+        assertStatistics(0, 2, 0, 0);
+        assertThat(store.containsPreKey(3)).isFalse();
+
+        storePreKeys(4, 5);
+        store.markUploaded(new int[]{4, 5});
+        assertStatistics(0, 2, 2, 0);
+
+        // Superseded prekeys are still usable for messages that are on their way
+        assertThat(store.loadPreKey(1).getId()).isEqualTo(1);
+    }
+
+    @DisplayName("should keep consumed prekeys only as a state")
+    @Test
+    void consume() {
+        storePreKeys(1, 2);
+        store.markUploaded(new int[]{1, 2});
+
+        store.removePreKey(1);
+        store.removePreKey(1);
+
+        assertThat(store.containsPreKey(1)).isFalse();
+        assertStatistics(0, 1, 0, 1);
+        try {
+            store.loadPreKey(1);
+            Assertions.fail("consumed prekey should not be loaded");
+        } catch (InvalidKeyIdException e) {
+            // expected
+        }
+    }
+
+    @DisplayName("should drop superseded and consumed prekeys after the retention time")
+    @Test
+    void compact() {
+        storePreKeys(1, 2, 3);
+        store.markUploaded(new int[]{1, 2});
+        store.removePreKey(1);
+        storePreKeys(4);
+        store.markUploaded(new int[]{4});
+        long now = System.currentTimeMillis();
+
+        assertThat(store.compact(now)).isEqualTo(0);
+        assertThat(store.compact(now + JsonPreKeyStore.RETENTION_TIME)).isEqualTo(2);
+
+        assertStatistics(0, 1, 0, 0);
+        assertThat(store.containsPreKey(4)).isTrue();
+    }
+
+    @DisplayName("should keep the states when saved and loaded")
+    @Test
+    void roundTrip() throws IOException, InvalidKeyIdException {
+        storePreKeys(1, 2, 3, 4);
+        store.markUploaded(new int[]{1, 2, 3});
+        store.removePreKey(1);
+        storePreKeys(5);
+        store.markUploaded(new int[]{3, 5});
+
+        JsonPreKeyStore loaded = readBack(jsonProcessor.writeValueAsString(store));
+
+        assertThat(loaded.getStatistics(System.currentTimeMillis()).getConsumed()).isEqualTo(1);
+        assertThat(loaded.getStatistics(System.currentTimeMillis()).getSuperseded()).isEqualTo(1);
+        assertThat(loaded.getStatistics(System.currentTimeMillis()).getUploaded()).isEqualTo(2);
+        assertThat(loaded.containsPreKey(1)).isFalse();
+        assertThat(loaded.loadPreKey(2).getId()).isEqualTo(2);
+    }
+
+    @DisplayName("should write a record for consumed prekeys, for older versions")
+    @Test
+    void consumedRecord() throws IOException {
+        storePreKeys(1);
+        store.removePreKey(1);
+
+        JsonNode entry = jsonProcessor.readTree(jsonProcessor.writeValueAsString(store)).get(0);
+
+        assertThat(entry.get("state").asText()).isEqualTo("CONSUMED");
+        assertThat(entry.has("record")).isTrue();
+    }
+
+    @DisplayName("should load prekeys stored without a state as uploaded")
+    @Test
+    void legacyFormat() throws IOException, InvalidKeyIdException {
+        String record = Base64.encodeBytes(new PreKeyRecord(7, Curve.generateKeyPair()).serialize());
+
+        JsonPreKeyStore loaded = readBack("[{\"id\":7,\"record\":\"" + record + "\"},{\"id\":8}]");
+
+        assertThat(loaded.getStatistics(System.currentTimeMillis()).getUploaded()).isEqualTo(1);
+        assertThat(loaded.getStatistics(System.currentTimeMillis()).getUnknownAge()).isEqualTo(1);
+        assertThat(loaded.loadPreKey(7).getId()).isEqualTo(7);
+        assertThat(loaded.containsPreKey(8)).isFalse();
+    }
+
+    private void storePreKeys(int... ids) {
+        for (int id : ids) {
+            store.storePreKey(id, new PreKeyRecord(id, Curve.generateKeyPair()));
+        }
+    }
+
+    private void assertStatistics(int generated, int uploaded, int superseded, int consumed) {
+        PreKeyStatistics statistics = store.getStatistics(System.currentTimeMillis());
+        assertThat(statistics.getGenerated()).isEqualTo(generated);
+        assertThat(statistics.getUploaded()).isEqualTo(uploaded);
+        assertThat(statistics.getSuperseded()).isEqualTo(superseded);
+        assertThat(statistics.getConsumed()).isEqualTo(consumed);
+    }
+
+    private JsonPreKeyStore readBack(String json) throws IOException {
+        try (JsonParser parser = jsonProcessor.getFactory().createParser(json)) {
+            parser.nextToken();
+            return new JsonPreKeyStore.JsonPreKeyStoreDeserializer().deserialize(parser, null);
+        }
+    }
+}
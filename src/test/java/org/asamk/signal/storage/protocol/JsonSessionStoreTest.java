@@ -0,0 +1,198 @@
+package org.asamk.signal.storage.protocol;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.asamk.signal.storage.StoreChangeListener;
+import org.junit.jupiter.api.*;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.util.Base64;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JsonSessionStoreTest {
+
+    private static final SignalProtocolAddress ALICE = new SignalProtocolAddress("+4915100000001", 1);
+    private static final SignalProtocolAddress BOB = new SignalProtocolAddress("+4915100000002", 1);
+
+    private final ObjectMapper jsonProcessor = new ObjectMapper();
+    private JsonSessionStore store;
+
+    @BeforeEach
+    void setUp() {
+        store = new JsonSessionStore();
+    }
+
+    @DisplayName("should hand out a stored record once without deserializing it")
+    @Test
+    void cachedLoad() {
+        SessionRecord record = createRecord(1);
+        store.storeSession(ALICE, record);
+
+        SessionRecord first = store.loadSession(ALICE);
+        SessionRecord second = store.loadSession(ALICE);
+
+        assertThat(first).isSameAs(record);
+        assertThat(second).isNotSameAs(record);
+        assertThat(second.getSessionState().getRemoteRegistrationId()).isEqualTo(1);
+    }
+
+    @DisplayName("should keep the stored state when a loaded record is changed without storing it")
+    @Test
+    void changedWithoutStore() {
+        store.storeSession(ALICE, createRecord(1));
+
+        store.loadSession(ALICE).getSessionState().setRemoteRegistrationId(2);
+
+        assertThat(store.loadSession(ALICE).getSessionState().getRemoteRegistrationId()).isEqualTo(1);
+    }
+
+    @DisplayName("should keep the changes of evicted records")
+    @Test
+    void eviction() throws IOException {
+        store.setCacheSize(1);
+        SessionRecord alice = createRecord(1);
+        store.storeSession(ALICE, alice);
+        store.storeSession(BOB, createRecord(2));
+
+        assertThat(store.loadSession(ALICE)).isNotSameAs(alice);
+        assertThat(readBack(store).loadSession(ALICE).getSessionState().getRemoteRegistrationId()).isEqualTo(1);
+        assertThat(readBack(store).loadSession(BOB).getSessionState().getRemoteRegistrationId()).isEqualTo(2);
+    }
+
+    @DisplayName("should save the latest state of cached records")
+    @Test
+    void saveCached() throws IOException {
+        SessionRecord record = createRecord(1);
+        store.storeSession(ALICE, record);
+        record.getSessionState().setRemoteRegistrationId(3);
+        store.storeSession(ALICE, record);
+
+        JsonSessionStore loaded = readBack(store);
+
+        assertThat(loaded.loadSession(ALICE).getSessionState().getRemoteRegistrationId()).isEqualTo(3);
+        assertThat(store.loadSession(ALICE)).isSameAs(record);
+    }
+
+    @DisplayName("should not cache records with a cache size of 0")
+    @Test
+    void cacheDisabled() {
+        store.setCacheSize(0);
+        SessionRecord record = createRecord(1);
+        store.storeSession(ALICE, record);
+
+        SessionRecord loaded = store.loadSession(ALICE);
+
+        assertThat(loaded).isNotSameAs(record);
+        assertThat(loaded.getSessionState().getRemoteRegistrationId()).isEqualTo(1);
+    }
+
+    @DisplayName("should report the stored record to the change listener")
+    @Test
+    void changeListener() throws IOException {
+        final Map<String, Object> changes = new HashMap<>();
+        store.setChangeListener(new StoreChangeListener() {
+            @Override
+            public void onPut(final String storeName, final String key, final Object entry) {
+                changes.put(key, entry);
+            }
+
+            @Override
+            public void onRemove(final String storeName, final String key) {
+                changes.put(key, null);
+            }
+        });
+
+        store.storeSession(ALICE, createRecord(1));
+        store.deleteSession(BOB);
+        store.storeSession(BOB, createRecord(2));
+        store.deleteSession(BOB);
+
+        JsonNode entry = (JsonNode) changes.get(ALICE.getName() + ".1");
+        assertThat(new SessionRecord(Base64.decode(entry.get("record").asText())).getSessionState().getRemoteRegistrationId()).isEqualTo(1);
+        assertThat(changes.containsKey(BOB.getName() + ".1")).isTrue();
+        assertThat(changes.get(BOB.getName() + ".1")).isNull();
+
+        JsonSessionStore replayed = new JsonSessionStore();
+        replayed.applyChange(ALICE.getName() + ".1", entry);
+        assertThat(replayed.loadSession(ALICE).getSessionState().getRemoteRegistrationId()).isEqualTo(1);
+    }
+
+    @DisplayName("should keep every stored state while other threads save and evict")
+    @Test
+    void concurrentUse() throws Exception {
+        store.setCacheSize(4);
+        final int threadCount = 8;
+        final int rounds = 200;
+        final List<Throwable> failures = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            final SignalProtocolAddress address = new SignalProtocolAddress("+49151000001" + i, 1);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 1; round <= rounds; round++) {
+                            SessionRecord record = store.loadSession(address);
+                            if (record.getSessionState().getRemoteRegistrationId() != round - 1) {
+                                throw new AssertionError("Lost state of " + address + " in round " + round);
+                            }
+                            record.getSessionState().setRemoteRegistrationId(round);
+                            store.storeSession(address, record);
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+        }
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        jsonProcessor.writeValueAsString(store);
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(failures).isEmpty();
+        JsonSessionStore loaded = readBack(store);
+        for (int i = 0; i < threadCount; i++) {
+            SignalProtocolAddress address = new SignalProtocolAddress("+49151000001" + i, 1);
+            assertThat(loaded.loadSession(address).getSessionState().getRemoteRegistrationId()).isEqualTo(rounds);
+        }
+    }
+
+    private static SessionRecord createRecord(int remoteRegistrationId) {
+        SessionRecord record = new SessionRecord();
+        record.getSessionState().setRemoteRegistrationId(remoteRegistrationId);
+        return record;
+    }
+
+    private JsonSessionStore readBack(JsonSessionStore store) throws IOException {
+        String json = jsonProcessor.writeValueAsString(store);
+        try (JsonParser parser = jsonProcessor.getFactory().createParser(json)) {
+            parser.nextToken();
+            return new JsonSessionStore.JsonSessionStoreDeserializer().deserialize(parser, null);
+        }
+    }
+}